@@ -38,27 +38,38 @@ import java.lang.reflect.Type;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.eve.agent.annotation.Namespace;
 import com.almende.eve.agent.callback.AsyncCallback;
 import com.almende.eve.agent.callback.AsyncCallbackQueue;
+import com.almende.eve.agent.callback.CallbackRegistry;
+import com.almende.eve.agent.callback.CallbackFuture;
+import com.almende.eve.agent.callback.SingleFlight;
 import com.almende.eve.agent.callback.SyncCallback;
 import com.almende.eve.event.EventsInterface;
 import com.almende.eve.monitor.ResultMonitorFactoryInterface;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.annotation.Access;
 import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Deadline;
 import com.almende.eve.rpc.annotation.Sender;
+import com.almende.eve.rpc.jsonrpc.DispatchTable;
+import com.almende.eve.rpc.jsonrpc.JSONBatch;
+import com.almende.eve.rpc.jsonrpc.JSONDescription;
 import com.almende.eve.rpc.jsonrpc.JSONMessage;
 import com.almende.eve.rpc.jsonrpc.JSONRPC;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException.CODE;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.ResultCache;
+import com.almende.eve.rpc.jsonrpc.ResultCacheOwner;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.state.State;
@@ -78,19 +89,23 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  * @author Almende
  */
 @Access(AccessType.UNAVAILABLE)
-public abstract class Agent implements AgentInterface {
+public abstract class Agent implements AgentInterface, ResultCacheOwner {
 	
-	private static final Logger				LOG					= Logger.getLogger(Agent.class
+	private static final Logger					LOG					= Logger.getLogger(Agent.class
 																		.getCanonicalName());
-	private AgentHost						host				= null;
-	private State							state				= null;
-	private Scheduler						scheduler			= null;
-	private ResultMonitorFactoryInterface	monitorFactory		= null;
-	private EventsInterface					eventsFactory		= null;
-	private AsyncCallbackQueue<JSONResponse>	callbacks			= null;
-	private static final RequestParams		EVEREQUESTPARAMS	= new RequestParams();
+	private AgentHost							host				= null;
+	private State								state				= null;
+	private Scheduler							scheduler			= null;
+	private ResultMonitorFactoryInterface		monitorFactory		= null;
+	private EventsInterface						eventsFactory		= null;
+	private CallbackRegistry					callbacks			= null;
+	private final Map<String, AgentInterface>	proxies				= new ProxyCache();
+	private static final int					MAXPROXIES			= 64;
+	private static final AgentProxyFactory		PROXYFACTORY		= new AgentProxyFactory();
+	private static final RequestParams			EVEREQUESTPARAMS	= new RequestParams();
 	static {
 		EVEREQUESTPARAMS.put(Sender.class, null);
+		EVEREQUESTPARAMS.put(Deadline.class, null);
 	}
 	
 	/*
@@ -134,11 +149,15 @@ public abstract class Agent implements AgentInterface {
 	public void constr(final AgentHost agentHost, final State state) {
 		if (this.state == null) {
 			host = agentHost;
-			this.state = state;
+			// changes of the state invalidate the cached results
+			if (state != null && DispatchTable.get(getClass()).hasCacheable()) {
+				this.state = new InvalidatingState(state, agentHost);
+			} else {
+				this.state = state;
+			}
 			monitorFactory = agentHost.getResultMonitorFactory(this);
 			eventsFactory = agentHost.getEventsFactory(this);
-			callbacks = agentHost.getCallbackQueue(getId(),
-					JSONResponse.class);
+			callbacks = agentHost.getCallbackRegistry();
 			
 			// validate the Eve agent and output as warnings
 			final List<String> errors = JSONRPC.validate(this.getClass(),
@@ -384,8 +403,8 @@ public abstract class Agent implements AgentInterface {
 		if (scheduler != null) {
 			scheduler.cancelAllTasks();
 		}
-		if (callbacks != null){
-			callbacks.clear();
+		if (callbacks != null) {
+			callbacks.remove(getId());
 		}
 		// remove all keys from the state
 		// Note: the state itself will be deleted by the AgentHost
@@ -425,6 +444,18 @@ public abstract class Agent implements AgentInterface {
 		return state;
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.rpc.jsonrpc.ResultCacheOwner#getResultCache()
+	 */
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	@JsonIgnore
+	public final ResultCache getResultCache() {
+		return host.getResultCache(getId(), true);
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -505,6 +536,19 @@ public abstract class Agent implements AgentInterface {
 		return JSONRPC.describe(this, EVEREQUESTPARAMS);
 	}
 	
+	/**
+	 * Gets the memoized description of the methods of this agent, including
+	 * its serialized form and ETag. Unlike getMethods(), it doesn't contain the
+	 * statistics of the result cache.
+	 * 
+	 * @return the description
+	 */
+	@Access(AccessType.UNAVAILABLE)
+	@JsonIgnore
+	public JSONDescription getMethodsDescription() {
+		return JSONRPC.getDescription(this, EVEREQUESTPARAMS);
+	}
+	
 	// TODO: only allow ObjectNode as params?
 	/**
 	 * Loc send.
@@ -535,7 +579,7 @@ public abstract class Agent implements AgentInterface {
 		// to route the request internally or externally
 		final JSONRequest request = new JSONRequest(method, jsonParams);
 		final SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
-		send(request, url, callback, null);
+		sendRequest(url, request, callback, 0);
 		JSONResponse response;
 		try {
 			response = callback.get();
@@ -686,6 +730,82 @@ public abstract class Agent implements AgentInterface {
 		locSend(url, method, null);
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentInterface#sendBatch(java.net.URI,
+	 * java.util.List)
+	 */
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	public final List<JSONResponse> sendBatch(final URI url,
+			final List<JSONRequest> requests) throws IOException {
+		final List<JSONRequest> sending = new ArrayList<JSONRequest>(
+				requests.size());
+		final List<JSONRequest> answered = new ArrayList<JSONRequest>(
+				requests.size());
+		final List<SyncCallback<JSONResponse>> waiting = new ArrayList<SyncCallback<JSONResponse>>(
+				requests.size());
+		for (final JSONRequest entry : requests) {
+			// Inherit the deadline of the request being handled, as in send()
+			final JSONRequest request = entry.getDeadline() == null ? entry
+					.withDeadline(JSONRPC.getDeadline()) : entry;
+			long timeout = AsyncCallbackQueue.getDefaultTimeout();
+			final Long deadline = request.getDeadline();
+			SyncCallback<JSONResponse> callback = null;
+			if (!request.isNotification()) {
+				callback = new SyncCallback<JSONResponse>();
+				answered.add(request);
+				waiting.add(callback);
+			}
+			if (deadline != null) {
+				final long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					if (callback != null) {
+						callback.onFailure(new TimeoutException(
+								"Deadline passed, request not sent: "
+										+ request));
+					}
+					continue;
+				}
+				timeout = Math.min(timeout, left);
+			}
+			if (callback != null) {
+				callbacks.push(getId(), request.getId(), request, callback,
+						timeout);
+			}
+			sending.add(request);
+		}
+		if (!sending.isEmpty()) {
+			try {
+				send(new JSONBatch(sending), url, null, null);
+			} catch (final IOException e) {
+				for (final JSONRequest request : sending) {
+					if (!request.isNotification()) {
+						callbacks.pull(getId(), request.getId());
+					}
+				}
+				throw e;
+			}
+		}
+		
+		final List<JSONResponse> responses = new ArrayList<JSONResponse>(
+				answered.size());
+		for (int i = 0; i < answered.size(); i++) {
+			JSONResponse response;
+			try {
+				response = waiting.get(i).get();
+			} catch (final JSONRPCException e) {
+				response = new JSONResponse(answered.get(i).getId(), e);
+			} catch (final Exception e) {
+				response = new JSONResponse(answered.get(i).getId(),
+						new JSONRPCException(CODE.REMOTE_EXCEPTION, "", e));
+			}
+			responses.add(response);
+		}
+		return responses;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -696,8 +816,15 @@ public abstract class Agent implements AgentInterface {
 	@Access(AccessType.UNAVAILABLE)
 	public final <T extends AgentInterface> T createAgentProxy(final URI url,
 			final Class<T> agentInterface) {
-		final AgentProxyFactory pf = new AgentProxyFactory();
-		return pf.genProxy(this, url, agentInterface);
+		final String key = agentInterface.getName() + " " + url;
+		synchronized (proxies) {
+			AgentInterface proxy = proxies.get(key);
+			if (proxy == null) {
+				proxy = PROXYFACTORY.genProxy(this, url, agentInterface);
+				proxies.put(key, proxy);
+			}
+			return agentInterface.cast(proxy);
+		}
 	}
 	
 	/*
@@ -725,7 +852,8 @@ public abstract class Agent implements AgentInterface {
 	@Access(AccessType.UNAVAILABLE)
 	public final void sendAsync(final URI url, final String method,
 			final ObjectNode params) throws IOException {
-		sendAsync(url, method, params, null, Void.class);
+		// No callback: send as notification, the receiver won't respond.
+		send(JSONRequest.createNotification(method, params), url, null, null);
 	}
 	
 	/*
@@ -738,7 +866,7 @@ public abstract class Agent implements AgentInterface {
 	@Access(AccessType.UNAVAILABLE)
 	public final void sendAsync(final URI url, final String method)
 			throws IOException {
-		sendAsync(url, method, null, null, Void.class);
+		sendAsync(url, method, null);
 	}
 	
 	/*
@@ -837,6 +965,31 @@ public abstract class Agent implements AgentInterface {
 	public final <T> void sendAsync(final URI url, final JSONRequest request,
 			final AsyncCallback<T> callback, final JavaType type)
 			throws IOException {
+		sendAsync(url, request, callback, type, 0);
+	}
+	
+	/**
+	 * Do an asynchronous RPC call to another agent, with a timeout of its own.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param url
+	 *            the url
+	 * @param request
+	 *            the request
+	 * @param callback
+	 *            the callback
+	 * @param type
+	 *            the type
+	 * @param timeout
+	 *            the timeout in milliseconds, the default timeout is used if
+	 *            not positive
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private <T> void sendAsync(final URI url, final JSONRequest request,
+			final AsyncCallback<T> callback, final JavaType type,
+			final long timeout) throws IOException {
 		
 		// Create a callback to retrieve a JSONResponse and extract the result
 		// or error from this. This is double nested, mostly because of the type
@@ -855,8 +1008,7 @@ public abstract class Agent implements AgentInterface {
 					final Exception err = response.getError();
 					if (err != null) {
 						callback.onFailure(err);
-					}
-					if (type != null && !type.hasRawClass(Void.class)) {
+					} else if (type != null && !type.hasRawClass(Void.class)) {
 						try {
 							final T res = (T) TypeUtil.inject(
 									response.getResult(), type);
@@ -885,7 +1037,108 @@ public abstract class Agent implements AgentInterface {
 			}
 		};
 		
-		send(request, url, responseCallback, null);
+		sendRequest(url, request, responseCallback, timeout);
+	}
+	
+	/**
+	 * Send a request, joining an identical request of this agent in flight if
+	 * the host coalesces outgoing calls.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param request
+	 *            the request
+	 * @param callback
+	 *            the callback
+	 * @param timeout
+	 *            the timeout in milliseconds, the default timeout is used if
+	 *            not positive
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void sendRequest(final URI url, final JSONRequest request,
+			final AsyncCallback<JSONResponse> callback, final long timeout)
+			throws IOException {
+		final SingleFlight flights = host.getSingleFlight();
+		if (flights == null || request.isNotification()) {
+			send(request, url, callback, null, timeout);
+			return;
+		}
+		// the sender is part of the key: the callee may answer per sender
+		final AsyncCallback<JSONResponse> flight = flights.join(getId() + " "
+				+ url + " " + request.getMethod() + " " + request.getParams(),
+				callback);
+		if (flight == null) {
+			// joined an identical request in flight
+			return;
+		}
+		try {
+			send(request, url, flight, null, timeout);
+		} catch (final IOException e) {
+			flights.abort(flight, e);
+			throw e;
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentInterface#call(java.net.URI,
+	 * java.lang.String, com.fasterxml.jackson.databind.node.ObjectNode,
+	 * java.lang.Class)
+	 */
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	public final <T> CallbackFuture<T> call(final URI url, final String method,
+			final ObjectNode params, final Class<T> type) throws IOException {
+		return call(url, new JSONRequest(method, params), JOM.getTypeFactory()
+				.uncheckedSimpleType(type));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentInterface#call(java.net.URI,
+	 * java.lang.String, com.fasterxml.jackson.databind.node.ObjectNode,
+	 * java.lang.reflect.Type)
+	 */
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	public final <T> CallbackFuture<T> call(final URI url, final String method,
+			final ObjectNode params, final Type type) throws IOException {
+		return call(url, new JSONRequest(method, params), JOM.getTypeFactory()
+				.constructType(type));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentInterface#call(java.net.URI,
+	 * com.almende.eve.rpc.jsonrpc.JSONRequest,
+	 * com.fasterxml.jackson.databind.JavaType)
+	 */
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	public final <T> CallbackFuture<T> call(final URI url,
+			final JSONRequest request, final JavaType type) throws IOException {
+		return call(url, request, type, 0);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentInterface#call(java.net.URI,
+	 * com.almende.eve.rpc.jsonrpc.JSONRequest,
+	 * com.fasterxml.jackson.databind.JavaType, long)
+	 */
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	public final <T> CallbackFuture<T> call(final URI url,
+			final JSONRequest request, final JavaType type, final long timeout)
+			throws IOException {
+		final CallbackFuture<T> future = new CallbackFuture<T>();
+		sendAsync(url, request, future, type, timeout);
+		return future;
 	}
 	
 	/*
@@ -977,7 +1230,8 @@ public abstract class Agent implements AgentInterface {
 	// TODO: This should be abstracted to a generic "Translation service"?
 	/**
 	 * This message tries to convert/parse the given object to a JSONMessage.
-	 * Return null if it fails to convert the message.
+	 * JSON arrays are converted to a JSONBatch. Return null if it fails to
+	 * convert the message.
 	 * 
 	 * @param msg
 	 *            the msg
@@ -992,11 +1246,14 @@ public abstract class Agent implements AgentInterface {
 				ObjectNode json = null;
 				if (msg instanceof String) {
 					final String message = (String) msg;
-					if (message.startsWith("{")
-							|| message.trim().startsWith("{")) {
-						
-						json = JOM.getInstance().readValue(message,
-								ObjectNode.class);
+					final String trimmed = message.trim();
+					if (trimmed.startsWith("{") || trimmed.startsWith("[")) {
+						// Streaming parse, request params are bound later on
+						jsonMsg = JSONRPC.parse(message);
+						if (jsonMsg == null) {
+							LOG.warning("Message contains valid JSON, but is not JSON-RPC:"
+									+ message);
+						}
 					}
 				} else if (msg instanceof ObjectNode) {
 					json = (ObjectNode) msg;
@@ -1040,10 +1297,28 @@ public abstract class Agent implements AgentInterface {
 			if (jsonMsg != null) {
 				id = jsonMsg.getId();
 				if (jsonMsg instanceof JSONRequest) {
+					final JSONRequest request = (JSONRequest) jsonMsg;
 					final RequestParams params = new RequestParams();
 					params.put(Sender.class, senderUrl.toASCIIString());
+					params.put(Deadline.class, request.getDeadline());
 					
-					final JSONRequest request = (JSONRequest) jsonMsg;
+					final IdempotencyCache cache = request.isNotification() ? null
+							: host.getIdempotencyCache();
+					final String key = cache != null ? IdempotencyCache.getKey(
+							senderUrl, request) : null;
+					if (request.isNotification()) {
+						acknowledge(senderUrl, tag);
+					} else if (cache != null) {
+						final JSONResponse cached = cache.begin(getId(), key,
+								tag);
+						if (cached == IdempotencyCache.PENDING) {
+							// answered when the original request finishes
+							return;
+						} else if (cached != null) {
+							send(cached, senderUrl, null, tag);
+							return;
+						}
+					}
 					final AgentInterface me = this;
 					host.getPool().execute(new Runnable() {
 						@Override
@@ -1056,36 +1331,34 @@ public abstract class Agent implements AgentInterface {
 							
 							final JSONResponse response = JSONRPC.invoke(me,
 									request, params, me);
+							if (response == null) {
+								// notification, nothing to send back
+								return;
+							}
 							
 							signalAgent(new AgentSignal<JSONResponse>(
 									AgentSignal.RESPOND, response));
-							try {
-								send(response, senderUrl, null, tag);
-							} catch (final IOException e) {
-								LOG.log(Level.WARNING, getId()
-										+ ": Failed to send response.", e);
+							final List<String> tags = new ArrayList<String>(1);
+							tags.add(tag);
+							if (cache != null) {
+								tags.addAll(cache.complete(getId(), key,
+										response));
+							}
+							for (final String target : tags) {
+								try {
+									send(response, senderUrl, null, target);
+								} catch (final IOException e) {
+									LOG.log(Level.WARNING, getId()
+											+ ": Failed to send response.", e);
+								}
 							}
 						}
 					});
 					
-				} else if (jsonMsg instanceof JSONResponse && callbacks != null
-						&& id != null && !id.isNull()) {
-					final JSONResponse response = (JSONResponse) jsonMsg;
-					final AsyncCallback<JSONResponse> callback = callbacks.pull(id);
-					if (callback != null) {
-						host.getPool().execute(new Runnable() {
-							@Override
-							public void run() {
-								signalAgent(new AgentSignal<JSONResponse>(
-										AgentSignal.RESPONSE, response));
-								if (response.getError() != null) {
-									callback.onFailure(response.getError());
-								} else {
-									callback.onSuccess(response);
-								}
-							}
-						});
-					}
+				} else if (jsonMsg instanceof JSONResponse) {
+					handleResponse((JSONResponse) jsonMsg);
+				} else if (jsonMsg instanceof JSONBatch) {
+					receiveBatch((JSONBatch) jsonMsg, senderUrl, tag);
 				}
 			} else {
 				LOG.log(Level.WARNING, getId()
@@ -1113,6 +1386,122 @@ public abstract class Agent implements AgentInterface {
 		}
 	}
 	
+	/**
+	 * Release a synchronous transport (e.g. an HTTP request) waiting for the
+	 * response to a message which has none, like a notification. The
+	 * transport gets an empty message.
+	 * 
+	 * @param senderUrl
+	 *            the sender url
+	 * @param tag
+	 *            the tag, only synchronous transports set it
+	 */
+	private void acknowledge(final URI senderUrl, final String tag) {
+		if (tag == null) {
+			return;
+		}
+		try {
+			host.sendAsync(senderUrl, "", this, tag);
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, getId() + ": Failed to acknowledge.", e);
+		}
+	}
+	
+	/**
+	 * Hand a received response to the callback waiting for it.
+	 * 
+	 * @param response
+	 *            the response
+	 */
+	private void handleResponse(final JSONResponse response) {
+		final JsonNode id = response.getId();
+		if (callbacks == null || id == null || id.isNull()) {
+			return;
+		}
+		final AsyncCallback<JSONResponse> callback = callbacks.pull(getId(),
+				id);
+		if (callback != null) {
+			host.getPool().execute(new Runnable() {
+				@Override
+				public void run() {
+					signalAgent(new AgentSignal<JSONResponse>(
+							AgentSignal.RESPONSE, response));
+					if (response.getError() != null) {
+						callback.onFailure(response.getError());
+					} else {
+						callback.onSuccess(response);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Handle a received JSON-RPC batch: responses are handed to their
+	 * callbacks, the requests are invoked and their responses are sent back
+	 * as a single batch, along with the errors of invalid entries.
+	 * 
+	 * @param batch
+	 *            the batch
+	 * @param senderUrl
+	 *            the sender url
+	 * @param tag
+	 *            the tag
+	 */
+	private void receiveBatch(final JSONBatch batch, final URI senderUrl,
+			final String tag) {
+		boolean hasRequests = false;
+		for (final JSONMessage message : batch.getMessages()) {
+			if (message instanceof JSONResponse) {
+				handleResponse((JSONResponse) message);
+			} else if (message instanceof JSONRequest) {
+				hasRequests = true;
+			}
+		}
+		if (!hasRequests && batch.getErrors().isEmpty()
+				&& !batch.getMessages().isEmpty()) {
+			// only responses
+			return;
+		}
+		final RequestParams params = new RequestParams();
+		params.put(Sender.class, senderUrl.toASCIIString());
+		
+		final AgentInterface me = this;
+		host.getPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				for (final JSONMessage message : batch.getMessages()) {
+					if (message instanceof JSONRequest) {
+						final Object[] signalData = new Object[2];
+						signalData[0] = message;
+						signalData[1] = params;
+						signalAgent(new AgentSignal<Object[]>(
+								AgentSignal.INVOKE, signalData));
+					}
+				}
+				
+				final JSONBatch responses = JSONRPC.invoke(me, batch, params,
+						me, JSONRPC.isParallelBatch() ? host.getPool() : null);
+				
+				if (responses.getMessages().isEmpty()) {
+					// only notifications
+					acknowledge(senderUrl, tag);
+					return;
+				}
+				for (final JSONMessage response : responses.getMessages()) {
+					signalAgent(new AgentSignal<JSONResponse>(
+							AgentSignal.RESPOND, (JSONResponse) response));
+				}
+				try {
+					send(responses, senderUrl, null, tag);
+				} catch (final IOException e) {
+					LOG.log(Level.WARNING, getId()
+							+ ": Failed to send batch response.", e);
+				}
+			}
+		});
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -1124,21 +1513,93 @@ public abstract class Agent implements AgentInterface {
 	public void send(final Object msg, final URI receiverUrl,
 			final AsyncCallback<JSONResponse> callback, final String tag)
 			throws IOException {
-		if (msg instanceof JSONMessage) {
+		send(msg, receiverUrl, callback, tag, 0);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentBaseInterface#send(java.lang.Object,
+	 * java.net.URI, com.almende.eve.agent.callback.AsyncCallback,
+	 * java.lang.String, long)
+	 */
+	@Override
+	public void send(final Object msg, final URI receiverUrl,
+			final AsyncCallback<JSONResponse> callback, final String tag,
+			final long timeout) throws IOException {
+		long callbackTimeout = timeout > 0 ? timeout : AsyncCallbackQueue
+				.getDefaultTimeout();
+		Object message = msg;
+		if (msg instanceof JSONRequest) {
+			JSONRequest request = (JSONRequest) msg;
+			// Requests sent while handling a request inherit its deadline. It
+			// is set on a copy, the caller may still use its request.
+			if (request.getDeadline() == null) {
+				request = request.withDeadline(JSONRPC.getDeadline());
+				message = request;
+			}
+			final Long deadline = request.getDeadline();
+			if (deadline != null) {
+				final long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					if (callback != null) {
+						callback.onFailure(new TimeoutException(
+								"Deadline passed, request not sent: "
+										+ message));
+					}
+					return;
+				}
+				callbackTimeout = Math.min(callbackTimeout, left);
+			}
+		}
+		if (message instanceof JSONMessage) {
 			signalAgent(new AgentSignal<JSONMessage>(AgentSignal.SEND,
-					(JSONMessage) msg));
-			if (callback != null && callbacks != null) {
-				callbacks.push(((JSONMessage) msg).getId(),msg.toString(), callback);
+					(JSONMessage) message));
+			if (callback != null && callbacks != null
+					&& !(message instanceof JSONRequest
+							&& ((JSONRequest) message).isNotification())) {
+				// The message itself is the timeout description, it will only
+				// be serialized if the timeout actually occurs.
+				callbacks.push(getId(), ((JSONMessage) message).getId(),
+						message, callback, callbackTimeout);
 			}
 		}
 		// This should already been done!
-		if (msg instanceof JSONRPCException) {
+		if (message instanceof JSONRPCException) {
 			LOG.log(Level.WARNING,
 					"Send has been called to send an JSONRPCException i.s.o. a JSONMessage...");
 			host.sendAsync(receiverUrl,
-					new JSONResponse((JSONRPCException) msg), this, tag);
+					new JSONResponse((JSONRPCException) message), this, tag);
 			return;
 		}
-		host.sendAsync(receiverUrl, msg, this, tag);
+		host.sendAsync(receiverUrl, message, this, tag);
+	}
+	
+	/**
+	 * The proxies handed out by createAgentProxy, per interface and url. The
+	 * least recently used proxy is dropped when more than MAXPROXIES are
+	 * cached, as agents may talk to an unbounded number of urls.
+	 */
+	private static final class ProxyCache extends
+			LinkedHashMap<String, AgentInterface> {
+		private static final long	serialVersionUID	= 1L;
+		
+		/**
+		 * Instantiates a new proxy cache, in access order.
+		 */
+		ProxyCache() {
+			super(16, 0.75f, true);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+		 */
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<String, AgentInterface> eldest) {
+			return size() > MAXPROXIES;
+		}
 	}
 }
@@ -55,6 +55,28 @@ public interface AgentBaseInterface extends JSONAuthorizor {
 			AsyncCallback<JSONResponse> callback, String tag)
 			throws IOException;
 	
+	/**
+	 * Send a message, like {@link #send(Object, URI, AsyncCallback, String)},
+	 * with a timeout of its own for the callback.
+	 * 
+	 * @param msg
+	 *            the message to deliver.
+	 * @param receiverUrl
+	 *            the receiver url
+	 * @param callback
+	 *            An optional JSONResponse callback.
+	 * @param tag
+	 *            If this is a reply on a tagged receive, pass back the tag
+	 * @param timeout
+	 *            the timeout of the callback in milliseconds, the default
+	 *            timeout is used if not positive
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	void send(Object msg, URI receiverUrl,
+			AsyncCallback<JSONResponse> callback, String tag, long timeout)
+			throws IOException;
+	
 	/**
 	 * This is the primary receive method of the agent. All incoming messages
 	 * are delivered through this method.
@@ -13,11 +13,16 @@ import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
 import com.almende.eve.agent.callback.AsyncCallbackQueue;
+import com.almende.eve.agent.callback.CallbackRegistry;
+import com.almende.eve.agent.callback.SingleFlight;
 import com.almende.eve.agent.system.AspectAgent;
 import com.almende.eve.agent.system.HostManagerAgent;
 import com.almende.eve.config.Config;
+import com.almende.eve.event.EventDispatcher;
 import com.almende.eve.event.EventsInterface;
+import com.almende.eve.event.SubscriptionIndex;
 import com.almende.eve.monitor.ResultMonitorFactoryInterface;
+import com.almende.eve.rpc.jsonrpc.ResultCache;
 import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.scheduler.SchedulerFactory;
 import com.almende.eve.state.StateFactory;
@@ -339,6 +344,24 @@ public abstract class AgentHost {
 	public abstract void sendAsync(final URI receiverUrl, final Object message,
 			final AgentInterface sender, final String tag) throws IOException;
 	
+	/**
+	 * Send a message to an agent, on the calling thread if its transport is
+	 * a SynchronousTransportService: an IOException then signals that the
+	 * message could not be delivered. Other transports send the message
+	 * asynchronously, like sendAsync.
+	 * 
+	 * @param receiverUrl
+	 *            the receiver url
+	 * @param message
+	 *            the message
+	 * @param sender
+	 *            the sender
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	public abstract void send(final URI receiverUrl, final Object message,
+			final AgentInterface sender) throws IOException;
+	
 	/**
 	 * Get the agentId from given agentUrl. The url can be any protocol. If the
 	 * url matches any of the registered transport services, an agentId is
@@ -538,6 +561,13 @@ public abstract class AgentHost {
 	 */
 	public abstract void setSchedulerFactory(SchedulerFactory schedulerFactory);
 	
+	/**
+	 * Get the scheduler factory.
+	 * 
+	 * @return the scheduler factory, null if not set
+	 */
+	public abstract SchedulerFactory getSchedulerFactory();
+	
 	/**
 	 * create a scheduler for an agent.
 	 * 
@@ -547,9 +577,61 @@ public abstract class AgentHost {
 	 */
 	public abstract Scheduler getScheduler(Agent agent);
 	
+	/**
+	 * Get the registry with the callback queues of the agents on this host.
+	 * 
+	 * @return the callback registry
+	 */
+	public abstract CallbackRegistry getCallbackRegistry();
+	
+	/**
+	 * Get the cache with the responses to recently received requests, used
+	 * to answer duplicate requests.
+	 * 
+	 * @return the idempotency cache, or null if duplicates aren't detected
+	 */
+	public abstract IdempotencyCache getIdempotencyCache();
+	
+	/**
+	 * Get the cache with the results of the Cacheable methods of an agent.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @param create
+	 *            create the cache if the agent doesn't have one yet
+	 * @return the result cache, null if not found and create is false
+	 */
+	public abstract ResultCache getResultCache(String agentId, boolean create);
+	
+	/**
+	 * Get the single-flight table, which coalesces identical outgoing calls
+	 * of the agents on this host.
+	 * 
+	 * @return the single-flight table, or null if calls aren't coalesced
+	 */
+	public abstract SingleFlight getSingleFlight();
+	
+	/**
+	 * Set the single-flight table, which coalesces identical outgoing calls
+	 * of the agents on this host.
+	 * 
+	 * @param flights
+	 *            the single-flight table, or null to stop coalescing calls
+	 */
+	public abstract void setSingleFlight(SingleFlight flights);
+	
+	/**
+	 * Set the cache with the responses to recently received requests.
+	 * 
+	 * @param cache
+	 *            the idempotency cache, or null to stop detecting duplicates
+	 */
+	public abstract void setIdempotencyCache(IdempotencyCache cache);
+	
 	/**
 	 * Get a callback storage service. This service keeps AsyncCallbacks in a
-	 * global accessible in-memory store.
+	 * global accessible in-memory store. The queue is kept until the agent
+	 * with the given id is deleted.
 	 * 
 	 * @param <T>
 	 *            the generic type
@@ -581,6 +663,27 @@ public abstract class AgentHost {
 	 */
 	public abstract EventsInterface getEventsFactory(AgentInterface agent);
 	
+	/**
+	 * Get the index of the subscriptions on the events of an agent, shared by
+	 * all instances of the agent.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @param create
+	 *            create the index if the agent doesn't have one yet
+	 * @return the subscription index, null if not found and create is false
+	 */
+	public abstract SubscriptionIndex getSubscriptionIndex(String agentId,
+			boolean create);
+	
+	/**
+	 * Gets the dispatcher sending the triggered events of the agents on this
+	 * host to their subscribers.
+	 * 
+	 * @return the event dispatcher
+	 */
+	public abstract EventDispatcher getEventDispatcher();
+	
 	/**
 	 * Utility method to get a single global threadpool, for efficient thread
 	 * sharing.
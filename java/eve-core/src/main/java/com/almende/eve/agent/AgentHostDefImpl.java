@@ -23,18 +23,29 @@ import java.util.logging.Logger;
 
 import com.almende.eve.agent.annotation.ThreadSafe;
 import com.almende.eve.agent.callback.AsyncCallbackQueue;
+import com.almende.eve.agent.callback.CallbackRegistry;
+import com.almende.eve.agent.callback.SingleFlight;
 import com.almende.eve.agent.system.AspectAgent;
 import com.almende.eve.agent.system.HostManagerAgent;
 import com.almende.eve.config.Config;
+import com.almende.eve.event.EventDispatcher;
 import com.almende.eve.event.EventsFactory;
 import com.almende.eve.event.EventsInterface;
+import com.almende.eve.event.LocalEventBus;
+import com.almende.eve.event.SubscriptionIndex;
 import com.almende.eve.monitor.ResultMonitorFactory;
 import com.almende.eve.monitor.ResultMonitorFactoryInterface;
+import com.almende.eve.rpc.jsonrpc.DispatchTable;
+import com.almende.eve.rpc.jsonrpc.Invoker;
+import com.almende.eve.rpc.jsonrpc.JSONRPC;
+import com.almende.eve.rpc.jsonrpc.ResultCache;
 import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.scheduler.SchedulerFactory;
+import com.almende.eve.scheduler.clock.VirtualClock;
 import com.almende.eve.state.State;
 import com.almende.eve.state.StateFactory;
 import com.almende.eve.state.TypedKey;
+import com.almende.eve.transport.SynchronousTransportService;
 import com.almende.eve.transport.TransportService;
 import com.almende.util.ClassUtil;
 import com.almende.util.ObjectCache;
@@ -50,7 +61,12 @@ public final class AgentHostDefImpl extends AgentHost {
 	private static final Logger																	LOG					= Logger.getLogger(AgentHostDefImpl.class
 																															.getSimpleName());
 	private final ConcurrentHashMap<String, TransportService>									transportServices	= new ConcurrentHashMap<String, TransportService>();
-	private final ConcurrentHashMap<String, AsyncCallbackQueue<?>>								callbacks			= new ConcurrentHashMap<String, AsyncCallbackQueue<?>>();
+	private final CallbackRegistry																callbacks			= new CallbackRegistry();
+	private volatile IdempotencyCache															idempotency			= null;
+	private final ConcurrentHashMap<String, ResultCache>										results				= new ConcurrentHashMap<String, ResultCache>();
+	private final ConcurrentHashMap<String, SubscriptionIndex>									subscriptions		= new ConcurrentHashMap<String, SubscriptionIndex>();
+	private volatile SingleFlight																flights				= null;
+	private final EventDispatcher																events				= new EventDispatcher();
 	private StateFactory																		stateFactory		= null;
 	private SchedulerFactory																	schedulerFactory	= null;
 	private Config																				config				= null;
@@ -68,6 +84,10 @@ public final class AgentHostDefImpl extends AgentHost {
 	 */
 	@Override
 	public ExecutorService getPool() {
+		final VirtualClock clock = VirtualClock.getInstance();
+		if (clock != null) {
+			return clock.track(pool);
+		}
 		return pool;
 	}
 	
@@ -94,6 +114,57 @@ public final class AgentHostDefImpl extends AgentHost {
 		host.setConfig(config);
 		if (config != null) {
 			ObjectCache.get(AGENTS).configCache(config);
+			final String invoker = config.get("rpc", "invoker");
+			if (invoker != null) {
+				try {
+					DispatchTable.setInvoker(Invoker.valueOf(invoker
+							.toUpperCase()));
+				} catch (final IllegalArgumentException e) {
+					LOG.log(Level.WARNING, "Unknown rpc.invoker '" + invoker
+							+ "', using " + DispatchTable.getInvoker(), e);
+				}
+			}
+			final Boolean parallelBatch = config.get("rpc", "parallel_batch");
+			if (parallelBatch != null) {
+				JSONRPC.setParallelBatch(parallelBatch);
+			}
+			// default callback timeout, in seconds
+			final Number timeout = config.get("rpc", "timeout");
+			if (timeout != null) {
+				AsyncCallbackQueue.setDefaultTimeout((long) (timeout
+						.doubleValue() * 1000));
+			}
+			// coalesce identical outgoing calls
+			final Boolean singleFlight = config.get("rpc", "single_flight");
+			if (singleFlight != null) {
+				flights = singleFlight ? new SingleFlight() : null;
+			}
+			// answer duplicate requests from a cache, window in seconds
+			final Number window = config.get("rpc", "idempotency", "window");
+			if (window != null) {
+				final Number size = config.get("rpc", "idempotency", "size");
+				idempotency = new IdempotencyCache(size != null ? size
+						.intValue() : 1000, (long) (window.doubleValue() * 1000));
+			}
+			// delivery of triggered events
+			final Number retries = config.get("events", "retries");
+			if (retries != null) {
+				events.setMaxRetries(retries.intValue());
+			}
+			final Number queueSize = config.get("events", "queue_size");
+			if (queueSize != null) {
+				events.setQueueSize(queueSize.intValue());
+			}
+			// first retry delay, in seconds
+			final Number retryDelay = config.get("events", "retry_delay");
+			if (retryDelay != null) {
+				events.setRetryDelay((long) (retryDelay.doubleValue() * 1000));
+			}
+			// deliver events to agents on this host in-process
+			final Boolean localBus = config.get("events", "local_bus");
+			if (localBus != null) {
+				events.setLocalBus(localBus);
+			}
 			// initialize all factories for state, transport, and scheduler
 			// important to initialize in the correct order: cache first,
 			// then the state and transport services, and lastly scheduler.
@@ -327,6 +398,13 @@ public final class AgentHostDefImpl extends AgentHost {
 				LOG.log(Level.WARNING, "Error deleting agent:" + agentId, e);
 			}
 		}
+		callbacks.remove(agentId);
+		final IdempotencyCache cache = idempotency;
+		if (cache != null) {
+			cache.remove(agentId);
+		}
+		results.remove(agentId);
+		subscriptions.remove(agentId);
 		// delete the state, even if the agent.destroy or agent.delete
 		// failed.
 		getStateFactory().delete(agentId);
@@ -425,7 +503,8 @@ public final class AgentHostDefImpl extends AgentHost {
 		final String receiverId = getAgentId(receiverUrl);
 		final String protocol = receiverUrl.getScheme();
 		if (("local".equals(protocol)) || (doesShortcut && receiverId != null)) {
-			// local shortcut
+			// local shortcut, the message object is handed over by reference,
+			// without serialization. (copy-on-write, see JSONMessage)
 			URI senderUri = null;
 			if (sender != null) {
 				senderUri = getSenderUrl(sender.getId(), receiverUrl);
@@ -451,6 +530,34 @@ public final class AgentHostDefImpl extends AgentHost {
 		}
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentHost#send(java.net.URI,
+	 * java.lang.Object, com.almende.eve.agent.AgentInterface)
+	 */
+	@Override
+	public void send(final URI receiverUrl, final Object message,
+			final AgentInterface sender) throws IOException {
+		final String receiverId = getAgentId(receiverUrl);
+		final String protocol = receiverUrl.getScheme();
+		if (("local".equals(protocol)) || (doesShortcut && receiverId != null)) {
+			sendAsync(receiverUrl, message, sender, null);
+			return;
+		}
+		final TransportService service = getTransportService(protocol);
+		if (service instanceof SynchronousTransportService) {
+			URI senderUri = null;
+			if (sender != null) {
+				senderUri = getSenderUrl(sender.getId(), receiverUrl);
+			}
+			((SynchronousTransportService) service).send(senderUri,
+					receiverUrl, message.toString());
+		} else {
+			sendAsync(receiverUrl, message, sender, null);
+		}
+	}
+	
 	// TODO: change to URI en create a protocol->transport map in agentHost
 	/*
 	 * (non-Javadoc)
@@ -774,6 +881,7 @@ public final class AgentHostDefImpl extends AgentHost {
 	public void addTransportService(final TransportService transportService) {
 		if (!transportServices.contains(transportService.getKey())) {
 			transportServices.put(transportService.getKey(), transportService);
+			clearLocalBus();
 			LOG.info("Registered transport service: "
 					+ transportService.toString());
 			if (host != null) {
@@ -795,6 +903,7 @@ public final class AgentHostDefImpl extends AgentHost {
 	@Override
 	public void removeTransportService(final TransportService transportService) {
 		transportServices.remove(transportService);
+		clearLocalBus();
 		LOG.info("Unregistered transport service "
 				+ transportService.toString());
 		host.signalAgents(new AgentSignal<TransportService>(
@@ -802,6 +911,17 @@ public final class AgentHostDefImpl extends AgentHost {
 		
 	}
 	
+	/**
+	 * Forget which urls are local to the event bus, as the urls of the agents
+	 * on this host changed.
+	 */
+	private void clearLocalBus() {
+		final LocalEventBus bus = events.getLocalBus();
+		if (bus != null) {
+			bus.clear();
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -849,6 +969,16 @@ public final class AgentHostDefImpl extends AgentHost {
 		return null;
 	}
 	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentHost#getSchedulerFactory()
+	 */
+	@Override
+	public SchedulerFactory getSchedulerFactory() {
+		return schedulerFactory;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -887,17 +1017,83 @@ public final class AgentHostDefImpl extends AgentHost {
 	 * java.lang.Class)
 	 */
 	@Override
-	public synchronized <T> AsyncCallbackQueue<T> getCallbackQueue(
-			final String id, final Class<T> clazz) {
-		// TODO: make this better!
-		final TypeUtil<AsyncCallbackQueue<T>> type = new TypeUtil<AsyncCallbackQueue<T>>() {
-		};
-		AsyncCallbackQueue<T> result = type.inject(callbacks.get(id));
-		if (result == null) {
-			result = new AsyncCallbackQueue<T>();
-			callbacks.put(id, result);
+	public <T> AsyncCallbackQueue<T> getCallbackQueue(final String id,
+			final Class<T> clazz) {
+		return callbacks.get(id);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentHost#getCallbackRegistry()
+	 */
+	@Override
+	public CallbackRegistry getCallbackRegistry() {
+		return callbacks;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentHost#getIdempotencyCache()
+	 */
+	@Override
+	public IdempotencyCache getIdempotencyCache() {
+		return idempotency;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentHost#getSingleFlight()
+	 */
+	@Override
+	public SingleFlight getSingleFlight() {
+		return flights;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.agent.AgentHost#setSingleFlight(com.almende.eve.agent
+	 * .callback.SingleFlight)
+	 */
+	@Override
+	public void setSingleFlight(final SingleFlight flights) {
+		this.flights = flights;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentHost#getResultCache(java.lang.String,
+	 * boolean)
+	 */
+	@Override
+	public ResultCache getResultCache(final String agentId,
+			final boolean create) {
+		ResultCache cache = results.get(agentId);
+		if (cache == null && create) {
+			cache = new ResultCache();
+			final ResultCache old = results.putIfAbsent(agentId, cache);
+			if (old != null) {
+				cache = old;
+			}
 		}
-		return result;
+		return cache;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.agent.AgentHost#setIdempotencyCache(com.almende.eve.agent
+	 * .IdempotencyCache)
+	 */
+	@Override
+	public void setIdempotencyCache(final IdempotencyCache cache) {
+		idempotency = cache;
 	}
 	
 	/*
@@ -965,4 +1161,36 @@ public final class AgentHostDefImpl extends AgentHost {
 	public EventsInterface getEventsFactory(final AgentInterface agent) {
 		return new EventsFactory(agent);
 	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.agent.AgentHost#getSubscriptionIndex(java.lang.String,
+	 * boolean)
+	 */
+	@Override
+	public SubscriptionIndex getSubscriptionIndex(final String agentId,
+			final boolean create) {
+		SubscriptionIndex index = subscriptions.get(agentId);
+		if (index == null && create) {
+			index = new SubscriptionIndex();
+			final SubscriptionIndex old = subscriptions.putIfAbsent(agentId,
+					index);
+			if (old != null) {
+				index = old;
+			}
+		}
+		return index;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.agent.AgentHost#getEventDispatcher()
+	 */
+	@Override
+	public EventDispatcher getEventDispatcher() {
+		return events;
+	}
 }
@@ -7,10 +7,12 @@ import java.util.List;
 
 import com.almende.eve.agent.annotation.Namespace;
 import com.almende.eve.agent.callback.AsyncCallback;
+import com.almende.eve.agent.callback.CallbackFuture;
 import com.almende.eve.event.EventsInterface;
 import com.almende.eve.monitor.ResultMonitorFactoryInterface;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.state.State;
 import com.almende.eve.state.TypedKey;
@@ -320,6 +322,24 @@ public interface AgentInterface extends AgentBaseInterface {
 	 */
 	void send(URI url, String method) throws IOException, JSONRPCException;
 	
+	/**
+	 * Send a JSON-RPC 2.0 batch of requests to another agent, as a single
+	 * message, and wait for all responses. Failed entries are returned as
+	 * responses containing the error, notifications get no response.
+	 * Requests sent while handling a request inherit its deadline.
+	 * 
+	 * @param url
+	 *            the url
+	 * @param requests
+	 *            the requests
+	 * @return the responses to the requests which aren't notifications, in
+	 *         request order
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	List<JSONResponse> sendBatch(URI url, List<JSONRequest> requests)
+			throws IOException;
+	
 	/**
 	 * Do an asynchronous RPC call to another agent.
 	 * 
@@ -443,7 +463,91 @@ public interface AgentInterface extends AgentBaseInterface {
 			throws IOException;
 	
 	/**
-	 * Do a RPC call to another agent, expecting no result (void).
+	 * Do an asynchronous RPC call to another agent. The returned future is
+	 * completed by the response, no thread is blocked while waiting for it.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param url
+	 *            the url
+	 * @param method
+	 *            the method
+	 * @param params
+	 *            the params
+	 * @param type
+	 *            the type of the result
+	 * @return the future result
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	<T> CallbackFuture<T> call(URI url, String method, ObjectNode params,
+			Class<T> type) throws IOException;
+	
+	/**
+	 * Do an asynchronous RPC call to another agent. The returned future is
+	 * completed by the response, no thread is blocked while waiting for it.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param url
+	 *            the url
+	 * @param method
+	 *            the method
+	 * @param params
+	 *            the params
+	 * @param type
+	 *            the type of the result
+	 * @return the future result
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	<T> CallbackFuture<T> call(URI url, String method, ObjectNode params,
+			Type type) throws IOException;
+	
+	/**
+	 * Do an asynchronous RPC call to another agent. The returned future is
+	 * completed by the response, no thread is blocked while waiting for it.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param url
+	 *            the url
+	 * @param request
+	 *            the request
+	 * @param type
+	 *            the type of the result
+	 * @return the future result
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	<T> CallbackFuture<T> call(URI url, JSONRequest request, JavaType type)
+			throws IOException;
+	
+	/**
+	 * Do an asynchronous RPC call to another agent. The returned future fails
+	 * with a TimeoutException if no response is received within the given
+	 * timeout.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param url
+	 *            the url
+	 * @param request
+	 *            the request
+	 * @param type
+	 *            the type of the result
+	 * @param timeout
+	 *            the timeout in milliseconds
+	 * @return the future result
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	<T> CallbackFuture<T> call(URI url, JSONRequest request, JavaType type,
+			long timeout) throws IOException;
+	
+	/**
+	 * Send a JSON-RPC 2.0 notification to another agent: no result (void),
+	 * and no response or error will be sent back.
 	 * 
 	 * @param url
 	 *            the url
@@ -458,7 +562,8 @@ public interface AgentInterface extends AgentBaseInterface {
 			throws IOException;
 	
 	/**
-	 * Do a RPC call to another agent, expecting no result (void).
+	 * Send a JSON-RPC 2.0 notification to another agent: no result (void),
+	 * and no response or error will be sent back.
 	 * 
 	 * @param url
 	 *            the url
@@ -5,79 +5,193 @@
 package com.almende.eve.agent;
 
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
 import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
+import com.almende.eve.agent.callback.CallbackFuture;
 import com.almende.eve.agent.callback.SyncCallback;
 import com.almende.eve.rpc.jsonrpc.JSONRPC;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException.CODE;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.util.TypeUtil;
+import com.fasterxml.jackson.databind.JavaType;
 
 /**
  * A factory for creating AgentProxy objects.
  */
 public class AgentProxyFactory {
+	private static final ConcurrentHashMap<Class<?>, Constructor<?>>	CONSTRUCTORS	= new ConcurrentHashMap<Class<?>, Constructor<?>>();
 	
 	/**
 	 * Gen proxy.
 	 * 
 	 * @param <T>
 	 *            the generic type
-	 * @param sender 
+	 * @param sender
+	 *            the sender
 	 * @param receiverUrl
 	 *            the receiver url
 	 * @param agentInterface
 	 *            the agent interface
 	 * @return the t
 	 */
-	@SuppressWarnings("unchecked")
 	public <T extends AgentInterface> T genProxy(final AgentInterface sender,
 			final URI receiverUrl, final Class<T> agentInterface) {
-		// http://docs.oracle.com/javase/1.4.2/docs/guide/reflection/proxy.html
-		final T proxy = (T) Proxy.newProxyInstance(
-				agentInterface.getClassLoader(),
-				new Class[] { agentInterface }, new InvocationHandler() {
-					
-					@Override
-					public Object invoke(final Object proxy,
-							final Method method, final Object[] args)
-							throws JSONRPCException, IOException {
-						
-						final JSONRequest request = JSONRPC.createRequest(
-								method, args);
-						
-						final SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
-						try {
-							sender.send(request, receiverUrl, callback, null);
-						} catch (final IOException e1) {
-							throw new JSONRPCException(CODE.REMOTE_EXCEPTION,
-									"", e1);
-						}
-						
-						JSONResponse response;
-						try {
-							response = callback.get();
-						} catch (final Exception e) {
-							throw new JSONRPCException(CODE.REMOTE_EXCEPTION,
-									"", e);
-						}
-						final JSONRPCException err = response.getError();
-						if (err != null) {
-							throw err;
-						} else if (response.getResult() != null
-								&& !method.getReturnType().equals(Void.TYPE)) {
-							return TypeUtil.inject(response.getResult(),
-									method.getGenericReturnType());
-						} else {
-							return null;
-						}
-					}
-				});
-		return proxy;
+		try {
+			return agentInterface.cast(getConstructor(agentInterface)
+					.newInstance(
+							new ProxyHandler(sender, receiverUrl,
+									agentInterface)));
+		} catch (final Exception e) {
+			throw new IllegalArgumentException("Can't create proxy for "
+					+ agentInterface.getName(), e);
+		}
+	}
+	
+	/**
+	 * Get the (cached) constructor of the proxy class of the given interface.
+	 * 
+	 * @param agentInterface
+	 *            the agent interface
+	 * @return the constructor
+	 * @throws NoSuchMethodException
+	 *             the no such method exception
+	 */
+	private static Constructor<?> getConstructor(final Class<?> agentInterface)
+			throws NoSuchMethodException {
+		Constructor<?> constructor = CONSTRUCTORS.get(agentInterface);
+		if (constructor == null) {
+			// http://docs.oracle.com/javase/1.4.2/docs/guide/reflection/proxy.html
+			constructor = Proxy.getProxyClass(agentInterface.getClassLoader(),
+					new Class[] { agentInterface }).getConstructor(
+					InvocationHandler.class);
+			CONSTRUCTORS.putIfAbsent(agentInterface, constructor);
+		}
+		return constructor;
+	}
+	
+	/**
+	 * InvocationHandler which sends each call as JSONRequest to the receiver.
+	 * Methods returning a Future are called asynchronously, the methods of
+	 * java.lang.Object are handled locally.
+	 */
+	private static class ProxyHandler implements InvocationHandler {
+		private final AgentInterface	sender;
+		private final URI				receiverUrl;
+		private final Class<?>			agentInterface;
+		
+		/**
+		 * Instantiates a new proxy handler.
+		 * 
+		 * @param sender
+		 *            the sender
+		 * @param receiverUrl
+		 *            the receiver url
+		 * @param agentInterface
+		 *            the agent interface
+		 */
+		ProxyHandler(final AgentInterface sender, final URI receiverUrl,
+				final Class<?> agentInterface) {
+			this.sender = sender;
+			this.receiverUrl = receiverUrl;
+			this.agentInterface = agentInterface;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+		 * java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(final Object proxy, final Method method,
+				final Object[] args) throws JSONRPCException, IOException {
+			if (method.getDeclaringClass() == Object.class) {
+				return invokeLocal(proxy, method, args);
+			}
+			
+			final JSONRequest request = JSONRPC.createRequest(method, args);
+			
+			final Class<?> returnType = method.getReturnType();
+			if (Future.class.isAssignableFrom(returnType)
+					&& returnType.isAssignableFrom(CallbackFuture.class)) {
+				// asynchronous method: return the future without waiting
+				return sender.call(receiverUrl, request,
+						getFutureType(method));
+			}
+			
+			final SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+			try {
+				sender.send(request, receiverUrl, callback, null);
+			} catch (final IOException e1) {
+				throw new JSONRPCException(CODE.REMOTE_EXCEPTION, "", e1);
+			}
+			
+			JSONResponse response;
+			try {
+				response = callback.get();
+			} catch (final Exception e) {
+				throw new JSONRPCException(CODE.REMOTE_EXCEPTION, "", e);
+			}
+			final JSONRPCException err = response.getError();
+			if (err != null) {
+				throw err;
+			} else if (response.getResult() != null
+					&& !method.getReturnType().equals(Void.TYPE)) {
+				return TypeUtil.inject(response.getResult(),
+						method.getGenericReturnType());
+			} else {
+				return null;
+			}
+		}
+		
+		/**
+		 * Get the result type of a method returning a Future.
+		 * 
+		 * @param method
+		 *            the method
+		 * @return the result type
+		 */
+		private JavaType getFutureType(final Method method) {
+			final Type type = method.getGenericReturnType();
+			if (type instanceof ParameterizedType) {
+				return JOM.getTypeFactory().constructType(
+						((ParameterizedType) type).getActualTypeArguments()[0]);
+			}
+			return JOM.getTypeFactory().constructType(Object.class);
+		}
+		
+		/**
+		 * Handle equals, hashCode and toString without a remote call.
+		 * 
+		 * @param proxy
+		 *            the proxy
+		 * @param method
+		 *            the method
+		 * @param args
+		 *            the args
+		 * @return the object
+		 */
+		private Object invokeLocal(final Object proxy, final Method method,
+				final Object[] args) {
+			final String name = method.getName();
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+			return "Proxy of " + agentInterface.getName() + " at "
+					+ receiverUrl;
+		}
 	}
 }
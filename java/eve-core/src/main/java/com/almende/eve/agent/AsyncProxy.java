@@ -9,12 +9,13 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import com.almende.eve.config.Config;
 import com.almende.util.ClassUtil;
 
 /**
@@ -22,15 +23,19 @@ import com.almende.util.ClassUtil;
  * 
  * @deprecated This method leads to an unnecessary complex setup, without the
  *             benefit of compile time checking and a strange non-blocking over
- *             blocking approach.
+ *             blocking approach. Use a proxy interface with methods
+ *             returning a Future instead, see
+ *             {@link AgentInterface#createAgentProxy(java.net.URI, Class)}.
  * @param <T>
  *            the generic type
  * @author ludo
  */
 @Deprecated
 public class AsyncProxy<T> {
-	private final ScheduledExecutorService	pool	= Executors
-															.newScheduledThreadPool(50);
+	// shared by all instances, instead of a 50 thread pool per proxy
+	private static final ExecutorService	POOL	= Executors
+															.newCachedThreadPool(Config
+																	.getThreadFactory());
 	private final T							proxy;
 	
 	/**
@@ -65,7 +70,7 @@ public class AsyncProxy<T> {
 		final Method method = ClassUtil.searchForMethod(proxy.getClass(),
 				functionName, classes.toArray(new Class[0]));
 		
-		return new DecoratedFuture(pool.submit(new Callable<Object>() {
+		return new DecoratedFuture(POOL.submit(new Callable<Object>() {
 			@Override
 			public Object call() throws IllegalAccessException,
 					InvocationTargetException {
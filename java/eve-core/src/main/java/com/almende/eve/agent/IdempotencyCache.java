@@ -0,0 +1,278 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+
+/**
+ * Cache of the responses to recently received requests, keyed on the sender,
+ * the JSON-RPC id, the method and a hash of the params of the request. Ids
+ * alone aren't unique: some clients use the same id for every call, and web
+ * senders share an url. A request which is received again
+ * within the window (e.g. retried by its sender after a lost response) is
+ * answered from the cache instead of being invoked a second time. A duplicate
+ * of a request which is still running gets the response as soon as the
+ * original finishes.
+ * 
+ * Each agent has its own window, bounded in the number of requests it
+ * remembers. The window of an agent is dropped when the agent is deleted.
+ */
+public class IdempotencyCache {
+	/** Marker returned for a duplicate of a request which is still running. */
+	static final JSONResponse						PENDING		= new JSONResponse();
+	private final ConcurrentHashMap<String, Window>	windows		= new ConcurrentHashMap<String, Window>();
+	private final int								size;
+	private final long								window;
+	private final AtomicLong						hits		= new AtomicLong();
+	private final AtomicLong						misses		= new AtomicLong();
+	
+	/**
+	 * Instantiates a new idempotency cache.
+	 * 
+	 * @param size
+	 *            the maximum number of requests remembered per agent
+	 * @param window
+	 *            how long a response is remembered, in milliseconds
+	 */
+	public IdempotencyCache(final int size, final long window) {
+		if (size <= 0 || window <= 0) {
+			throw new IllegalArgumentException(
+					"Size and window of the idempotency cache must be positive");
+		}
+		this.size = size;
+		this.window = window;
+	}
+	
+	/**
+	 * Register an incoming request.
+	 * 
+	 * @param owner
+	 *            the receiving agent
+	 * @param key
+	 *            the key of the request, see getKey()
+	 * @param tag
+	 *            the transport tag of the request
+	 * @return null if the request is new and has to be invoked, PENDING if
+	 *         it is a duplicate of a running request (the tag will be handed
+	 *         out by complete()), or the cached response
+	 */
+	JSONResponse begin(final String owner, final String key, final String tag) {
+		while (true) {
+			final Window requests = getOrCreate(owner);
+			synchronized (requests) {
+				if (requests.retired) {
+					windows.remove(owner, requests);
+					continue;
+				}
+				final long now = System.currentTimeMillis();
+				requests.expire(now);
+				final Request request = requests.get(key);
+				if (request == null) {
+					misses.incrementAndGet();
+					requests.put(key, new Request());
+					return null;
+				}
+				hits.incrementAndGet();
+				if (request.response == null) {
+					request.waiting.add(tag);
+					return PENDING;
+				}
+				return request.response;
+			}
+		}
+	}
+	
+	/**
+	 * Store the response of a request registered with begin().
+	 * 
+	 * @param owner
+	 *            the receiving agent
+	 * @param key
+	 *            the key of the request, as passed to begin()
+	 * @param response
+	 *            the response
+	 * @return the tags of the duplicates which are waiting for this response
+	 */
+	List<String> complete(final String owner, final String key,
+			final JSONResponse response) {
+		final Window requests = windows.get(owner);
+		if (requests == null) {
+			return Collections.emptyList();
+		}
+		synchronized (requests) {
+			final Request request = requests.get(key);
+			if (request == null || request.response != null) {
+				// evicted in the meantime
+				return Collections.emptyList();
+			}
+			request.response = response;
+			request.expires = System.currentTimeMillis() + window;
+			return request.waiting;
+		}
+	}
+	
+	/**
+	 * Forget the requests of the given agent.
+	 * 
+	 * @param owner
+	 *            the agent
+	 */
+	public void remove(final String owner) {
+		final Window requests = windows.remove(owner);
+		if (requests != null) {
+			synchronized (requests) {
+				requests.retired = true;
+			}
+		}
+	}
+	
+	/**
+	 * Number of agents which have a window in this cache.
+	 * 
+	 * @return the number of windows
+	 */
+	public int size() {
+		return windows.size();
+	}
+	
+	/**
+	 * Gets the maximum number of requests remembered per agent.
+	 * 
+	 * @return the size
+	 */
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * Gets how long a response is remembered.
+	 * 
+	 * @return the window in milliseconds
+	 */
+	public long getWindow() {
+		return window;
+	}
+	
+	/**
+	 * Number of duplicate requests, answered from the cache.
+	 * 
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * Number of new requests.
+	 * 
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * Fraction of the received requests that were duplicates.
+	 * 
+	 * @return the hit rate, between 0 and 1
+	 */
+	public double getHitRate() {
+		final long h = hits.get();
+		final long total = h + misses.get();
+		return total > 0 ? (double) h / total : 0;
+	}
+	
+	/**
+	 * Get the window of the given agent, creating it if needed.
+	 * 
+	 * @param owner
+	 *            the agent
+	 * @return the window
+	 */
+	private Window getOrCreate(final String owner) {
+		Window requests = windows.get(owner);
+		if (requests == null) {
+			requests = new Window();
+			final Window old = windows.putIfAbsent(owner, requests);
+			if (old != null) {
+				requests = old;
+			}
+		}
+		return requests;
+	}
+	
+	/**
+	 * Gets the key of a request. Taken before the request is invoked, as the
+	 * hash of its params may change once they are parsed.
+	 * 
+	 * @param sender
+	 *            the sender
+	 * @param request
+	 *            the request
+	 * @return the key
+	 */
+	static String getKey(final URI sender, final JSONRequest request) {
+		return sender + " " + request.getId() + " " + request.getMethod() + " "
+				+ Long.toHexString(request.getParamsHash());
+	}
+	
+	/**
+	 * A remembered request.
+	 */
+	private static final class Request {
+		private JSONResponse		response	= null;
+		private long				expires		= 0;
+		private final List<String>	waiting		= new ArrayList<String>(1);
+	}
+	
+	/**
+	 * The requests of one agent, in order of arrival. The oldest request is
+	 * evicted when the window is full.
+	 */
+	private final class Window extends LinkedHashMap<String, Request> {
+		private static final long	serialVersionUID	= 1L;
+		private boolean				retired				= false;
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+		 */
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<String, Request> eldest) {
+			return size() > IdempotencyCache.this.size;
+		}
+		
+		/**
+		 * Drop the answered requests at the head of the window which have
+		 * expired.
+		 * 
+		 * @param now
+		 *            the current time
+		 */
+		void expire(final long now) {
+			final Iterator<Request> iter = values().iterator();
+			while (iter.hasNext()) {
+				final Request request = iter.next();
+				if (request.response == null || request.expires > now) {
+					break;
+				}
+				iter.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent;
+
+import java.lang.reflect.Type;
+import java.util.Set;
+
+import com.almende.eve.rpc.jsonrpc.ResultCache;
+import com.almende.eve.state.State;
+import com.almende.eve.state.TypedKey;
+import com.almende.util.TypeUtil;
+import com.fasterxml.jackson.databind.JavaType;
+
+/**
+ * State of an agent with cacheable methods: every change of the state
+ * invalidates the result cache of the agent. Keys starting with an underscore
+ * are kept by the framework (scheduler tasks, event subscriptions, monitors),
+ * changing them doesn't invalidate the cache. Changes made to the underlying
+ * state directly (e.g. by another host) are not seen.
+ */
+final class InvalidatingState implements State {
+	private final State		state;
+	private final AgentHost	host;
+	
+	/**
+	 * Instantiates a new invalidating state.
+	 * 
+	 * @param state
+	 *            the underlying state
+	 * @param host
+	 *            the host keeping the result cache
+	 */
+	InvalidatingState(final State state, final AgentHost host) {
+		this.state = state;
+		this.host = host;
+	}
+	
+	/**
+	 * Invalidate the result cache, if the agent has one.
+	 */
+	private void invalidate() {
+		final ResultCache cache = host.getResultCache(state.getAgentId(),
+				false);
+		if (cache != null) {
+			cache.invalidate();
+		}
+	}
+	
+	/**
+	 * Invalidate the result cache when the given key changes, unless it is a
+	 * framework key.
+	 * 
+	 * @param key
+	 *            the key
+	 */
+	private void invalidate(final String key) {
+		if (key == null || !key.startsWith("_")) {
+			invalidate();
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#init()
+	 */
+	@Override
+	public void init() {
+		state.init();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#destroy()
+	 */
+	@Override
+	public void destroy() {
+		state.destroy();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#getAgentId()
+	 */
+	@Override
+	public String getAgentId() {
+		return state.getAgentId();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#setAgentType(java.lang.Class)
+	 */
+	@Override
+	public void setAgentType(final Class<?> agentType) {
+		state.setAgentType(agentType);
+		invalidate();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#getAgentType()
+	 */
+	@Override
+	public Class<?> getAgentType() throws ClassNotFoundException {
+		return state.getAgentType();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#put(java.lang.String, java.lang.Object)
+	 */
+	@Override
+	public Object put(final String key, final Object value) {
+		final Object result = state.put(key, value);
+		invalidate(key);
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#remove(java.lang.String)
+	 */
+	@Override
+	public Object remove(final String key) {
+		final Object result = state.remove(key);
+		invalidate(key);
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#putIfUnchanged(java.lang.String,
+	 * java.lang.Object, java.lang.Object)
+	 */
+	@Override
+	public boolean putIfUnchanged(final String key, final Object newVal,
+			final Object oldVal) {
+		final boolean result = state.putIfUnchanged(key, newVal, oldVal);
+		if (result) {
+			invalidate(key);
+		}
+		return result;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#containsKey(java.lang.String)
+	 */
+	@Override
+	public boolean containsKey(final String key) {
+		return state.containsKey(key);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#keySet()
+	 */
+	@Override
+	public Set<String> keySet() {
+		return state.keySet();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#clear()
+	 */
+	@Override
+	public void clear() {
+		state.clear();
+		invalidate();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#size()
+	 */
+	@Override
+	public int size() {
+		return state.size();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#get(java.lang.String, java.lang.Class)
+	 */
+	@Override
+	public <T> T get(final String key, final Class<T> type) {
+		return state.get(key, type);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#get(java.lang.String,
+	 * java.lang.reflect.Type)
+	 */
+	@Override
+	public <T> T get(final String key, final Type type) {
+		return state.get(key, type);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#get(java.lang.String,
+	 * com.fasterxml.jackson.databind.JavaType)
+	 */
+	@Override
+	public <T> T get(final String key, final JavaType type) {
+		return state.get(key, type);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#get(java.lang.String,
+	 * com.almende.util.TypeUtil)
+	 */
+	@Override
+	public <T> T get(final String key, final TypeUtil<T> type) {
+		return state.get(key, type);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.state.State#get(com.almende.eve.state.TypedKey)
+	 */
+	@Override
+	public <T> T get(final TypedKey<T> key) {
+		return state.get(key);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return state.toString();
+	}
+}
@@ -4,14 +4,13 @@
  */
 package com.almende.eve.agent.callback;
 
-import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.almende.eve.config.Config;
+import com.almende.eve.agent.callback.TimeoutWheel.Timeout;
 
 /**
  * Queue to hold a list with callbacks in progress.
@@ -21,15 +20,38 @@ import com.almende.eve.config.Config;
  *            the generic type
  */
 public class AsyncCallbackQueue<T> {
-	private final Map<Object, CallbackHandler>	queue		= new ConcurrentHashMap<Object, CallbackHandler>();
-	private static ScheduledThreadPoolExecutor		scheduler	= new ScheduledThreadPoolExecutor(1,Config.getThreadFactory());
-	static {
-		scheduler.setRemoveOnCancelPolicy(true);
+	private static final AtomicLong							PUSHED			= new AtomicLong();
+	private static final AtomicLong							TIMEDOUT		= new AtomicLong();
+	/** default timeout in milliseconds */
+	private static volatile long							defaultTimeout	= 30000;
+	private final ConcurrentMap<Object, CallbackHandler>	queue			= new ConcurrentHashMap<Object, CallbackHandler>();
+	private boolean											retired			= false;
+	private boolean											pinned			= false;
+	private long											uses			= 0;
+	private boolean											idleCheck		= false;
+	private final CallbackRegistry							registry;
+	private final String									owner;
+	
+	/**
+	 * Instantiates a new async callback queue.
+	 */
+	public AsyncCallbackQueue() {
+		this(null, null);
+	}
+	
+	/**
+	 * Instantiates a new async callback queue, held by a registry.
+	 * 
+	 * @param registry
+	 *            the registry
+	 * @param owner
+	 *            the owner of this queue in the registry
+	 */
+	AsyncCallbackQueue(final CallbackRegistry registry, final String owner) {
+		this.registry = registry;
+		this.owner = owner;
 	}
-	/** timeout in seconds */
-	private int									timeout		= 30;
 	
-	// TODO: make the timeout customizable in eve.yaml
 	/**
 	 * Append a callback to the queue.
 	 * 
@@ -43,32 +65,143 @@ public class AsyncCallbackQueue<T> {
 	 * @param id
 	 *            the id
 	 * @param description
-	 *            the description
+	 *            the description, only converted to a String when the
+	 *            timeout actually occurs. This allows passing the message
+	 *            itself, without serializing it upfront.
 	 * @param callback
 	 *            the callback
 	 */
-	public void push(final Object id, final String description,
+	public void push(final Object id, final Object description,
 			final AsyncCallback<T> callback) {
-		if (queue.containsKey(id)) {
-			throw new IllegalStateException("Callback with id '" + id
-					+ "' already in queue");
+		push(id, description, callback, defaultTimeout);
+	}
+	
+	/**
+	 * Append a callback to the queue, with its own timeout.
+	 * 
+	 * @param id
+	 *            the id
+	 * @param description
+	 *            the description, only converted to a String when the
+	 *            timeout actually occurs.
+	 * @param callback
+	 *            the callback
+	 * @param timeout
+	 *            the timeout in milliseconds, the default timeout is used if
+	 *            not positive
+	 * @see #push(Object, Object, AsyncCallback)
+	 */
+	public void push(final Object id, final Object description,
+			final AsyncCallback<T> callback, final long timeout) {
+		if (!offer(id, description, callback, timeout)) {
+			throw new IllegalStateException("Callback queue is retired");
+		}
+	}
+	
+	/**
+	 * Append a callback to the queue, unless the queue has been retired.
+	 * 
+	 * @param id
+	 *            the id
+	 * @param description
+	 *            the description
+	 * @param callback
+	 *            the callback
+	 * @param timeout
+	 *            the timeout in milliseconds
+	 * @return true, if the callback was added
+	 * @see #push(Object, Object, AsyncCallback, long)
+	 */
+	boolean offer(final Object id, final Object description,
+			final AsyncCallback<T> callback, final long timeout) {
+		final CallbackHandler handler = new CallbackHandler(callback);
+		synchronized (this) {
+			if (retired) {
+				return false;
+			}
+			if (queue.putIfAbsent(id, handler) != null) {
+				throw new IllegalStateException("Callback with id '" + id
+						+ "' already in queue");
+			}
+			uses++;
 		}
+		PUSHED.incrementAndGet();
 		
-		final AsyncCallbackQueue<T> me = this;
-		final CallbackHandler handler = new CallbackHandler();
-		handler.callback = callback;
-		handler.timeout = scheduler.schedule(new Runnable() {
+		handler.timeout = TimeoutWheel.schedule(new Runnable() {
 			@Override
 			public void run() {
-				final AsyncCallback<T> callback = me.pull(id);
-				if (callback != null) {
-					callback.onFailure(new TimeoutException(
+				if (queue.remove(id, handler)) {
+					TIMEDOUT.incrementAndGet();
+					idle();
+					handler.callback.onFailure(new TimeoutException(
 							"Timeout occurred for request with id '" + id
 									+ "': " + description));
 				}
 			}
-		}, timeout, TimeUnit.SECONDS);
-		queue.put(id, handler);
+		}, timeout > 0 ? timeout : defaultTimeout);
+		return true;
+	}
+	
+	/**
+	 * Retire this queue if it is empty and not pinned: no callbacks can be
+	 * added anymore, and the queue can be dropped from its registry.
+	 * 
+	 * @return true, if retired
+	 */
+	synchronized boolean retire() {
+		if (!retired && !pinned && queue.isEmpty()) {
+			retired = true;
+		}
+		return retired;
+	}
+	
+	/**
+	 * Called when this queue may have run empty. A queue held by a registry
+	 * is kept for the next calls of its owner: it is only retired and dropped
+	 * once it has stayed empty and unused for the idle time of the registry.
+	 */
+	void idle() {
+		if (registry == null) {
+			return;
+		}
+		final long idle = registry.getIdleTime();
+		final long mark;
+		synchronized (this) {
+			if (idle <= 0) {
+				if (retire()) {
+					registry.drop(owner, this);
+				}
+				return;
+			}
+			if (idleCheck || pinned || retired || !queue.isEmpty()) {
+				return;
+			}
+			idleCheck = true;
+			mark = uses;
+		}
+		TimeoutWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				final boolean drop;
+				synchronized (AsyncCallbackQueue.this) {
+					idleCheck = false;
+					drop = uses == mark && retire();
+				}
+				if (drop) {
+					registry.drop(owner, AsyncCallbackQueue.this);
+				} else {
+					// used in the meantime, check again if it's still empty
+					idle();
+				}
+			}
+		}, idle);
+	}
+	
+	/**
+	 * Pin this queue: it won't be retired when it runs empty.
+	 */
+	synchronized void pin() {
+		pinned = true;
 	}
 	
 	/**
@@ -83,30 +216,115 @@ public class AsyncCallbackQueue<T> {
 	public AsyncCallback<T> pull(final Object id) {
 		final CallbackHandler handler = queue.remove(id);
 		if (handler != null) {
-			// stop the timeout
-			handler.timeout.cancel(true);
-			handler.timeout = null;
+			handler.cancel();
 			return handler.callback;
 		}
 		return null;
 	}
 	
 	/**
-	 * Remove all callbacks from the queue.
+	 * Remove all callbacks from the queue, their onFailure is called with a
+	 * CancellationException. The callbacks of other queues are not affected.
+	 */
+	public void clear() {
+		for (final Object id : queue.keySet()) {
+			final CallbackHandler handler = queue.remove(id);
+			if (handler != null) {
+				handler.cancel();
+				handler.callback.onFailure(new CancellationException(
+						"Callback queue cleared, request with id '" + id
+								+ "' cancelled"));
+			}
+		}
+	}
+	
+	/**
+	 * Retire this queue, even if it isn't empty, and clear it. Callbacks
+	 * offered afterwards are refused.
+	 * 
+	 * @see #clear()
+	 */
+	void close() {
+		synchronized (this) {
+			retired = true;
+		}
+		clear();
+	}
+	
+	/**
+	 * Get the number of callbacks in this queue.
+	 * 
+	 * @return the size
 	 */
-	public synchronized void clear() {
-		queue.clear();
-		scheduler.shutdownNow();
-		scheduler = new ScheduledThreadPoolExecutor(1,Config.getThreadFactory());
-		scheduler.setRemoveOnCancelPolicy(true);
+	public int size() {
+		return queue.size();
+	}
+	
+	/**
+	 * Get the default timeout.
+	 * 
+	 * @return the default timeout in milliseconds
+	 */
+	public static long getDefaultTimeout() {
+		return defaultTimeout;
+	}
+	
+	/**
+	 * Set the default timeout, used for all callbacks pushed without a
+	 * timeout of their own.
+	 * 
+	 * @param timeout
+	 *            the new default timeout in milliseconds
+	 */
+	public static void setDefaultTimeout(final long timeout) {
+		defaultTimeout = timeout;
+	}
+	
+	/**
+	 * Get the total number of callbacks pushed in all queues.
+	 * 
+	 * @return the pushed count
+	 */
+	public static long getPushedCount() {
+		return PUSHED.get();
+	}
+	
+	/**
+	 * Get the total number of callbacks that have timed out in all queues.
+	 * Together with {@link #getPushedCount()} this gives the timeout rate.
+	 * 
+	 * @return the timed out count
+	 */
+	public static long getTimedOutCount() {
+		return TIMEDOUT.get();
 	}
 	
 	/**
 	 * Helper class to store a callback and its timeout task.
 	 */
 	private class CallbackHandler {
-		private AsyncCallback<T>	callback;
-		private ScheduledFuture<?>	timeout;
+		private final AsyncCallback<T>	callback;
+		private volatile Timeout		timeout;
+		
+		/**
+		 * Instantiates a new callback handler.
+		 * 
+		 * @param callback
+		 *            the callback
+		 */
+		CallbackHandler(final AsyncCallback<T> callback) {
+			this.callback = callback;
+		}
+		
+		/**
+		 * Stop the timeout.
+		 */
+		void cancel() {
+			final Timeout t = timeout;
+			if (t != null) {
+				t.cancel();
+			}
+		}
 	}
 	
 }
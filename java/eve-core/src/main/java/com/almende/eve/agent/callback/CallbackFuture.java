@@ -0,0 +1,210 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent.callback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Future which is completed through its AsyncCallback methods. Callbacks can
+ * be added to get notified of the outcome, which allows remote calls to be
+ * chained without blocking a thread while waiting for the response.
+ * 
+ * @param <T>
+ *            the generic type
+ */
+public class CallbackFuture<T> implements Future<T>, AsyncCallback<T> {
+	private static final Logger		LOG			= Logger.getLogger(CallbackFuture.class
+														.getName());
+	private List<AsyncCallback<T>>	callbacks	= new ArrayList<AsyncCallback<T>>(
+														1);
+	private T						result		= null;
+	private Exception				exception	= null;
+	private boolean					done		= false;
+	private boolean					cancelled	= false;
+	
+	/**
+	 * Add a callback which will be called once this future is completed. If
+	 * the future is already completed, the callback is called immediately
+	 * from the calling thread, otherwise from the thread completing the
+	 * future.
+	 * 
+	 * @param callback
+	 *            the callback
+	 * @return this future
+	 */
+	public CallbackFuture<T> addCallback(final AsyncCallback<T> callback) {
+		synchronized (this) {
+			if (!done) {
+				callbacks.add(callback);
+				return this;
+			}
+		}
+		fire(callback);
+		return this;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.agent.callback.AsyncCallback#onSuccess(java.lang.Object)
+	 */
+	@Override
+	public void onSuccess(final T result) {
+		complete(result, null, false);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.agent.callback.AsyncCallback#onFailure(java.lang.Exception
+	 * )
+	 */
+	@Override
+	public void onFailure(final Exception exception) {
+		complete(null, exception, false);
+	}
+	
+	/**
+	 * Complete this future, only the first completion counts.
+	 * 
+	 * @param result
+	 *            the result
+	 * @param exception
+	 *            the exception
+	 * @param cancel
+	 *            whether the future is cancelled
+	 * @return true, if this call completed the future
+	 */
+	private boolean complete(final T result, final Exception exception,
+			final boolean cancel) {
+		final List<AsyncCallback<T>> waiting;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.result = result;
+			this.exception = exception;
+			cancelled = cancel;
+			done = true;
+			waiting = callbacks;
+			callbacks = null;
+			notifyAll();
+		}
+		for (final AsyncCallback<T> callback : waiting) {
+			fire(callback);
+		}
+		return true;
+	}
+	
+	/**
+	 * Pass the outcome to a callback.
+	 * 
+	 * @param callback
+	 *            the callback
+	 */
+	private void fire(final AsyncCallback<T> callback) {
+		try {
+			if (exception != null) {
+				callback.onFailure(exception);
+			} else {
+				callback.onSuccess(result);
+			}
+		} catch (final RuntimeException e) {
+			LOG.log(Level.WARNING, "Callback of future failed", e);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		return complete(null, new CancellationException(), true);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#get()
+	 */
+	@Override
+	public synchronized T get() throws InterruptedException,
+			ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return report();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#get(long,
+	 * java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public synchronized T get(final long timeout, final TimeUnit unit)
+			throws InterruptedException, ExecutionException,
+			TimeoutException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			final long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return report();
+	}
+	
+	/**
+	 * Return the result or throw the exception of this completed future.
+	 * 
+	 * @return the result
+	 * @throws ExecutionException
+	 *             the execution exception
+	 */
+	private T report() throws ExecutionException {
+		if (cancelled) {
+			throw (CancellationException) exception;
+		}
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent.callback;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the callback queues of a host, one queue per owner (agent id).
+ * Queues are created when the first callback is pushed, and reused for the
+ * next calls of their owner. They are dropped again when they have been empty
+ * and unused for the idle time, or when their owner is removed. This way
+ * transient and deleted agents don't keep a queue around.
+ */
+public class CallbackRegistry {
+	/** default idle time in milliseconds */
+	public static final long										DEFAULTIDLE	= 10000;
+	private final ConcurrentHashMap<String, AsyncCallbackQueue<?>>	queues		= new ConcurrentHashMap<String, AsyncCallbackQueue<?>>();
+	private final long												idleTime;
+	
+	/**
+	 * Instantiates a new callback registry, with the default idle time.
+	 */
+	public CallbackRegistry() {
+		this(DEFAULTIDLE);
+	}
+	
+	/**
+	 * Instantiates a new callback registry.
+	 * 
+	 * @param idleTime
+	 *            the time in milliseconds an empty queue is kept for reuse,
+	 *            if not positive empty queues are dropped right away
+	 */
+	public CallbackRegistry(final long idleTime) {
+		this.idleTime = idleTime;
+	}
+	
+	/**
+	 * Get the queue of the given owner, creating it if needed. The queue is
+	 * pinned: it stays in the registry until the owner is removed.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param owner
+	 *            the owner
+	 * @return the queue
+	 */
+	public <T> AsyncCallbackQueue<T> get(final String owner) {
+		while (true) {
+			final AsyncCallbackQueue<T> queue = getOrCreate(owner);
+			queue.pin();
+			if (!queue.retire()) {
+				return queue;
+			}
+			// retired just before pinning, try again with a new queue
+			queues.remove(owner, queue);
+		}
+	}
+	
+	/**
+	 * Append a callback to the queue of the given owner.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param owner
+	 *            the owner
+	 * @param id
+	 *            the id
+	 * @param description
+	 *            the description, only converted to a String when the
+	 *            timeout actually occurs.
+	 * @param callback
+	 *            the callback
+	 * @param timeout
+	 *            the timeout in milliseconds, the default timeout is used if
+	 *            not positive
+	 * @see AsyncCallbackQueue#push(Object, Object, AsyncCallback, long)
+	 */
+	public <T> void push(final String owner, final Object id,
+			final Object description, final AsyncCallback<T> callback,
+			final long timeout) {
+		while (true) {
+			final AsyncCallbackQueue<T> queue = getOrCreate(owner);
+			if (queue.offer(id, description, callback, timeout)) {
+				return;
+			}
+			// the queue has been retired, drop it and use a new one
+			queues.remove(owner, queue);
+		}
+	}
+	
+	/**
+	 * Pull a callback from the queue of the given owner. A queue that runs
+	 * empty is removed from the registry once it has been idle for the idle
+	 * time.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param owner
+	 *            the owner
+	 * @param id
+	 *            the id
+	 * @return the async callback, null if not found
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> AsyncCallback<T> pull(final String owner, final Object id) {
+		final AsyncCallbackQueue<T> queue = (AsyncCallbackQueue<T>) queues
+				.get(owner);
+		if (queue == null) {
+			return null;
+		}
+		final AsyncCallback<T> callback = queue.pull(id);
+		if (callback != null) {
+			queue.idle();
+		}
+		return callback;
+	}
+	
+	/**
+	 * Get the time an empty queue is kept for reuse.
+	 * 
+	 * @return the idle time in milliseconds
+	 */
+	long getIdleTime() {
+		return idleTime;
+	}
+	
+	/**
+	 * Drop the given, retired, queue from the registry.
+	 * 
+	 * @param owner
+	 *            the owner
+	 * @param queue
+	 *            the queue
+	 */
+	void drop(final String owner, final AsyncCallbackQueue<?> queue) {
+		queues.remove(owner, queue);
+	}
+	
+	/**
+	 * Remove the queue of the given owner, its pending callbacks fail with a
+	 * CancellationException.
+	 * 
+	 * @param owner
+	 *            the owner
+	 */
+	public void remove(final String owner) {
+		final AsyncCallbackQueue<?> queue = queues.remove(owner);
+		if (queue != null) {
+			queue.close();
+		}
+	}
+	
+	/**
+	 * Get the number of queues in this registry.
+	 * 
+	 * @return the size
+	 */
+	public int size() {
+		return queues.size();
+	}
+	
+	/**
+	 * Get the queue of the given owner, creating it if needed.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param owner
+	 *            the owner
+	 * @return the queue
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> AsyncCallbackQueue<T> getOrCreate(final String owner) {
+		AsyncCallbackQueue<T> queue = (AsyncCallbackQueue<T>) queues
+				.get(owner);
+		if (queue == null) {
+			queue = new AsyncCallbackQueue<T>(this, owner);
+			final AsyncCallbackQueue<T> old = (AsyncCallbackQueue<T>) queues
+					.putIfAbsent(owner, queue);
+			if (old != null) {
+				queue = old;
+			}
+		}
+		return queue;
+	}
+}
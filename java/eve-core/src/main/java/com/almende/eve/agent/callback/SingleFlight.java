@@ -0,0 +1,211 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent.callback;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single-flight table of outgoing calls. A call which is identical to a call
+ * that is still in flight (same sender, url, method and params) isn't sent
+ * again, but joins the call in flight: the one response is handed to the
+ * callbacks of all calls that joined.
+ * 
+ * The joined calls share the timeout of the call that was actually sent.
+ */
+public class SingleFlight {
+	private static final Logger							LOG			= Logger.getLogger(SingleFlight.class
+																			.getName());
+	private final ConcurrentHashMap<String, Flight<?>>	flights		= new ConcurrentHashMap<String, Flight<?>>();
+	private final AtomicLong							calls		= new AtomicLong();
+	private final AtomicLong							coalesced	= new AtomicLong();
+	
+	/**
+	 * Join the flight of the given call, or start a new one.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 * @param key
+	 *            the key of the call, e.g. its sender, url, method and params
+	 * @param callback
+	 *            the callback of the call
+	 * @return the callback to send the call with, or null if the call joined
+	 *         a call in flight and mustn't be sent.
+	 */
+	public <T> AsyncCallback<T> join(final String key,
+			final AsyncCallback<T> callback) {
+		calls.incrementAndGet();
+		while (true) {
+			@SuppressWarnings("unchecked")
+			final Flight<T> flight = (Flight<T>) flights.get(key);
+			if (flight == null) {
+				final Flight<T> created = new Flight<T>(key, callback);
+				if (flights.putIfAbsent(key, created) == null) {
+					return created;
+				}
+			} else if (flight.add(callback)) {
+				coalesced.incrementAndGet();
+				return null;
+			} else {
+				// landed just now, start a new flight
+				flights.remove(key, flight);
+			}
+		}
+	}
+	
+	/**
+	 * Abort a flight that couldn't be sent: the calls that joined it fail
+	 * with the given exception, the first call is left to the caller.
+	 * 
+	 * @param flight
+	 *            the callback returned by join()
+	 * @param exception
+	 *            the exception
+	 */
+	public void abort(final AsyncCallback<?> flight, final Exception exception) {
+		if (flight instanceof Flight) {
+			final List<? extends AsyncCallback<?>> joined = ((Flight<?>) flight)
+					.land();
+			for (int i = 1; i < joined.size(); i++) {
+				joined.get(i).onFailure(exception);
+			}
+		}
+	}
+	
+	/**
+	 * Number of calls in flight.
+	 * 
+	 * @return the size
+	 */
+	public int size() {
+		return flights.size();
+	}
+	
+	/**
+	 * Total number of calls passed to join().
+	 * 
+	 * @return the calls
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+	
+	/**
+	 * Number of calls that joined a call in flight, and weren't sent.
+	 * 
+	 * @return the coalesced calls
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+	
+	/**
+	 * Fraction of the calls that weren't sent.
+	 * 
+	 * @return the coalescing ratio, between 0 and 1
+	 */
+	public double getCoalescingRatio() {
+		final long total = calls.get();
+		return total > 0 ? (double) coalesced.get() / total : 0;
+	}
+	
+	/**
+	 * A call in flight, fanning out its result to the callbacks that joined.
+	 * 
+	 * @param <T>
+	 *            the generic type
+	 */
+	private final class Flight<T> implements AsyncCallback<T> {
+		private final String					key;
+		private final List<AsyncCallback<T>>	callbacks	= new ArrayList<AsyncCallback<T>>(2);
+		private boolean							landed		= false;
+		
+		/**
+		 * Instantiates a new flight.
+		 * 
+		 * @param key
+		 *            the key
+		 * @param callback
+		 *            the callback of the first call
+		 */
+		private Flight(final String key, final AsyncCallback<T> callback) {
+			this.key = key;
+			callbacks.add(callback);
+		}
+		
+		/**
+		 * Add the callback of a joining call.
+		 * 
+		 * @param callback
+		 *            the callback
+		 * @return false if the flight has already landed
+		 */
+		private synchronized boolean add(final AsyncCallback<T> callback) {
+			if (landed) {
+				return false;
+			}
+			callbacks.add(callback);
+			return true;
+		}
+		
+		/**
+		 * Land this flight: no more calls can join.
+		 * 
+		 * @return the callbacks of all calls in this flight, empty if it had
+		 *         landed already
+		 */
+		private List<AsyncCallback<T>> land() {
+			flights.remove(key, this);
+			synchronized (this) {
+				if (landed) {
+					return Collections.emptyList();
+				}
+				landed = true;
+			}
+			return callbacks;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.almende.eve.agent.callback.AsyncCallback#onSuccess(java.lang.
+		 * Object)
+		 */
+		@Override
+		public void onSuccess(final T result) {
+			for (final AsyncCallback<T> callback : land()) {
+				try {
+					callback.onSuccess(result);
+				} catch (final RuntimeException e) {
+					LOG.log(Level.WARNING, "Callback failed", e);
+				}
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.almende.eve.agent.callback.AsyncCallback#onFailure(java.lang.
+		 * Exception)
+		 */
+		@Override
+		public void onFailure(final Exception exception) {
+			for (final AsyncCallback<T> callback : land()) {
+				try {
+					callback.onFailure(exception);
+				} catch (final RuntimeException e) {
+					LOG.log(Level.WARNING, "Callback failed", e);
+				}
+			}
+		}
+	}
+}
@@ -19,24 +19,20 @@ public class SyncCallback<T> implements AsyncCallback<T> {
 	 * @see com.almende.eve.agent.callback.AsyncCallback#onSuccess(java.lang.Object)
 	 */
 	@Override
-	public void onSuccess(final T response) {
+	public synchronized void onSuccess(final T response) {
 		this.response = response;
 		done = true;
-		synchronized (this) {
-			notifyAll();
-		}
+		notifyAll();
 	}
 	
 	/* (non-Javadoc)
 	 * @see com.almende.eve.agent.callback.AsyncCallback#onFailure(java.lang.Exception)
 	 */
 	@Override
-	public void onFailure(final Exception exception) {
+	public synchronized void onFailure(final Exception exception) {
 		this.exception = exception;
 		done = true;
-		synchronized (this) {
-			notifyAll();
-		}
+		notifyAll();
 	}
 	
 	/**
@@ -47,11 +43,9 @@ public class SyncCallback<T> implements AsyncCallback<T> {
 	 * @return response
 	 * @throws Exception the exception
 	 */
-	public T get() throws Exception {
+	public synchronized T get() throws Exception {
 		while (!done) {
-			synchronized (this) {
-				wait();
-			}
+			wait();
 		}
 		
 		if (exception != null) {
@@ -0,0 +1,254 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.agent.callback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.config.Config;
+
+/**
+ * Sharded hashed wheel timer for the callback timeouts. Scheduling and
+ * cancelling a timeout are O(1) and only lock a single shard, so a large
+ * number of outstanding calls doesn't turn the timer into a contention point.
+ * Timeouts fire with a resolution of one tick, their tasks run on the host
+ * pool.
+ */
+final class TimeoutWheel {
+	private static final Logger			LOG			= Logger.getLogger(TimeoutWheel.class
+															.getName());
+	/** tick duration in milliseconds */
+	static final long					TICK		= 100;
+	private static final int			WHEELSIZE	= 512;
+	private static final TimeoutWheel	INSTANCE	= new TimeoutWheel();
+	private final Shard[]				shards;
+	private final long					start		= System.nanoTime();
+	
+	/**
+	 * Instantiates a new timeout wheel and starts its worker thread.
+	 */
+	private TimeoutWheel() {
+		int size = 1;
+		while (size < Runtime.getRuntime().availableProcessors()) {
+			size <<= 1;
+		}
+		shards = new Shard[size];
+		for (int i = 0; i < size; i++) {
+			shards[i] = new Shard();
+		}
+		final Thread worker = Config.getThreadFactory().newThread(
+				new Runnable() {
+					@Override
+					public void run() {
+						work();
+					}
+				});
+		try {
+			worker.setDaemon(true);
+		} catch (final SecurityException e) {
+			LOG.log(Level.FINE, "Can't make timeout thread a daemon", e);
+		}
+		worker.start();
+	}
+	
+	/**
+	 * Schedule a task to run after the given delay.
+	 * 
+	 * @param task
+	 *            the task
+	 * @param delay
+	 *            the delay in milliseconds
+	 * @return the timeout, which can be used to cancel the task
+	 */
+	static Timeout schedule(final Runnable task, final long delay) {
+		final TimeoutWheel wheel = INSTANCE;
+		final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- wheel.start);
+		// round up, a timeout never fires early
+		final long tick = (elapsed + Math.max(delay, 0) + TICK - 1) / TICK;
+		final Shard shard = wheel.shards[(int) (Thread.currentThread().getId() & (wheel.shards.length - 1))];
+		final Timeout timeout = new Timeout(shard, task);
+		shard.add(timeout, tick);
+		return timeout;
+	}
+	
+	/**
+	 * Worker loop, expires the timeouts of each tick.
+	 */
+	private void work() {
+		final List<Timeout> expired = new ArrayList<Timeout>();
+		long tick = 0;
+		while (true) {
+			tick++;
+			final long wait = tick * TICK
+					- TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait);
+				} catch (final InterruptedException e) {
+					LOG.log(Level.WARNING, "Timeout thread interrupted", e);
+					return;
+				}
+			}
+			for (final Shard shard : shards) {
+				shard.expire(tick, expired);
+			}
+			for (final Timeout timeout : expired) {
+				execute(timeout.task);
+			}
+			expired.clear();
+		}
+	}
+	
+	/**
+	 * Hand an expired task to the host pool, a slow timeout callback must not
+	 * hold up the ticks of the wheel. The task runs on the timer thread if
+	 * the pool doesn't take it.
+	 * 
+	 * @param task
+	 *            the task
+	 */
+	private static void execute(final Runnable task) {
+		final Runnable guarded = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (final RuntimeException e) {
+					LOG.log(Level.WARNING, "Timeout task failed", e);
+				}
+			}
+		};
+		try {
+			AgentHost.getInstance().getPool().execute(guarded);
+		} catch (final RejectedExecutionException e) {
+			guarded.run();
+		}
+	}
+	
+	/**
+	 * A scheduled task, linked in one of the buckets of its shard.
+	 */
+	static final class Timeout {
+		private final Shard		shard;
+		private final Runnable	task;
+		private long			tick;
+		private int				bucket	= -1;
+		private Timeout			prev;
+		private Timeout			next;
+		
+		/**
+		 * Instantiates a new timeout.
+		 * 
+		 * @param shard
+		 *            the shard
+		 * @param task
+		 *            the task
+		 */
+		Timeout(final Shard shard, final Runnable task) {
+			this.shard = shard;
+			this.task = task;
+		}
+		
+		/**
+		 * Cancel the task, if it hasn't run yet.
+		 * 
+		 * @return true, if cancelled
+		 */
+		boolean cancel() {
+			return shard.remove(this);
+		}
+	}
+	
+	/**
+	 * One shard of the wheel: a ring of buckets with doubly linked timeouts.
+	 */
+	private static final class Shard {
+		private final Timeout[]	buckets		= new Timeout[WHEELSIZE];
+		private long			expiredTick	= 0;
+		
+		/**
+		 * Add a timeout to the bucket of the given tick.
+		 * 
+		 * @param timeout
+		 *            the timeout
+		 * @param tick
+		 *            the tick
+		 */
+		synchronized void add(final Timeout timeout, final long tick) {
+			// never add to a bucket that has already been passed this round
+			timeout.tick = Math.max(tick, expiredTick + 1);
+			timeout.bucket = (int) (timeout.tick % WHEELSIZE);
+			final Timeout head = buckets[timeout.bucket];
+			timeout.next = head;
+			if (head != null) {
+				head.prev = timeout;
+			}
+			buckets[timeout.bucket] = timeout;
+		}
+		
+		/**
+		 * Remove a timeout from its bucket.
+		 * 
+		 * @param timeout
+		 *            the timeout
+		 * @return true, if the timeout was still scheduled
+		 */
+		synchronized boolean remove(final Timeout timeout) {
+			if (timeout.bucket < 0) {
+				return false;
+			}
+			unlink(timeout);
+			return true;
+		}
+		
+		/**
+		 * Move all timeouts that are due at the given tick to the expired
+		 * list.
+		 * 
+		 * @param tick
+		 *            the tick
+		 * @param expired
+		 *            the expired list
+		 */
+		synchronized void expire(final long tick, final List<Timeout> expired) {
+			expiredTick = tick;
+			Timeout timeout = buckets[(int) (tick % WHEELSIZE)];
+			while (timeout != null) {
+				final Timeout next = timeout.next;
+				if (timeout.tick <= tick) {
+					unlink(timeout);
+					expired.add(timeout);
+				}
+				timeout = next;
+			}
+		}
+		
+		/**
+		 * Unlink a timeout from its bucket.
+		 * 
+		 * @param timeout
+		 *            the timeout
+		 */
+		private void unlink(final Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				buckets[timeout.bucket] = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = -1;
+		}
+	}
+}
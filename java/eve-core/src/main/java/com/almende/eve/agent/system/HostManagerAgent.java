@@ -5,9 +5,14 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.eve.agent.Agent;
+import com.almende.eve.rpc.annotation.Access;
+import com.almende.eve.rpc.annotation.AccessType;
 import com.almende.eve.rpc.jsonrpc.JSONMessage;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.scheduler.SchedulerFactory;
+import com.almende.eve.scheduler.SchedulerMetrics;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * @author Almende
@@ -48,4 +53,18 @@ public class HostManagerAgent extends Agent {
 		}
 		
 	}
+	
+	/**
+	 * Gets the metrics of the scheduler factory of this host: pending tasks,
+	 * lag and execution time histograms, and failures.
+	 * 
+	 * @return the metrics, null if the scheduler factory isn't measured
+	 */
+	@Access(AccessType.PRIVATE)
+	public ObjectNode getSchedulerMetrics() {
+		final SchedulerFactory factory = getAgentHost().getSchedulerFactory();
+		final SchedulerMetrics metrics = factory != null ? factory
+				.getMetrics() : null;
+		return metrics != null ? metrics.toJSON() : null;
+	}
 }
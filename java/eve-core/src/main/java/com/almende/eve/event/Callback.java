@@ -8,6 +8,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -21,6 +23,8 @@ public class Callback implements Serializable {
 	private String							url		= null;
 	private String							method	= null;
 	private String							params	= null;
+	private String							event	= null;
+	private transient ObjectNode			parsed	= null;
 	
 	/**
 	 * Instantiates a new callback.
@@ -126,5 +130,45 @@ public class Callback implements Serializable {
 	 */
 	public void setParams(final String params) {
 		this.params = params;
+		parsed = null;
+	}
+	
+	/**
+	 * Gets the event (or pattern) subscribed to.
+	 * 
+	 * @return the event
+	 */
+	public String getEvent() {
+		return event;
+	}
+	
+	/**
+	 * Sets the event (or pattern) subscribed to.
+	 * 
+	 * @param event
+	 *            the new event
+	 */
+	public void setEvent(final String event) {
+		this.event = event;
+	}
+	
+	/**
+	 * Gets the params as JSON, parsed once.
+	 * 
+	 * @return the params, null if none
+	 */
+	@JsonIgnore
+	public ObjectNode getParamsNode() {
+		if (parsed == null && params != null && !params.equals("null")) {
+			try {
+				final JsonNode node = JOM.getInstance().readTree(params);
+				if (node.isObject()) {
+					parsed = (ObjectNode) node;
+				}
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "", e);
+			}
+		}
+		return parsed;
 	}
 }
@@ -0,0 +1,462 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.event;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+
+import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.rpc.jsonrpc.JSONBatch;
+import com.almende.eve.rpc.jsonrpc.JSONMessage;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.clock.Clock;
+import com.almende.eve.scheduler.clock.TimingWheelClock;
+import com.almende.eve.scheduler.clock.VirtualClock;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Asynchronous fan-out of triggered events to their subscribers, shared by
+ * the agents of a host. The callbacks are sent as JSON-RPC notifications
+ * from the pool of the host, without scheduler tasks or persistence: all
+ * callbacks to the same url (e.g. several subscriptions of one agent) go out
+ * as a single batch. Callbacks to agents on this same host are handed to the
+ * LocalEventBus instead, if enabled.
+ * 
+ * Callbacks are sent on the pool thread, through the host, so transports
+ * which are a SynchronousTransportService (e.g. HTTP) report whether they
+ * were delivered; other transports send them asynchronously, and only their
+ * failures to start sending are seen. Deliveries which fail are queued per
+ * destination and retried with an exponential backoff. Later events for that destination queue up
+ * behind them, so callbacks keep their order. The queue of a destination is
+ * bounded (the oldest callbacks are dropped when it is full), and dropped as
+ * a whole after too many failed retries. The queues only live in memory.
+ */
+public class EventDispatcher {
+	private static final Logger						LOG			= Logger.getLogger(EventDispatcher.class
+																		.getName());
+	private static final Clock						WHEEL		= new TimingWheelClock();
+	private static final long						MAX_DELAY	= 60000;
+	private final ConcurrentHashMap<String, Retry>	retries		= new ConcurrentHashMap<String, Retry>();
+	private final AtomicLong						delivered	= new AtomicLong();
+	private final AtomicLong						retried		= new AtomicLong();
+	private final AtomicLong						dropped		= new AtomicLong();
+	private volatile int							maxRetries	= 5;
+	private volatile int							queueSize	= 1000;
+	private volatile long							retryDelay	= 1000;
+	private volatile LocalEventBus					localBus	= new LocalEventBus();
+	
+	/**
+	 * Sets the number of retries of a failed delivery, before the queue of
+	 * its destination is dropped.
+	 * 
+	 * @param maxRetries
+	 *            the max retries, 0 to drop failed deliveries right away
+	 */
+	public void setMaxRetries(final int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+	
+	/**
+	 * Sets the maximum number of callbacks queued for retry per destination.
+	 * 
+	 * @param queueSize
+	 *            the queue size
+	 */
+	public void setQueueSize(final int queueSize) {
+		if (queueSize <= 0) {
+			throw new IllegalArgumentException(
+					"The retry queue size must be positive");
+		}
+		this.queueSize = queueSize;
+	}
+	
+	/**
+	 * Sets the delay before the first retry, doubled on every next retry (up
+	 * to a minute).
+	 * 
+	 * @param retryDelay
+	 *            the retry delay in milliseconds
+	 */
+	public void setRetryDelay(final long retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+	
+	/**
+	 * Enable or disable the in-process delivery of callbacks to subscribers
+	 * on this host, enabled by default.
+	 * 
+	 * @param enabled
+	 *            true to use the local bus
+	 */
+	public void setLocalBus(final boolean enabled) {
+		localBus = enabled ? new LocalEventBus() : null;
+	}
+	
+	/**
+	 * Gets the local bus.
+	 * 
+	 * @return the local bus, null if disabled
+	 */
+	public LocalEventBus getLocalBus() {
+		return localBus;
+	}
+	
+	/**
+	 * Send an event to its subscribers, asynchronously.
+	 * 
+	 * @param sender
+	 *            the agent triggering the event
+	 * @param payload
+	 *            the params shared by all callbacks ("agent", "event" and
+	 *            "params"), not to be modified afterwards
+	 * @param subscriptions
+	 *            the subscriptions, not to be modified afterwards
+	 */
+	public void dispatch(final AgentInterface sender, final ObjectNode payload,
+			final Collection<Callback> subscriptions) {
+		if (subscriptions.isEmpty()) {
+			return;
+		}
+		sender.getAgentHost().getPool().execute(new Runnable() {
+			@Override
+			public void run() {
+				for (final Map.Entry<String, List<JSONRequest>> entry : build(
+						payload, subscriptions).entrySet()) {
+					deliver(sender, entry.getKey(), entry.getValue());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Build the callbacks of an event, grouped by url. The callbacks share
+	 * the nodes of the payload, which is allowed as messages are
+	 * copy-on-write.
+	 * 
+	 * @param payload
+	 *            the payload
+	 * @param subscriptions
+	 *            the subscriptions
+	 * @return the callbacks per url, in order of subscription
+	 */
+	private Map<String, List<JSONRequest>> build(final ObjectNode payload,
+			final Collection<Callback> subscriptions) {
+		final Map<String, List<JSONRequest>> result = new LinkedHashMap<String, List<JSONRequest>>();
+		for (final Callback subscription : subscriptions) {
+			if (subscription == null || subscription.getUrl() == null
+					|| subscription.getMethod() == null) {
+				continue;
+			}
+			final ObjectNode params = JOM.createObjectNode();
+			final ObjectNode callbackParams = subscription.getParamsNode();
+			if (callbackParams != null) {
+				params.setAll(callbackParams);
+			}
+			params.setAll(payload);
+			params.put("subscriptionId", subscription.getId());
+			
+			List<JSONRequest> requests = result.get(subscription.getUrl());
+			if (requests == null) {
+				requests = new ArrayList<JSONRequest>(1);
+				result.put(subscription.getUrl(), requests);
+			}
+			requests.add(JSONRequest.createNotification(
+					subscription.getMethod(), params));
+		}
+		return result;
+	}
+	
+	/**
+	 * Deliver callbacks to their url, or queue them behind earlier failed
+	 * deliveries to that url. Callbacks to local subscribers go through the
+	 * local bus, if enabled.
+	 * 
+	 * @param sender
+	 *            the sender
+	 * @param url
+	 *            the url
+	 * @param requests
+	 *            the callbacks
+	 */
+	private void deliver(final AgentInterface sender, final String url,
+			final List<JSONRequest> requests) {
+		final Retry pending = retries.get(url);
+		if (pending != null && pending.offer(requests)) {
+			return;
+		}
+		try {
+			final LocalEventBus bus = localBus;
+			if (bus != null && bus.deliver(sender, url, requests)) {
+				delivered.addAndGet(requests.size());
+				return;
+			}
+			send(sender, url, requests);
+		} catch (final IOException e) {
+			LOG.log(Level.WARNING, "Failed to deliver event to " + url
+					+ ", will retry", e);
+			retry(sender, url, requests);
+		} catch (final IllegalArgumentException e) {
+			LOG.log(Level.WARNING, "Invalid callback url " + url, e);
+			dropped.addAndGet(requests.size());
+		}
+	}
+	
+	/**
+	 * Send callbacks to their url, as a batch if more than one, and wait for
+	 * the transport to deliver them if it can.
+	 * 
+	 * @param sender
+	 *            the sender
+	 * @param url
+	 *            the url
+	 * @param requests
+	 *            the callbacks
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void send(final AgentInterface sender, final String url,
+			final List<JSONRequest> requests) throws IOException {
+		final JSONMessage message = requests.size() == 1 ? requests.get(0)
+				: new JSONBatch(requests);
+		sender.getAgentHost().send(URI.create(url), message, sender);
+		delivered.addAndGet(requests.size());
+	}
+	
+	/**
+	 * Queue failed callbacks for retry.
+	 * 
+	 * @param sender
+	 *            the sender
+	 * @param url
+	 *            the url
+	 * @param requests
+	 *            the callbacks
+	 */
+	private void retry(final AgentInterface sender, final String url,
+			final List<JSONRequest> requests) {
+		if (maxRetries <= 0) {
+			dropped.addAndGet(requests.size());
+			return;
+		}
+		while (true) {
+			Retry retry = retries.get(url);
+			if (retry == null) {
+				retry = new Retry(sender, url);
+				final Retry old = retries.putIfAbsent(url, retry);
+				if (old == null) {
+					retry.offer(requests);
+					retry.schedule();
+					return;
+				}
+				retry = old;
+			}
+			if (retry.offer(requests)) {
+				return;
+			}
+			// that queue was just closed
+			retries.remove(url, retry);
+		}
+	}
+	
+	/**
+	 * Gets the clock driving the retries: the virtual clock if started.
+	 * 
+	 * @return the clock
+	 */
+	private static Clock getClock() {
+		final VirtualClock clock = VirtualClock.getInstance();
+		return clock != null ? clock : WHEEL;
+	}
+	
+	/**
+	 * Gets the number of delivered callbacks.
+	 * 
+	 * @return the delivered
+	 */
+	public long getDelivered() {
+		return delivered.get();
+	}
+	
+	/**
+	 * Gets the number of retried callbacks.
+	 * 
+	 * @return the retried
+	 */
+	public long getRetried() {
+		return retried.get();
+	}
+	
+	/**
+	 * Gets the number of dropped callbacks.
+	 * 
+	 * @return the dropped
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Gets the number of callbacks waiting for a retry.
+	 * 
+	 * @return the pending
+	 */
+	public int getPending() {
+		int result = 0;
+		for (final Retry retry : retries.values()) {
+			result += retry.size();
+		}
+		return result;
+	}
+	
+	/**
+	 * The retry queue of a destination.
+	 */
+	private final class Retry implements Runnable {
+		private final AgentInterface			sender;
+		private final String					url;
+		private final ArrayDeque<JSONRequest>	queue		= new ArrayDeque<JSONRequest>();
+		private int								attempts	= 0;
+		private boolean							closed		= false;
+		
+		/**
+		 * Instantiates a new retry queue.
+		 * 
+		 * @param sender
+		 *            the sender
+		 * @param url
+		 *            the url
+		 */
+		private Retry(final AgentInterface sender, final String url) {
+			this.sender = sender;
+			this.url = url;
+		}
+		
+		/**
+		 * Queue callbacks, dropping the oldest ones if the queue is full.
+		 * 
+		 * @param requests
+		 *            the callbacks
+		 * @return false if the queue is closed
+		 */
+		private synchronized boolean offer(final List<JSONRequest> requests) {
+			if (closed) {
+				return false;
+			}
+			queue.addAll(requests);
+			int overflow = queue.size() - queueSize;
+			if (overflow > 0) {
+				LOG.warning("Retry queue of " + url + " full, dropping "
+						+ overflow + " event callbacks");
+				dropped.addAndGet(overflow);
+				while (overflow-- > 0) {
+					queue.pollFirst();
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Gets the number of queued callbacks.
+		 * 
+		 * @return the size
+		 */
+		private synchronized int size() {
+			return queue.size();
+		}
+		
+		/**
+		 * Schedule the next attempt, with exponential backoff.
+		 */
+		private void schedule() {
+			final long delay;
+			synchronized (this) {
+				delay = Math.min(MAX_DELAY, retryDelay << Math.min(attempts, 16));
+			}
+			getClock().requestTrigger("eventRetry_" + url,
+					DateTime.now().plus(delay), this);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			final List<JSONRequest> requests;
+			synchronized (this) {
+				requests = new ArrayList<JSONRequest>(queue);
+				queue.clear();
+			}
+			if (!requests.isEmpty()) {
+				retried.addAndGet(requests.size());
+				try {
+					send(sender, url, requests);
+				} catch (final IOException e) {
+					synchronized (this) {
+						attempts++;
+						if (attempts < maxRetries) {
+							// put them back in front of newer callbacks
+							final ArrayDeque<JSONRequest> newer = new ArrayDeque<JSONRequest>(
+									queue);
+							queue.clear();
+							queue.addAll(requests);
+							queue.addAll(newer);
+						} else {
+							LOG.log(Level.WARNING, "Giving up on " + url
+									+ ", dropping "
+									+ (requests.size() + queue.size())
+									+ " event callbacks", e);
+							dropped.addAndGet(requests.size() + queue.size());
+							queue.clear();
+							closed = true;
+						}
+					}
+					if (closed()) {
+						retries.remove(url, this);
+					} else {
+						schedule();
+					}
+					return;
+				}
+			}
+			synchronized (this) {
+				attempts = 0;
+				if (queue.isEmpty()) {
+					closed = true;
+				}
+			}
+			if (closed()) {
+				retries.remove(url, this);
+			} else {
+				// newer callbacks arrived during the attempt
+				getClock().requestTrigger("eventRetry_" + url, DateTime.now(),
+						this);
+			}
+		}
+		
+		/**
+		 * Checks if this queue is closed.
+		 * 
+		 * @return true, if closed
+		 */
+		private synchronized boolean closed() {
+			return closed;
+		}
+	}
+}
@@ -18,8 +18,8 @@ import com.almende.eve.rpc.annotation.AccessType;
 import com.almende.eve.rpc.annotation.Name;
 import com.almende.eve.rpc.annotation.Optional;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
-import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.State;
 import com.almende.eve.state.TypedKey;
 import com.almende.util.uuid.UUID;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -34,6 +34,7 @@ public class EventsFactory implements EventsInterface {
 																							"subscriptions") {
 																					};
 	private static final String										EVENT			= "event";
+	private static final String										PREFIX			= "_subscription_";
 	
 	/**
 	 * Instantiates a new events factory.
@@ -45,48 +46,73 @@ public class EventsFactory implements EventsInterface {
 	}
 	
 	/**
-	 * Retrieve the list with subscriptions on given event.
-	 * If there are no subscriptions for this event, an empty list is returned
+	 * Get the index of the agent, kept by the host, building it from the
+	 * subscriptions in the state if not done yet. Subscriptions in the old
+	 * format, a single map of all events, are converted to a state entry per
+	 * subscription.
 	 *
-	 * @param event the event
-	 * @return the subscriptions
+	 * @return the index
 	 */
-	@Override
-	public List<Callback> getSubscriptions(final String event) {
-		final Map<String, List<Callback>> allSubscriptions = myAgent.getState().get(
-				SUBSCRIPTIONS);
-		if (allSubscriptions != null) {
-			final List<Callback> eventSubscriptions = allSubscriptions.get(event);
-			if (eventSubscriptions != null) {
-				return eventSubscriptions;
+	private SubscriptionIndex load() {
+		final SubscriptionIndex index = myAgent.getAgentHost()
+				.getSubscriptionIndex(myAgent.getId(), true);
+		synchronized (index) {
+			if (!index.isLoaded()) {
+				load(index);
 			}
 		}
-		
-		return new ArrayList<Callback>();
+		return index;
 	}
 	
 	/**
-	 * Store a list with subscriptions for an event.
+	 * Add the subscriptions in the state to the given index.
 	 *
-	 * @param event the event
-	 * @param subscriptions the subscriptions
+	 * @param index the index
 	 */
-	private void putSubscriptions(final String event, final List<Callback> subscriptions) {
-		
-		final Map<String, List<Callback>> allSubscriptions = myAgent.getState().get(
-				SUBSCRIPTIONS);
-		
-		final HashMap<String, List<Callback>> newSubscriptions = new HashMap<String, List<Callback>>();
-		if (allSubscriptions != null) {
-			newSubscriptions.putAll(allSubscriptions);
-		}
-		newSubscriptions.put(event, subscriptions);
-		if (!myAgent.getState().putIfUnchanged(SUBSCRIPTIONS.getKey(),
-				newSubscriptions, allSubscriptions)) {
-			// Recursive retry.
-			putSubscriptions(event, subscriptions);
+	private void load(final SubscriptionIndex index) {
+		final State state = myAgent.getState();
+		if (state == null) {
 			return;
 		}
+		final Map<String, List<Callback>> oldSubscriptions = state
+				.get(SUBSCRIPTIONS);
+		if (oldSubscriptions != null) {
+			for (final Entry<String, List<Callback>> entry : oldSubscriptions
+					.entrySet()) {
+				if (entry.getValue() == null) {
+					continue;
+				}
+				for (final Callback subscription : entry.getValue()) {
+					if (subscription != null && subscription.getId() != null) {
+						subscription.setEvent(entry.getKey());
+						state.put(PREFIX + subscription.getId(), subscription);
+					}
+				}
+			}
+			state.remove(SUBSCRIPTIONS.getKey());
+		}
+		for (final String key : state.keySet()) {
+			if (key.startsWith(PREFIX)) {
+				final Callback subscription = state.get(key, Callback.class);
+				if (subscription != null && subscription.getId() != null
+						&& subscription.getEvent() != null) {
+					index.add(subscription);
+				}
+			}
+		}
+		index.setLoaded();
+	}
+	
+	/**
+	 * Retrieve the list with subscriptions on given event.
+	 * If there are no subscriptions for this event, an empty list is returned
+	 *
+	 * @param event the event
+	 * @return the subscriptions
+	 */
+	@Override
+	public List<Callback> getSubscriptions(final String event) {
+		return load().get(event);
 	}
 	
 	/**
@@ -194,19 +220,13 @@ public class EventsFactory implements EventsInterface {
 			@Name("params") final Object params) throws IOException {
 		// TODO: user first url is very dangerous! can cause a mismatch
 		final String url = myAgent.getFirstUrl().toASCIIString();
-		final List<Callback> subscriptions = new ArrayList<Callback>();
-		
-		if (event.equals("*")) {
-			throw new IllegalArgumentException("Cannot trigger * event");
+		if (SubscriptionIndex.isPattern(event)) {
+			throw new IllegalArgumentException("Cannot trigger " + event
+					+ " event");
 		}
 		
-		// retrieve subscriptions from the event
-		final List<Callback> valueEvent = getSubscriptions(event);
-		subscriptions.addAll(valueEvent);
-		
-		// retrieve subscriptions from the all event "*"
-		final List<Callback> valueAll = getSubscriptions("*");
-		subscriptions.addAll(valueAll);
+		// subscriptions on the event, and on patterns matching it
+		final List<Callback> subscriptions = load().match(event);
 		
 		final ObjectNode baseParams = JOM.createObjectNode();
 		if (params != null) {
@@ -221,29 +241,9 @@ public class EventsFactory implements EventsInterface {
 		baseParams.put("agent", url);
 		baseParams.put(EVENT, event);
 		
-		for (final Callback subscription : subscriptions) {
-			// create a task to send this trigger.
-			// This way, it is sent asynchronously and cannot block this
-			// trigger method
-			ObjectNode triggerParams = baseParams.deepCopy();
-			
-			triggerParams.put("subscriptionId", subscription.getId());
-			
-			final ObjectNode taskParams = JOM.createObjectNode();
-			taskParams.put("url", subscription.getUrl());
-			taskParams.put("method", subscription.getMethod());
-			
-			if (subscription.getParams() != null
-					&& !subscription.getParams().equals("null")) {
-				final ObjectNode parms = (ObjectNode) JOM.getInstance().readTree(
-						subscription.getParams());
-				triggerParams = (ObjectNode) parms.putAll(triggerParams);
-			}
-			taskParams.put("params", triggerParams);
-			final JSONRequest request = new JSONRequest("event.doTrigger", taskParams);
-			final long delay = 0;
-			myAgent.getScheduler().createTask(request, delay);
-		}
+		// sent asynchronously, so it cannot block this trigger method
+		myAgent.getAgentHost().getEventDispatcher()
+				.dispatch(myAgent, baseParams, subscriptions);
 	}
 	
 	/* (non-Javadoc)
@@ -256,42 +256,26 @@ public class EventsFactory implements EventsInterface {
 			@Name("callbackMethod") final String callbackMethod,
 			@Optional @Name("callbackParams") final ObjectNode params) {
 		
-		// check if callback already existed, returning existing instead
-		final List<Callback> subscriptions = getSubscriptions(event);
-		for (final Callback subscription : subscriptions) {
-			if (subscription == null || subscription.getUrl() == null
-					|| subscription.getMethod() == null) {
-				continue;
-			}
-			if (!subscription.getUrl().equals(callbackUrl)
-					|| !subscription.getMethod().equals(callbackMethod)) {
-				continue;
-			}
-			if (subscription.getParams() == null) {
-				if (params != null) {
-					continue;
-				}
-			} else {
-				if (!subscription.getParams().equals(params)) {
-					continue;
+		final Callback callback = new Callback(null, callbackUrl,
+				callbackMethod, params);
+		callback.setEvent(event);
+		
+		final SubscriptionIndex subscriptions = load();
+		synchronized (subscriptions) {
+			// check if callback already existed, returning existing instead
+			for (final Callback subscription : subscriptions.find(callbackUrl,
+					callbackMethod, event)) {
+				if (subscription.getParams() == null ? callback.getParams() == null
+						: subscription.getParams().equals(callback.getParams())) {
+					return subscription.getId();
 				}
 			}
-			// Callback already exists, returning existing callbackId.
-			return subscription.getId();
+			// Callback didn't exist, store new callback.
+			callback.setId(new UUID().toString());
+			subscriptions.add(callback);
+			myAgent.getState().put(PREFIX + callback.getId(), callback);
 		}
-		// create new callback
-		final String subscriptionId = new UUID().toString();
-		final Callback callback = new Callback(subscriptionId, callbackUrl,
-				callbackMethod, params);
-		
-		// Callback didn't exist, store new callback.
-		subscriptions.add(callback);
-		
-		// store the subscriptions
-		// FIXME: Race condition on subscriptions!
-		putSubscriptions(event, subscriptions);
-		
-		return subscriptionId;
+		return callback.getId();
 	}
 	
 	/* (non-Javadoc)
@@ -304,52 +288,32 @@ public class EventsFactory implements EventsInterface {
 			@Optional @Name(EVENT) final String event,
 			@Optional @Name("callbackUrl") final String callbackUrl,
 			@Optional @Name("callbackMethod") final String callbackMethod) {
-		final Map<String, List<Callback>> allSubscriptions = myAgent.getState().get(
-				SUBSCRIPTIONS);
-		if (allSubscriptions == null) {
-			return;
-		}
-		
-		for (final Entry<String, List<Callback>> entry : allSubscriptions.entrySet()) {
-			final String subscriptionEvent = entry.getKey();
-			final List<Callback> subscriptions = entry.getValue();
-			if (subscriptions != null) {
-				int i = 0;
-				while (i < subscriptions.size()) {
-					final Callback subscription = subscriptions.get(i);
-					boolean matched = false;
-					if (subscriptionId != null
-							&& subscriptionId.equals(subscription.getId())) {
-						// callback with given subscriptionId is found
-						matched = true;
-					} else if (callbackUrl != null
-							&& callbackUrl.equals(subscription.getUrl())
-							&& (callbackMethod == null || callbackMethod
-									.equals(subscription.getMethod()))
-							&& (event == null || event
-									.equals(subscriptionEvent))) {
-						// callback with matching properties is found
-						matched = true;
-					}
-					
-					if (matched) {
-						subscriptions.remove(i);
-					} else {
-						i++;
-					}
+		final SubscriptionIndex subscriptions = load();
+		synchronized (subscriptions) {
+			final List<Callback> matched = new ArrayList<Callback>();
+			if (subscriptionId != null) {
+				final Callback subscription = subscriptions.remove(subscriptionId);
+				if (subscription != null) {
+					matched.add(subscription);
 				}
 			}
-			// TODO: cleanup event list when empty
+			if (callbackUrl != null) {
+				for (final Callback subscription : subscriptions.find(
+						callbackUrl, callbackMethod, event)) {
+					subscriptions.remove(subscription.getId());
+					matched.add(subscription);
+				}
+			}
+			for (final Callback subscription : matched) {
+				myAgent.getState().remove(PREFIX + subscription.getId());
+			}
 		}
-		
-		// store state again
-		// TODO: Race condition on state
-		myAgent.getState().put(SUBSCRIPTIONS.getKey(), allSubscriptions);
 	}
 	
 	/**
 	 * Work-method for trigger: called by scheduler for asynchronous and/or
-	 * delayed behaviour.
+	 * delayed behaviour. Triggers are now sent by the EventDispatcher, this
+	 * only serves tasks created by older versions.
 	 *
 	 * @param url the url
 	 * @param method the method
@@ -362,7 +326,7 @@ public class EventsFactory implements EventsInterface {
 	public final void doTrigger(@Name("url") final String url,
 			@Name("method") final String method, @Name("params") final ObjectNode params)
 			throws IOException, JSONRPCException {
-		// TODO: send the trigger as a JSON-RPC 2.0 Notification
+		// sent as JSON-RPC 2.0 Notification
 		myAgent.sendAsync(URI.create(url), method, params);
 	}
 	
@@ -374,21 +338,24 @@ public class EventsFactory implements EventsInterface {
 	@Access(AccessType.SELF)
 	public ObjectNode getSubscriptionStats() {
 		final ObjectNode result = JOM.createObjectNode();
-		final Map<String, List<Callback>> allSubscriptions = myAgent.getState().get(
-				SUBSCRIPTIONS);
-		if (allSubscriptions != null) {
-			result.put("nofSubscriptions", allSubscriptions.values().size());
-			result.put("nofEvents", allSubscriptions.keySet().size());
-		} else {
-			result.put("nofSubscriptions", 0);
-			result.put("nofEvents", 0);
-		}
+		final SubscriptionIndex subscriptions = load();
+		result.put("nofSubscriptions", subscriptions.size());
+		result.put("nofEvents", subscriptions.getEventCount());
 		return result;
 	}
 
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public void clear() {
-		myAgent.getState().remove(SUBSCRIPTIONS.getKey());
+		final SubscriptionIndex subscriptions = load();
+		synchronized (subscriptions) {
+			final State state = myAgent.getState();
+			for (final String key : state.keySet()) {
+				if (key.startsWith(PREFIX)) {
+					state.remove(key);
+				}
+			}
+			subscriptions.clear();
+		}
 	}
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.event;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.agent.AgentSignal;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.annotation.Sender;
+import com.almende.eve.rpc.jsonrpc.JSONRPC;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+
+/**
+ * In-process delivery of event callbacks to subscribers on the same host.
+ * The callback methods are invoked straight from the dispatch table of the
+ * subscribing agent, on the pool of the host: the callbacks aren't sent, so
+ * they skip the transport, the receiving agent's message handling and the
+ * sender's onSend hook. Each subscriber has an inbox: its callbacks are
+ * invoked one at a time, in the order they were handed to the bus, also when
+ * the agent isn't ThreadSafe. The inbox is dropped when it runs empty.
+ * 
+ * Callbacks to agents on other hosts, or to agents which can't be loaded,
+ * are left to the network path.
+ */
+public class LocalEventBus {
+	private static final Logger						LOG			= Logger.getLogger(LocalEventBus.class
+																			.getName());
+	private static final String						REMOTE		= "";
+	private final ConcurrentHashMap<String, String>	agentIds	= new ConcurrentHashMap<String, String>();
+	private final ConcurrentHashMap<String, Inbox>	inboxes		= new ConcurrentHashMap<String, Inbox>();
+	private final AtomicLong						delivered	= new AtomicLong();
+	
+	/**
+	 * Deliver callbacks to a local subscriber.
+	 * 
+	 * @param sender
+	 *            the agent triggering the event
+	 * @param url
+	 *            the callback url
+	 * @param requests
+	 *            the callbacks
+	 * @return false if the subscriber isn't on this host, the callbacks then
+	 *         still have to be sent
+	 */
+	public boolean deliver(final AgentInterface sender, final String url,
+			final List<JSONRequest> requests) {
+		final AgentHost host = sender.getAgentHost();
+		final URI uri = URI.create(url);
+		final String agentId = getAgentId(host, uri);
+		if (agentId == null) {
+			return false;
+		}
+		final Agent receiver;
+		try {
+			receiver = host.getAgent(agentId);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Couldn't load local subscriber " + agentId,
+					e);
+			return false;
+		}
+		final URI senderUrl = host.getSenderUrl(sender.getId(), uri);
+		if (receiver == null || senderUrl == null) {
+			return false;
+		}
+		final RequestParams params = new RequestParams();
+		params.put(Sender.class, senderUrl.toASCIIString());
+		
+		final Runnable delivery = new Runnable() {
+			@Override
+			public void run() {
+				for (final JSONRequest request : requests) {
+					receiver.signalAgent(new AgentSignal<Object[]>(
+							AgentSignal.INVOKE, new Object[] { request, params }));
+					// a notification: failures are logged, there's no response
+					JSONRPC.invoke(receiver, request, params, receiver);
+				}
+			}
+		};
+		while (true) {
+			Inbox inbox = inboxes.get(agentId);
+			if (inbox == null) {
+				inbox = new Inbox(agentId);
+				final Inbox old = inboxes.putIfAbsent(agentId, inbox);
+				if (old != null) {
+					inbox = old;
+				}
+			}
+			if (inbox.offer(delivery, host)) {
+				break;
+			}
+			// that inbox was just closed
+			inboxes.remove(agentId, inbox);
+		}
+		delivered.addAndGet(requests.size());
+		return true;
+	}
+	
+	/**
+	 * Gets the id of the agent at the given url, if it is on this host and the
+	 * host delivers messages to it locally (see AgentHost.isDoesShortcut()).
+	 * 
+	 * @param host
+	 *            the host
+	 * @param url
+	 *            the url
+	 * @return the agent id, null if not local
+	 */
+	private String getAgentId(final AgentHost host, final URI url) {
+		if (!"local".equals(url.getScheme()) && !host.isDoesShortcut()) {
+			return null;
+		}
+		final String key = url.toString();
+		String agentId = agentIds.get(key);
+		if (agentId == null) {
+			try {
+				agentId = host.getAgentId(url);
+			} catch (final URISyntaxException e) {
+				agentId = null;
+			}
+			agentIds.put(key, agentId != null ? agentId : REMOTE);
+		}
+		return REMOTE.equals(agentId) ? null : agentId;
+	}
+	
+	/**
+	 * Forget which urls are local, e.g. after transport services changed.
+	 */
+	public void clear() {
+		agentIds.clear();
+	}
+	
+	/**
+	 * Gets the number of callbacks delivered in-process.
+	 * 
+	 * @return the delivered
+	 */
+	public long getDelivered() {
+		return delivered.get();
+	}
+	
+	/**
+	 * The inbox of a subscriber: its deliveries, run one after the other by a
+	 * single task on the pool of the host.
+	 */
+	private final class Inbox implements Runnable {
+		private final String				agentId;
+		private final ArrayDeque<Runnable>	queue	= new ArrayDeque<Runnable>();
+		private boolean						running	= false;
+		private boolean						closed	= false;
+		
+		/**
+		 * Instantiates a new inbox.
+		 * 
+		 * @param agentId
+		 *            the agent id
+		 */
+		private Inbox(final String agentId) {
+			this.agentId = agentId;
+		}
+		
+		/**
+		 * Queue a delivery, and start the task running the deliveries if not
+		 * running yet.
+		 * 
+		 * @param delivery
+		 *            the delivery
+		 * @param host
+		 *            the host
+		 * @return false if the inbox is closed
+		 */
+		private boolean offer(final Runnable delivery, final AgentHost host) {
+			synchronized (this) {
+				if (closed) {
+					return false;
+				}
+				queue.add(delivery);
+				if (running) {
+					return true;
+				}
+				running = true;
+			}
+			host.getPool().execute(this);
+			return true;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			while (true) {
+				final Runnable delivery;
+				synchronized (this) {
+					delivery = queue.poll();
+					if (delivery == null) {
+						running = false;
+						closed = true;
+						break;
+					}
+				}
+				try {
+					delivery.run();
+				} catch (final RuntimeException e) {
+					LOG.log(Level.WARNING, "Failed to deliver event to "
+							+ agentId, e);
+				}
+			}
+			inboxes.remove(agentId, this);
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index of the subscriptions on the events of an agent: by
+ * subscription id, by event and by callback url and method. Subscribing,
+ * unsubscribing and matching an event don't scan all subscriptions.
+ * 
+ * Event names are hierarchical, with segments separated by dots (e.g.
+ * "cell.state"). A subscription can be on a pattern: the segment "*" matches
+ * exactly one segment, "**" matches any number of segments. The pattern "*"
+ * on its own matches all events, as it always did. Patterns are kept in a
+ * trie of segments, so matching an event only visits the patterns that
+ * could match it.
+ * 
+ * The index is thread safe. The host keeps one index per agent, filled from
+ * the state of the agent when it is first used.
+ */
+public final class SubscriptionIndex {
+	/** The pattern matching all events. */
+	public static final String							ALL			= "*";
+	private static final String							ONE			= "*";
+	private static final String							ANY			= "**";
+	private final Map<String, Callback>					byId		= new HashMap<String, Callback>();
+	private final Map<String, Map<String, Callback>>	byEvent		= new HashMap<String, Map<String, Callback>>();
+	private final Map<String, Map<String, Set<String>>>	byCallback	= new HashMap<String, Map<String, Set<String>>>();
+	private final Node									patterns	= new Node();
+	private boolean										loaded		= false;
+	
+	/**
+	 * Checks if the given event name is a pattern.
+	 * 
+	 * @param event
+	 *            the event
+	 * @return true, if it contains a wildcard segment
+	 */
+	public static boolean isPattern(final String event) {
+		for (final String segment : split(event)) {
+			if (ONE.equals(segment) || ANY.equals(segment)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Split an event name or pattern into its segments.
+	 * 
+	 * @param event
+	 *            the event
+	 * @return the segments
+	 */
+	private static String[] split(final String event) {
+		if (ALL.equals(event)) {
+			return new String[] { ANY };
+		}
+		return event.split("\\.", -1);
+	}
+	
+	/**
+	 * Add a subscription, its event must be set.
+	 * 
+	 * @param subscription
+	 *            the subscription
+	 */
+	public synchronized void add(final Callback subscription) {
+		remove(subscription.getId());
+		final String event = subscription.getEvent();
+		byId.put(subscription.getId(), subscription);
+		Map<String, Callback> subscriptions = byEvent.get(event);
+		if (subscriptions == null) {
+			subscriptions = new LinkedHashMap<String, Callback>();
+			byEvent.put(event, subscriptions);
+			if (isPattern(event)) {
+				patterns.add(split(event), 0, event);
+			}
+		}
+		subscriptions.put(subscription.getId(), subscription);
+		
+		Map<String, Set<String>> methods = byCallback.get(subscription
+				.getUrl());
+		if (methods == null) {
+			methods = new HashMap<String, Set<String>>();
+			byCallback.put(subscription.getUrl(), methods);
+		}
+		Set<String> ids = methods.get(subscription.getMethod());
+		if (ids == null) {
+			ids = new LinkedHashSet<String>();
+			methods.put(subscription.getMethod(), ids);
+		}
+		ids.add(subscription.getId());
+	}
+	
+	/**
+	 * Remove a subscription.
+	 * 
+	 * @param subscriptionId
+	 *            the subscription id
+	 * @return the removed subscription, null if not found
+	 */
+	public synchronized Callback remove(final String subscriptionId) {
+		final Callback subscription = byId.remove(subscriptionId);
+		if (subscription == null) {
+			return null;
+		}
+		final String event = subscription.getEvent();
+		final Map<String, Callback> subscriptions = byEvent.get(event);
+		subscriptions.remove(subscriptionId);
+		if (subscriptions.isEmpty()) {
+			byEvent.remove(event);
+			if (isPattern(event)) {
+				patterns.remove(split(event), 0, event);
+			}
+		}
+		
+		final Map<String, Set<String>> methods = byCallback.get(subscription
+				.getUrl());
+		final Set<String> ids = methods.get(subscription.getMethod());
+		ids.remove(subscriptionId);
+		if (ids.isEmpty()) {
+			methods.remove(subscription.getMethod());
+			if (methods.isEmpty()) {
+				byCallback.remove(subscription.getUrl());
+			}
+		}
+		return subscription;
+	}
+	
+	/**
+	 * Find the subscriptions with the given callback url.
+	 * 
+	 * @param url
+	 *            the callback url
+	 * @param method
+	 *            the callback method, null for any method
+	 * @param event
+	 *            the event (or pattern) subscribed to, null for any event
+	 * @return the subscriptions
+	 */
+	public synchronized List<Callback> find(final String url,
+			final String method, final String event) {
+		final List<Callback> result = new ArrayList<Callback>();
+		final Map<String, Set<String>> methods = byCallback.get(url);
+		if (methods == null) {
+			return result;
+		}
+		for (final Map.Entry<String, Set<String>> entry : methods.entrySet()) {
+			if (method != null && !method.equals(entry.getKey())) {
+				continue;
+			}
+			for (final String id : entry.getValue()) {
+				final Callback subscription = byId.get(id);
+				if (event == null || event.equals(subscription.getEvent())) {
+					result.add(subscription);
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the subscriptions on the given event (or pattern) itself.
+	 * 
+	 * @param event
+	 *            the event
+	 * @return the subscriptions
+	 */
+	public synchronized List<Callback> get(final String event) {
+		final Map<String, Callback> subscriptions = byEvent.get(event);
+		if (subscriptions == null) {
+			return new ArrayList<Callback>();
+		}
+		return new ArrayList<Callback>(subscriptions.values());
+	}
+	
+	/**
+	 * Gets the subscriptions matching the given event: the subscriptions on
+	 * the event itself, followed by those on matching patterns.
+	 * 
+	 * @param event
+	 *            the event
+	 * @return the subscriptions
+	 */
+	public synchronized List<Callback> match(final String event) {
+		final List<Callback> result = get(event);
+		if (patterns.isEmpty()) {
+			return result;
+		}
+		final Set<String> matched = new LinkedHashSet<String>();
+		patterns.match(split(event), 0, matched);
+		for (final String pattern : matched) {
+			result.addAll(byEvent.get(pattern).values());
+		}
+		return result;
+	}
+	
+	/**
+	 * Gets the number of subscriptions.
+	 * 
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return byId.size();
+	}
+	
+	/**
+	 * Gets the number of events (and patterns) with subscriptions.
+	 * 
+	 * @return the event count
+	 */
+	public synchronized int getEventCount() {
+		return byEvent.size();
+	}
+	
+	/**
+	 * Checks if the subscriptions in the state of the agent have been added.
+	 * 
+	 * @return true, if loaded
+	 */
+	synchronized boolean isLoaded() {
+		return loaded;
+	}
+	
+	/**
+	 * Mark the subscriptions in the state of the agent as added.
+	 */
+	synchronized void setLoaded() {
+		loaded = true;
+	}
+	
+	/**
+	 * Remove all subscriptions.
+	 */
+	public synchronized void clear() {
+		byId.clear();
+		byEvent.clear();
+		byCallback.clear();
+		patterns.children.clear();
+		patterns.patterns.clear();
+	}
+	
+	/**
+	 * A node of the pattern trie: the patterns ending at this node, and the
+	 * nodes of the next segment.
+	 */
+	private static final class Node {
+		private final Map<String, Node>	children	= new HashMap<String, Node>();
+		private final Set<String>		patterns	= new LinkedHashSet<String>();
+		
+		/**
+		 * Checks if no pattern ends at or below this node.
+		 * 
+		 * @return true, if empty
+		 */
+		private boolean isEmpty() {
+			return patterns.isEmpty() && children.isEmpty();
+		}
+		
+		/**
+		 * Add a pattern.
+		 * 
+		 * @param segments
+		 *            the segments of the pattern
+		 * @param index
+		 *            the index of the segment of this node's children
+		 * @param pattern
+		 *            the pattern
+		 */
+		private void add(final String[] segments, final int index,
+				final String pattern) {
+			if (index == segments.length) {
+				patterns.add(pattern);
+				return;
+			}
+			Node child = children.get(segments[index]);
+			if (child == null) {
+				child = new Node();
+				children.put(segments[index], child);
+			}
+			child.add(segments, index + 1, pattern);
+		}
+		
+		/**
+		 * Remove a pattern, dropping nodes which become empty.
+		 * 
+		 * @param segments
+		 *            the segments of the pattern
+		 * @param index
+		 *            the index of the segment of this node's children
+		 * @param pattern
+		 *            the pattern
+		 */
+		private void remove(final String[] segments, final int index,
+				final String pattern) {
+			if (index == segments.length) {
+				patterns.remove(pattern);
+				return;
+			}
+			final Node child = children.get(segments[index]);
+			if (child != null) {
+				child.remove(segments, index + 1, pattern);
+				if (child.isEmpty()) {
+					children.remove(segments[index]);
+				}
+			}
+		}
+		
+		/**
+		 * Collect the patterns matching the remaining segments of an event.
+		 * 
+		 * @param segments
+		 *            the segments of the event
+		 * @param index
+		 *            the first segment not matched yet
+		 * @param result
+		 *            the matching patterns
+		 */
+		private void match(final String[] segments, final int index,
+				final Set<String> result) {
+			if (index == segments.length) {
+				result.addAll(patterns);
+			} else {
+				final Node exact = children.get(segments[index]);
+				if (exact != null) {
+					exact.match(segments, index + 1, result);
+				}
+				final Node one = children.get(ONE);
+				if (one != null) {
+					one.match(segments, index + 1, result);
+				}
+			}
+			final Node any = children.get(ANY);
+			if (any != null) {
+				for (int i = index; i <= segments.length; i++) {
+					any.match(segments, i, result);
+				}
+			}
+		}
+	}
+}
@@ -273,7 +273,8 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 					
 					ObjectNode params = JOM.createObjectNode();
 					if (callbackParams != null) {
-						params = callbackParams;
+						// copy-on-write, see JSONMessage
+						params = callbackParams.deepCopy();
 					}
 					params.put("result",
 							JOM.getInstance().writeValueAsString(result));
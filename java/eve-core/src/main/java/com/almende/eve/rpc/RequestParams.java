@@ -5,8 +5,10 @@
 package com.almende.eve.rpc;
 
 import java.lang.annotation.Annotation;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 // TODO: rework the RequestParams class to something more generic
 /**
@@ -25,6 +27,16 @@ public class RequestParams {
 	public RequestParams() {
 	}
 	
+	/**
+	 * Instantiates a copy of the given request params.
+	 * 
+	 * @param requestParams
+	 *            the request params to copy
+	 */
+	public RequestParams(final RequestParams requestParams) {
+		params.putAll(requestParams.params);
+	}
+	
 	/**
 	 * Put.
 	 * 
@@ -81,4 +93,13 @@ public class RequestParams {
 		return has(annotation.annotationType());
 	}
 	
+	/**
+	 * Gets the full class paths of the annotation types in these params.
+	 * 
+	 * @return the annotation type names, this set can't be modified
+	 */
+	public Set<String> keySet() {
+		return Collections.unmodifiableSet(params.keySet());
+	}
+	
 }
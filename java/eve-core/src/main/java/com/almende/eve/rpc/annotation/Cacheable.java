@@ -0,0 +1,38 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation to denote a JSON-RPC method whose result can be cached. The
+ * result is kept in the result cache of the destination (the agent) until the
+ * ttl expires, the state of the agent changes, or the cache is invalidated
+ * explicitly.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(value = ElementType.METHOD)
+@Documented
+public @interface Cacheable {
+
+	/**
+	 * Time to live of a cached result.
+	 *
+	 * @return the ttl in milliseconds, 0 to keep the result until the cache
+	 *         is invalidated
+	 */
+	long ttl() default 0;
+
+	/**
+	 * Names of the params which make up the cache key.
+	 *
+	 * @return the param names, all params are used if empty
+	 */
+	String[] key() default {};
+}
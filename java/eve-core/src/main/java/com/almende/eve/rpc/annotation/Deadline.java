@@ -0,0 +1,24 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation to denote a parameter as placeholder for the deadline of the
+ * request: a Long with the time in milliseconds since epoch after which the
+ * caller no longer waits for the result, or null if the request has no
+ * deadline.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(value = ElementType.PARAMETER)
+@Documented
+public @interface Deadline {
+	
+}
@@ -0,0 +1,749 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.jsonrpc;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.agent.annotation.Namespace;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.annotation.Access;
+import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Cacheable;
+import com.almende.eve.rpc.annotation.Name;
+import com.almende.eve.rpc.annotation.Optional;
+import com.almende.eve.rpc.annotation.Sender;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.util.AnnotationUtil;
+import com.almende.util.AnnotationUtil.AnnotatedClass;
+import com.almende.util.AnnotationUtil.AnnotatedMethod;
+import com.almende.util.AnnotationUtil.AnnotatedParam;
+import com.almende.util.TypeUtil;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Immutable, precompiled JSON-RPC dispatch table of a single class.
+ *
+ * The table is built once per class, at first use, and maps method names to
+ * a MethodEntry (the method, its parameter binders and its static access
+ * verdict) and namespace names to their getter. Namespace getters are
+ * invoked per call, as the returned object (and therefore its class) can
+ * differ per agent instance; the remainder of the path is resolved in the
+ * table of that object's class.
+ *
+ * The table is the single source of truth of what can be called: invoke,
+ * describe and validate in JSONRPC all work from it.
+ */
+public final class DispatchTable {
+	private static final Logger							LOG		= Logger.getLogger(DispatchTable.class
+																		.getName());
+	private static final Map<Class<?>, DispatchTable>	TABLES	= new ConcurrentHashMap<Class<?>, DispatchTable>();
+	private static volatile Invoker						invoker	= Invoker.REFLECTION;
+	private final Map<String, MethodEntry>				methods;
+	private final List<MethodEntry>						entries;
+	private final Map<String, AnnotatedMethod>			namespaces;
+	private final boolean								cacheable;
+	
+	/**
+	 * Instantiates a new dispatch table.
+	 *
+	 * @param clazz
+	 *            the clazz
+	 */
+	private DispatchTable(final Class<?> clazz) {
+		final AnnotatedClass annotatedClass = AnnotationUtil.get(clazz);
+		final Access classAccess = annotatedClass.getAnnotation(Access.class);
+		
+		final Map<String, MethodEntry> methods = new HashMap<String, MethodEntry>();
+		final Map<String, AnnotatedMethod> namespaces = new HashMap<String, AnnotatedMethod>();
+		final List<MethodEntry> entries = new ArrayList<MethodEntry>();
+		boolean hasCacheable = false;
+		for (final AnnotatedMethod method : annotatedClass.getMethods()) {
+			final MethodEntry entry = new MethodEntry(method, classAccess);
+			entries.add(entry);
+			// First method with a given name wins, like the old name lookup.
+			if (!methods.containsKey(method.getName())) {
+				methods.put(method.getName(), entry);
+				hasCacheable |= entry.available && entry.cacheable != null;
+			}
+			final Namespace namespace = method.getAnnotation(Namespace.class);
+			if (namespace != null
+					&& !namespaces.containsKey(namespace.value())) {
+				namespaces.put(namespace.value(), method);
+			}
+		}
+		this.methods = Collections.unmodifiableMap(methods);
+		this.entries = Collections.unmodifiableList(entries);
+		this.namespaces = Collections.unmodifiableMap(namespaces);
+		cacheable = hasCacheable;
+	}
+	
+	/**
+	 * Get the dispatch table of the given class, building it at first use.
+	 *
+	 * @param clazz
+	 *            the clazz
+	 * @return the dispatch table
+	 */
+	public static DispatchTable get(final Class<?> clazz) {
+		DispatchTable table = TABLES.get(clazz);
+		if (table == null) {
+			// Building twice concurrently is harmless, the tables are equal.
+			table = new DispatchTable(clazz);
+			TABLES.put(clazz, table);
+		}
+		return table;
+	}
+	
+	/**
+	 * Gets the invoker used for all JSON-RPC method invocations.
+	 *
+	 * @return the invoker
+	 */
+	public static Invoker getInvoker() {
+		return invoker;
+	}
+	
+	/**
+	 * Sets the invoker used for all JSON-RPC method invocations.
+	 *
+	 * @param invoker
+	 *            the new invoker, null resets to REFLECTION
+	 */
+	public static void setInvoker(final Invoker invoker) {
+		DispatchTable.invoker = invoker != null ? invoker : Invoker.REFLECTION;
+		LOG.log(Level.FINE, "Using " + DispatchTable.invoker
+				+ " for JSON-RPC method invocation.");
+	}
+	
+	/**
+	 * Resolve a (namespaced) method name on the given destination, e.g.
+	 * "scheduler.getTasks".
+	 *
+	 * @param destination
+	 *            the destination
+	 * @param path
+	 *            the full method name
+	 * @return the target, or null if the path can't be resolved.
+	 * @throws IllegalAccessException
+	 *             the illegal access exception
+	 * @throws InvocationTargetException
+	 *             the invocation target exception
+	 */
+	public static Target resolve(final Object destination, final String path)
+			throws IllegalAccessException, InvocationTargetException {
+		Object dest = destination;
+		String remainder = path;
+		while (dest != null && remainder != null) {
+			final DispatchTable table = get(dest.getClass());
+			final int dot = remainder.indexOf('.');
+			if (dot < 0) {
+				final MethodEntry entry = table.methods.get(remainder);
+				return entry != null ? new Target(dest, entry) : null;
+			}
+			final AnnotatedMethod getter = table.namespaces.get(remainder
+					.substring(0, dot));
+			if (getter == null) {
+				return null;
+			}
+			dest = getter.getActualMethod().invoke(dest, (Object[]) null);
+			remainder = remainder.substring(dot + 1);
+		}
+		return null;
+	}
+	
+	/**
+	 * Gets the method entry by its (non-namespaced) name.
+	 *
+	 * @param name
+	 *            the name
+	 * @return the method entry, null if not found
+	 */
+	public MethodEntry getMethod(final String name) {
+		return methods.get(name);
+	}
+	
+	/**
+	 * Gets the method entries the calls are dispatched to, one per method
+	 * name.
+	 *
+	 * @return the method entries
+	 */
+	public Collection<MethodEntry> getMethods() {
+		return methods.values();
+	}
+	
+	/**
+	 * Gets the entries of all methods of the class, in order, including
+	 * methods which are never called as an earlier method has the same name.
+	 *
+	 * @return the method entries
+	 */
+	public List<MethodEntry> getEntries() {
+		return entries;
+	}
+	
+	/**
+	 * Checks whether this class has methods with a cacheable result.
+	 *
+	 * @return true, if any available method is annotated with Cacheable
+	 */
+	public boolean hasCacheable() {
+		return cacheable;
+	}
+	
+	/**
+	 * Gets the namespace getter by namespace name.
+	 *
+	 * @param namespace
+	 *            the namespace
+	 * @return the namespace getter, null if not found
+	 */
+	public AnnotatedMethod getNamespace(final String namespace) {
+		return namespaces.get(namespace);
+	}
+	
+	/**
+	 * Gets the namespace getters by namespace name.
+	 *
+	 * @return the namespace getters
+	 */
+	public Map<String, AnnotatedMethod> getNamespaces() {
+		return namespaces;
+	}
+	
+	/**
+	 * A resolved call target: the (namespace) object and the method entry.
+	 */
+	public static final class Target {
+		private final Object		destination;
+		private final MethodEntry	entry;
+		
+		/**
+		 * Instantiates a new target.
+		 *
+		 * @param destination
+		 *            the destination
+		 * @param entry
+		 *            the entry
+		 */
+		private Target(final Object destination, final MethodEntry entry) {
+			this.destination = destination;
+			this.entry = entry;
+		}
+		
+		/**
+		 * Gets the destination.
+		 *
+		 * @return the destination
+		 */
+		public Object getDestination() {
+			return destination;
+		}
+		
+		/**
+		 * Gets the method entry.
+		 *
+		 * @return the entry
+		 */
+		public MethodEntry getEntry() {
+			return entry;
+		}
+	}
+	
+	/**
+	 * Precompiled information of a single JSON-RPC method.
+	 */
+	public static final class MethodEntry {
+		private final AnnotatedMethod			method;
+		private final ParamBinder[]				binders;
+		private final Map<String, ParamBinder>	namedBinders;
+		private final boolean					available;
+		private final Access					access;
+		private final boolean					needsRequestParams;
+		private final boolean					objectNodeParam;
+		private final MethodHandle				methodHandle;
+		private final Cacheable					cacheable;
+		
+		/**
+		 * Instantiates a new method entry.
+		 *
+		 * @param method
+		 *            the method
+		 * @param classAccess
+		 *            the class level access annotation
+		 */
+		private MethodEntry(final AnnotatedMethod method,
+				final Access classAccess) {
+			this.method = method;
+			
+			final List<AnnotatedParam> params = method.getParams();
+			binders = new ParamBinder[params.size()];
+			boolean allBindable = true;
+			boolean unnamed = false;
+			final Map<String, ParamBinder> named = new HashMap<String, ParamBinder>();
+			for (int i = 0; i < binders.length; i++) {
+				binders[i] = new ParamBinder(params.get(i), i);
+				if (binders[i].name != null) {
+					named.put(binders[i].name, binders[i]);
+				} else {
+					unnamed = true;
+					if (binders[i].annotations.length == 0) {
+						allBindable = false;
+					}
+				}
+			}
+			namedBinders = named;
+			needsRequestParams = unnamed;
+			objectNodeParam = params.size() == 1
+					&& params.get(0).getType().equals(ObjectNode.class)
+					&& params.get(0).getAnnotations().size() == 0;
+			
+			Access methodAccess = method.getAnnotation(Access.class);
+			if (methodAccess == null) {
+				methodAccess = classAccess;
+			}
+			access = methodAccess;
+			
+			// Static part of the access verdict, New default: UNAVAILABLE!
+			available = Modifier.isPublic(method.getActualMethod()
+					.getModifiers())
+					&& allBindable
+					&& access != null
+					&& access.value() != AccessType.UNAVAILABLE;
+			methodHandle = available ? createMethodHandle(method
+					.getActualMethod()) : null;
+			cacheable = method.getAnnotation(Cacheable.class);
+		}
+		
+		/**
+		 * Create a (destination, Object[])Object handle for the given method.
+		 *
+		 * @param method
+		 *            the method
+		 * @return the method handle, null if it can't be created
+		 */
+		private static MethodHandle createMethodHandle(final Method method) {
+			try {
+				MethodHandle handle = MethodHandles.lookup().unreflect(method)
+						.asFixedArity();
+				if (Modifier.isStatic(method.getModifiers())) {
+					handle = MethodHandles.dropArguments(handle, 0,
+							Object.class);
+				}
+				final int count = handle.type().parameterCount();
+				return handle.asType(MethodType.genericMethodType(count))
+						.asSpreader(Object[].class, count - 1);
+			} catch (final Exception e) {
+				LOG.log(Level.FINE, "No MethodHandle for method:" + method
+						+ ", using reflection.", e);
+				return null;
+			}
+		}
+		
+		/**
+		 * Check whether this method may be called. Only the dynamic part of
+		 * the access check (request parameters, PRIVATE and SELF access) is
+		 * done here, the rest has been decided while building the table.
+		 *
+		 * @param requestParams
+		 *            the request params
+		 * @param auth
+		 *            the auth
+		 * @return true, if is available
+		 */
+		public boolean isAvailable(final RequestParams requestParams,
+				final JSONAuthorizor auth) {
+			if (!available) {
+				return false;
+			}
+			if (needsRequestParams) {
+				for (final ParamBinder binder : binders) {
+					if (binder.name == null
+							&& binder.getRequestAnnotation(requestParams) == null) {
+						return false;
+					}
+				}
+			}
+			if (access.value() == AccessType.PRIVATE) {
+				return auth != null ? auth.onAccess(requestParams.get(Sender.class)
+						.toString(), access.tag()) : false;
+			}
+			if (access.value() == AccessType.SELF) {
+				return auth != null ? auth.isSelf(requestParams.get(Sender.class)
+						.toString()) : false;
+			}
+			return true;
+		}
+		
+		/**
+		 * Bind the params of the given request to the method arguments. If
+		 * the request still has its params as JSON text, each param is
+		 * deserialized straight from the text into its argument type.
+		 *
+		 * @param request
+		 *            the request
+		 * @param requestParams
+		 *            the request params
+		 * @return the arguments
+		 */
+		public Object[] bind(final JSONRequest request,
+				final RequestParams requestParams) {
+			final String rawParams = request.getRawParams();
+			if (rawParams == null || objectNodeParam) {
+				return bind(request.getParams(), requestParams);
+			}
+			final Object[] objects = new Object[binders.length];
+			if (binders.length == 0) {
+				return objects;
+			}
+			final boolean[] found = new boolean[binders.length];
+			try {
+				final JsonParser jp = JOM.getInstance().getFactory()
+						.createParser(rawParams);
+				try {
+					jp.nextToken();
+					while (jp.nextToken() == JsonToken.FIELD_NAME) {
+						final ParamBinder binder = namedBinders.get(jp
+								.getCurrentName());
+						jp.nextToken();
+						if (binder != null
+								&& binder.getRequestAnnotation(requestParams) == null) {
+							objects[binder.index] = binder.reader.readValue(jp);
+							found[binder.index] = true;
+						} else {
+							jp.skipChildren();
+						}
+					}
+				} finally {
+					jp.close();
+				}
+			} catch (final IOException e) {
+				throw new IllegalArgumentException(e.getMessage(), e);
+			}
+			for (int i = 0; i < binders.length; i++) {
+				if (!found[i]) {
+					objects[i] = binders[i].bindMissing(requestParams);
+				}
+			}
+			return objects;
+		}
+		
+		/**
+		 * Bind the JSON-RPC params to the method arguments.
+		 *
+		 * @param params
+		 *            the params
+		 * @param requestParams
+		 *            the request params
+		 * @return the arguments
+		 */
+		public Object[] bind(final ObjectNode params,
+				final RequestParams requestParams) {
+			final Object[] objects = new Object[binders.length];
+			if (binders.length == 0) {
+				return objects;
+			}
+			if (params == null) {
+				throw new ClassCastException("params must be a JSONObject");
+			}
+			if (objectNodeParam) {
+				// the method expects one parameter of type JSONObject
+				// feed the params object itself to it.
+				objects[0] = params;
+				return objects;
+			}
+			for (int i = 0; i < binders.length; i++) {
+				objects[i] = binders[i].bind(params, requestParams);
+			}
+			return objects;
+		}
+		
+		/**
+		 * Invoke the method on the given destination, using the configured
+		 * invoker.
+		 *
+		 * @param destination
+		 *            the destination
+		 * @param args
+		 *            the args
+		 * @return the result
+		 * @throws IllegalAccessException
+		 *             the illegal access exception
+		 * @throws InvocationTargetException
+		 *             the invocation target exception
+		 */
+		public Object invoke(final Object destination, final Object[] args)
+				throws IllegalAccessException, InvocationTargetException {
+			return invoker.invoke(this, destination, args);
+		}
+		
+		/**
+		 * Gets the Cacheable annotation of this method.
+		 *
+		 * @return the annotation, null if the results can't be cached
+		 */
+		public Cacheable getCacheable() {
+			return cacheable;
+		}
+		
+		/**
+		 * Get the key under which the result of the given request is cached:
+		 * the values of the params listed in the Cacheable annotation (or a
+		 * hash of all params), and the sender if the method has a Sender
+		 * parameter. Without listed params the params of the request are not
+		 * parsed.
+		 *
+		 * @param request
+		 *            the request
+		 * @param requestParams
+		 *            the request params
+		 * @return the cache key
+		 */
+		public String getCacheKey(final JSONRequest request,
+				final RequestParams requestParams) {
+			final List<String> names = cacheable != null ? Arrays
+					.asList(cacheable.key()) : Collections.<String> emptyList();
+			final ObjectNode params = names.isEmpty() ? null : request
+					.getParams();
+			final StringBuilder key = new StringBuilder();
+			for (final ParamBinder binder : binders) {
+				final Annotation annotation = binder
+						.getRequestAnnotation(requestParams);
+				if (annotation != null) {
+					if (annotation instanceof Sender) {
+						key.append(requestParams.get(annotation)).append(',');
+					}
+				} else if (binder.name != null && names.contains(binder.name)) {
+					key.append(binder.name).append('=')
+							.append(params != null ? params.get(binder.name)
+									: null).append(',');
+				}
+			}
+			if (names.isEmpty()) {
+				key.append(Long.toHexString(request.getParamsHash()));
+			}
+			return key.toString();
+		}
+		
+		/**
+		 * Gets the method handle.
+		 *
+		 * @return the method handle, null if not available
+		 */
+		MethodHandle getMethodHandle() {
+			return methodHandle;
+		}
+		
+		/**
+		 * Gets the method name.
+		 *
+		 * @return the name
+		 */
+		public String getName() {
+			return method.getName();
+		}
+		
+		/**
+		 * Gets the binders of the method parameters.
+		 *
+		 * @return the param binders, in parameter order
+		 */
+		List<ParamBinder> getParams() {
+			return Arrays.asList(binders);
+		}
+		
+		/**
+		 * Gets the annotated method.
+		 *
+		 * @return the method
+		 */
+		public AnnotatedMethod getMethod() {
+			return method;
+		}
+		
+		/**
+		 * Gets the actual method.
+		 *
+		 * @return the actual method
+		 */
+		public Method getActualMethod() {
+			return method.getActualMethod();
+		}
+	}
+	
+	/**
+	 * Precompiled binder of a single method parameter.
+	 */
+	static final class ParamBinder {
+		private final int			index;
+		private final String		name;
+		private final boolean		required;
+		private final Class<?>		type;
+		private final Type			genericType;
+		private final JavaType		javaType;
+		private final ObjectReader	reader;
+		private final Annotation[]	annotations;
+		
+		/**
+		 * Instantiates a new param binder.
+		 *
+		 * @param param
+		 *            the param
+		 * @param index
+		 *            the index
+		 */
+		@SuppressWarnings("deprecation")
+		private ParamBinder(final AnnotatedParam param, final int index) {
+			this.index = index;
+			final Name nameAnnotation = param.getAnnotation(Name.class);
+			name = nameAnnotation != null ? nameAnnotation.value() : null;
+			
+			boolean req = true;
+			final com.almende.eve.rpc.annotation.Required requiredAnnotation = param
+					.getAnnotation(com.almende.eve.rpc.annotation.Required.class);
+			if (requiredAnnotation != null) {
+				req = requiredAnnotation.value();
+			}
+			if (param.getAnnotation(Optional.class) != null) {
+				req = false;
+			}
+			required = req;
+			type = param.getType();
+			genericType = param.getGenericType();
+			javaType = JOM.getTypeFactory().constructType(
+					param.getGenericType());
+			// The reader caches the deserializer of this param's type
+			reader = JOM.getInstance().reader(javaType);
+			annotations = param.getAnnotations().toArray(new Annotation[0]);
+		}
+		
+		/**
+		 * Gets the name.
+		 *
+		 * @return the name, null if the parameter has no Name annotation
+		 */
+		String getName() {
+			return name;
+		}
+		
+		/**
+		 * Checks if the parameter is required.
+		 *
+		 * @return true, if required
+		 */
+		boolean isRequired() {
+			return required;
+		}
+		
+		/**
+		 * Gets the generic type.
+		 *
+		 * @return the generic type
+		 */
+		Type getGenericType() {
+			return genericType;
+		}
+		
+		/**
+		 * Checks if the value of this parameter is given by the request params
+		 * (e.g. the Sender), instead of by the JSON-RPC params.
+		 *
+		 * @param requestParams
+		 *            the request params
+		 * @return true, if it is a request param
+		 */
+		boolean isRequestParam(final RequestParams requestParams) {
+			return getRequestAnnotation(requestParams) != null;
+		}
+		
+		/**
+		 * Find a request annotation of this parameter.
+		 *
+		 * @param requestParams
+		 *            the request params
+		 * @return the annotation, null if not found
+		 */
+		private Annotation getRequestAnnotation(
+				final RequestParams requestParams) {
+			if (requestParams != null) {
+				for (final Annotation annotation : annotations) {
+					if (requestParams.has(annotation)) {
+						return annotation;
+					}
+				}
+			}
+			return null;
+		}
+		
+		/**
+		 * Bind this parameter.
+		 *
+		 * @param params
+		 *            the params
+		 * @param requestParams
+		 *            the request params
+		 * @return the object
+		 */
+		private Object bind(final ObjectNode params,
+				final RequestParams requestParams) {
+			if (name != null && params.has(name)
+					&& getRequestAnnotation(requestParams) == null) {
+				return TypeUtil.inject(params.get(name), javaType);
+			}
+			return bindMissing(requestParams);
+		}
+		
+		/**
+		 * Bind this parameter, in absence of a JSON-RPC param value.
+		 *
+		 * @param requestParams
+		 *            the request params
+		 * @return the object
+		 */
+		private Object bindMissing(final RequestParams requestParams) {
+			final Annotation a = getRequestAnnotation(requestParams);
+			if (a != null) {
+				// this is a systems parameter
+				return requestParams.get(a);
+			}
+			if (name == null) {
+				// this is a problem
+				throw new ClassCastException("Name of parameter " + index
+						+ " not defined");
+			}
+			if (required) {
+				throw new ClassCastException("Required parameter '" + name
+						+ "' missing.");
+			} else if (type.isPrimitive()) {
+				throw new ClassCastException("Parameter '" + name
+						+ "' cannot be both optional and " + "a primitive type ("
+						+ type.getSimpleName() + ")");
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.jsonrpc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.InvocationTargetException;
+
+import com.almende.eve.rpc.jsonrpc.DispatchTable.MethodEntry;
+
+/**
+ * The ways a JSON-RPC method can be invoked on its destination. Selected
+ * through the "rpc.invoker" configuration parameter, defaults to REFLECTION.
+ */
+public enum Invoker {
+	
+	/** Plain java.lang.reflect.Method invocation. */
+	REFLECTION {
+		@Override
+		Object invoke(final MethodEntry entry, final Object destination,
+				final Object[] args) throws IllegalAccessException,
+				InvocationTargetException {
+			return entry.getActualMethod().invoke(destination, args);
+		}
+	},
+	
+	/**
+	 * Invocation through a precompiled (destination, Object[])Object
+	 * MethodHandle per method. Falls back to reflection for methods that
+	 * couldn't be converted to such a handle.
+	 */
+	METHODHANDLE {
+		@Override
+		Object invoke(final MethodEntry entry, final Object destination,
+				final Object[] args) throws IllegalAccessException,
+				InvocationTargetException {
+			final MethodHandle handle = entry.getMethodHandle();
+			if (handle == null) {
+				return REFLECTION.invoke(entry, destination, args);
+			}
+			try {
+				return handle.invokeExact(destination, args);
+			} catch (final Throwable t) {
+				// Same contract as Method.invoke()
+				throw new InvocationTargetException(t);
+			}
+		}
+	};
+	
+	/**
+	 * Invoke the method of the given entry.
+	 * 
+	 * @param entry
+	 *            the entry
+	 * @param destination
+	 *            the destination
+	 * @param args
+	 *            the args
+	 * @return the result
+	 * @throws IllegalAccessException
+	 *             the illegal access exception
+	 * @throws InvocationTargetException
+	 *             the invocation target exception
+	 */
+	abstract Object invoke(final MethodEntry entry, final Object destination,
+			final Object[] args) throws IllegalAccessException,
+			InvocationTargetException;
+}
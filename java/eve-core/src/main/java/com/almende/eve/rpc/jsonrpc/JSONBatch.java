@@ -0,0 +1,89 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.jsonrpc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The Class JSONBatch, a JSON-RPC 2.0 batch: an array of requests, or of
+ * responses to such requests. Sent as a single message.
+ */
+public final class JSONBatch extends JSONMessage {
+	private static final long			serialVersionUID	= -1872531276480139561L;
+	private final List<JSONMessage>		messages;
+	private final List<JSONResponse>	errors;
+	
+	/**
+	 * Instantiates a new jSON batch.
+	 *
+	 * @param messages the messages
+	 */
+	public JSONBatch(final List<? extends JSONMessage> messages) {
+		this(messages, Collections.<JSONResponse> emptyList());
+	}
+	
+	/**
+	 * Instantiates a new jSON batch, as parsed from a JSON array with invalid
+	 * entries.
+	 *
+	 * @param messages the valid messages
+	 * @param errors the Invalid Request errors of the other entries
+	 */
+	public JSONBatch(final List<? extends JSONMessage> messages,
+			final List<JSONResponse> errors) {
+		this.messages = Collections
+				.unmodifiableList(new ArrayList<JSONMessage>(messages));
+		this.errors = Collections.unmodifiableList(new ArrayList<JSONResponse>(
+				errors));
+	}
+	
+	/**
+	 * Gets the messages of this batch.
+	 *
+	 * @return the messages
+	 */
+	public List<JSONMessage> getMessages() {
+		return messages;
+	}
+	
+	/**
+	 * Gets the errors for the entries of this batch which weren't valid
+	 * JSON-RPC messages. They are answered along with the requests.
+	 *
+	 * @return the errors
+	 */
+	public List<JSONResponse> getErrors() {
+		return errors;
+	}
+	
+	/**
+	 * A batch has no id of its own.
+	 *
+	 * @return null
+	 */
+	@Override
+	public JsonNode getId() {
+		return null;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < messages.size(); i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(messages.get(i).toString());
+		}
+		return sb.append(']').toString();
+	}
+}
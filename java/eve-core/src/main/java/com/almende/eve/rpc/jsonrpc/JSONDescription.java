@@ -0,0 +1,104 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.jsonrpc;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * The JSON-RPC description of a class, as created by JSONRPC.describe: the
+ * list of methods, its serialized form and an ETag of it. Descriptions are
+ * immutable, and memoized per class and access context.
+ */
+public final class JSONDescription {
+	private static final char[]	HEX	= "0123456789abcdef".toCharArray();
+	private final List<Object>	methods;
+	private final byte[]		bytes;
+	private final String		etag;
+	private final boolean		cacheable;
+	
+	/**
+	 * Instantiates a new JSON description.
+	 * 
+	 * @param methods
+	 *            the method descriptions, sorted by method name
+	 * @param cacheable
+	 *            whether any of the methods has a cacheable result
+	 * @throws JsonProcessingException
+	 *             the json processing exception
+	 */
+	JSONDescription(final List<Object> methods, final boolean cacheable)
+			throws JsonProcessingException {
+		this.methods = Collections.unmodifiableList(methods);
+		this.cacheable = cacheable;
+		bytes = JOM.getInstance().writeValueAsBytes(methods);
+		etag = createETag(bytes);
+	}
+	
+	/**
+	 * Create a (strong) ETag for the given content.
+	 * 
+	 * @param content
+	 *            the content
+	 * @return the ETag, including the quotes
+	 */
+	private static String createETag(final byte[] content) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(content);
+		} catch (final NoSuchAlgorithmException e) {
+			digest = new byte[0];
+		}
+		final StringBuilder sb = new StringBuilder(digest.length * 2 + 16);
+		sb.append('"');
+		for (final byte b : digest) {
+			sb.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+		}
+		sb.append('-').append(Integer.toHexString(content.length)).append('"');
+		return sb.toString();
+	}
+	
+	/**
+	 * Gets the method descriptions, this list can't be modified.
+	 * 
+	 * @return the methods
+	 */
+	public List<Object> getMethods() {
+		return methods;
+	}
+	
+	/**
+	 * Gets the serialized description, a JSON array. The returned array is
+	 * shared and mustn't be modified.
+	 * 
+	 * @return the bytes
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Gets the ETag of the serialized description.
+	 * 
+	 * @return the ETag, including the quotes
+	 */
+	public String getETag() {
+		return etag;
+	}
+	
+	/**
+	 * Checks whether any of the described methods has a cacheable result.
+	 * 
+	 * @return true, if cacheable
+	 */
+	public boolean isCacheable() {
+		return cacheable;
+	}
+}
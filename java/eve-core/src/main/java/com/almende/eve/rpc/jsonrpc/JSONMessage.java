@@ -10,6 +10,14 @@ import com.fasterxml.jackson.databind.JsonNode;
 
 /**
  * The Class JSONMessage.
+ * 
+ * Messages are passed by reference when sender and receiver live in the same
+ * AgentHost: the local shortcut delivers the very same JSONRequest or
+ * JSONResponse instance, without serializing it. Therefore messages (and
+ * the JsonNodes they contain) follow a copy-on-write contract: once a message
+ * has been sent, neither the sender nor the receiver may modify it. Code that
+ * needs a modified version must make a copy (e.g. ObjectNode.deepCopy())
+ * first.
  */
 public abstract class JSONMessage implements Serializable {
 	private static final long		serialVersionUID	= -3324436908445901707L;
@@ -21,6 +29,7 @@ public abstract class JSONMessage implements Serializable {
 	protected static final String	RESULT				= "result";
 	protected static final String	URL					= "url";
 	protected static final String	CALLBACK			= "callback";
+	protected static final String	DEADLINE			= "deadline";
 	protected static final String	VERSION				= "2.0";
 	
 	/**
@@ -5,11 +5,9 @@
 package com.almende.eve.rpc.jsonrpc;
 
 import java.io.IOException;
-import java.lang.annotation.Annotation;
-import java.lang.invoke.MethodHandle;
+import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -19,25 +17,20 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.almende.eve.agent.annotation.Namespace;
 import com.almende.eve.rpc.RequestParams;
-import com.almende.eve.rpc.annotation.Access;
-import com.almende.eve.rpc.annotation.AccessType;
-import com.almende.eve.rpc.annotation.Name;
-import com.almende.eve.rpc.annotation.Optional;
-import com.almende.eve.rpc.annotation.Sender;
+import com.almende.eve.rpc.annotation.Cacheable;
+import com.almende.eve.rpc.annotation.Deadline;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
-import com.almende.util.AnnotationUtil;
-import com.almende.util.AnnotationUtil.AnnotatedClass;
 import com.almende.util.AnnotationUtil.AnnotatedMethod;
-import com.almende.util.AnnotationUtil.AnnotatedParam;
-import com.almende.util.NamespaceUtil;
-import com.almende.util.NamespaceUtil.CallTuple;
-import com.almende.util.TypeUtil;
-import com.almende.util.uuid.UUID;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -45,17 +38,11 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  * The Class JSONRPC.
  */
 public final class JSONRPC {
-	private static final Logger		LOG				= Logger.getLogger(JSONRPC.class
-															.getName());
-	private static final boolean	USEMETHODHANDLE	= false;
-	
-	static {
-		if (USEMETHODHANDLE) {
-			LOG.log(Level.FINE, "Using MethodHandle i.s.o. plain reflection!");
-		} else {
-			LOG.log(Level.FINE, "Using plain reflection i.s.o. MethodHandle!");
-		}
-	}
+	private static final Logger										LOG				= Logger.getLogger(JSONRPC.class
+																						.getName());
+	private static volatile boolean									parallelBatch	= false;
+	private static final ThreadLocal<Long>							DEADLINE		= new ThreadLocal<Long>();
+	private static final ConcurrentHashMap<String, JSONDescription>	DESCRIPTIONS	= new ConcurrentHashMap<String, JSONDescription>();
 	
 	/**
 	 * Instantiates a new jsonrpc.
@@ -63,7 +50,6 @@ public final class JSONRPC {
 	private JSONRPC() {
 	}
 	
-	// TODO: implement JSONRPC 2.0 Batch
 	/**
 	 * Invoke a method on an object.
 	 * 
@@ -93,7 +79,7 @@ public final class JSONRPC {
 	 *            Optional request parameters
 	 * @param auth
 	 *            the auth
-	 * @return the string
+	 * @return the string, null if the request is a notification
 	 * @throws IOException
 	 *             Signals that an I/O exception has occurred.
 	 */
@@ -109,7 +95,7 @@ public final class JSONRPC {
 			jsonResponse = new JSONResponse(err);
 		}
 		
-		return jsonResponse.toString();
+		return jsonResponse != null ? jsonResponse.toString() : null;
 	}
 	
 	/**
@@ -121,7 +107,7 @@ public final class JSONRPC {
 	 *            the request
 	 * @param auth
 	 *            the auth
-	 * @return the jSON response
+	 * @return the jSON response, null if the request is a notification
 	 */
 	public static JSONResponse invoke(final Object destination,
 			final JSONRequest request, final JSONAuthorizor auth) {
@@ -139,19 +125,30 @@ public final class JSONRPC {
 	 *            Optional request parameters
 	 * @param auth
 	 *            the auth
-	 * @return the jSON response
+	 * @return the jSON response, null if the request is a notification
 	 */
 	public static JSONResponse invoke(final Object destination,
 			final JSONRequest request, final RequestParams requestParams,
 			final JSONAuthorizor auth) {
-		final JSONResponse resp = new JSONResponse(request.getId(), null);
+		JSONRPCException error = null;
+		Object result = null;
+		final Long deadline = request.getDeadline();
+		final Long outer = DEADLINE.get();
 		try {
-			final CallTuple tuple = NamespaceUtil.get(destination,
-					request.getMethod());
-			
-			final Object realDest = tuple.getDestination();
-			final AnnotatedMethod annotatedMethod = tuple.getMethod();
-			if (!isAvailable(annotatedMethod, realDest, requestParams, auth)) {
+			if (deadline != null) {
+				if (deadline <= System.currentTimeMillis()) {
+					throw new JSONRPCException(
+							JSONRPCException.CODE.DEADLINE_EXCEEDED,
+							"Deadline of request '" + request.getMethod()
+									+ "' has passed, not invoked.");
+				}
+				// nested calls done by the method inherit the deadline
+				DEADLINE.set(deadline);
+			}
+			final DispatchTable.Target target = DispatchTable.resolve(
+					destination, request.getMethod());
+			if (target == null
+					|| !target.getEntry().isAvailable(requestParams, auth)) {
 				throw new JSONRPCException(
 						JSONRPCException.CODE.METHOD_NOT_FOUND,
 						"Method '"
@@ -159,57 +156,330 @@ public final class JSONRPC {
 								+ "' not found. The method does not exist or you are not authorized.");
 			}
 			
-			final MethodHandle methodHandle = annotatedMethod.getMethodHandle();
-			final Method method = annotatedMethod.getActualMethod();
+			final Object realDest = target.getDestination();
+			final DispatchTable.MethodEntry entry = target.getEntry();
 			
-			Object result;
-			if (USEMETHODHANDLE) {
-				final Object[] params = castParams(realDest,
-						request.getParams(), annotatedMethod.getParams(),
-						requestParams);
-				result = methodHandle.invokeExact(params);
+			final ResultCache cache = getResultCache(destination, entry);
+			if (cache != null) {
+				final String key = entry.getCacheKey(request, requestParams);
+				result = cache.get(request.getMethod(), key);
+				if (result == null) {
+					final long generation = cache.getGeneration();
+					result = entry.invoke(realDest,
+							entry.bind(request, requestParams));
+					cache.put(request.getMethod(), key, result, entry
+							.getCacheable().ttl(), generation);
+				}
 			} else {
-				final Object[] params = castParams(request.getParams(),
-						annotatedMethod.getParams(), requestParams);
-				result = method.invoke(realDest, params);
-			}
-			if (result == null) {
-				result = JOM.createNullNode();
+				result = entry.invoke(realDest,
+						entry.bind(request, requestParams));
 			}
-			resp.setResult(result);
 		} catch (final JSONRPCException err) {
-			resp.setError(err);
+			error = err;
 		} catch (final Throwable err) {
 			final Throwable cause = err.getCause();
 			if (cause instanceof JSONRPCException) {
-				resp.setError((JSONRPCException) cause);
+				error = (JSONRPCException) cause;
 			} else {
 				if (err instanceof InvocationTargetException && cause != null) {
 					LOG.log(Level.WARNING,
 							"Exception raised, returning its cause as JSONRPCException. Request:"
 									+ request, cause);
 					
-					final JSONRPCException jsonError = new JSONRPCException(
+					error = new JSONRPCException(
 							JSONRPCException.CODE.INTERNAL_ERROR,
 							getMessage(cause), cause);
-					jsonError.setData(cause);
-					resp.setError(jsonError);
+					error.setData(cause);
 				} else {
 					LOG.log(Level.WARNING,
 							"Exception raised, returning it as JSONRPCException. Request:"
 									+ request, err);
 					
-					final JSONRPCException jsonError = new JSONRPCException(
+					error = new JSONRPCException(
 							JSONRPCException.CODE.INTERNAL_ERROR,
 							getMessage(err), err);
-					jsonError.setData(err);
-					resp.setError(jsonError);
+					error.setData(err);
+				}
+			}
+		} finally {
+			if (deadline != null) {
+				if (outer == null) {
+					DEADLINE.remove();
+				} else {
+					DEADLINE.set(outer);
 				}
 			}
 		}
+		if (request.isNotification()) {
+			// Nobody to report to, no response object is created.
+			if (error != null) {
+				LOG.log(Level.WARNING, "Notification failed:" + request, error);
+			}
+			return null;
+		}
+		final JSONResponse resp = new JSONResponse(request.getId(), null);
+		if (error != null) {
+			resp.setError(error);
+		} else {
+			resp.setResult(result != null ? result : JOM.createNullNode());
+		}
 		return resp;
 	}
 	
+	/**
+	 * Get the result cache to use for the given method.
+	 * 
+	 * @param destination
+	 *            the destination
+	 * @param entry
+	 *            the method entry
+	 * @return the result cache, null if the result isn't cached
+	 */
+	private static ResultCache getResultCache(final Object destination,
+			final DispatchTable.MethodEntry entry) {
+		if (entry.getCacheable() != null
+				&& destination instanceof ResultCacheOwner) {
+			return ((ResultCacheOwner) destination).getResultCache();
+		}
+		return null;
+	}
+	
+	/**
+	 * Get the deadline of the request that is being invoked by the current
+	 * thread. Requests sent from within an invoked method inherit this
+	 * deadline.
+	 * 
+	 * @return the deadline in milliseconds since epoch, null if none
+	 */
+	public static Long getDeadline() {
+		return DEADLINE.get();
+	}
+	
+	/**
+	 * Get the request params for the given request: the deadline of the
+	 * request is added to a copy of the given request params.
+	 * 
+	 * @param request
+	 *            the request
+	 * @param requestParams
+	 *            the request params, may be null
+	 * @return the request params
+	 */
+	public static RequestParams withDeadline(final JSONRequest request,
+			final RequestParams requestParams) {
+		final RequestParams params = requestParams != null ? new RequestParams(
+				requestParams) : new RequestParams();
+		params.put(Deadline.class, request.getDeadline());
+		return params;
+	}
+	
+	/**
+	 * Parse a JSON-RPC message with a streaming parser. The params of a
+	 * request are not parsed into an ObjectNode, only their JSON text is
+	 * kept, allowing them to be bound straight to the method arguments. A
+	 * JSON array is parsed into a JSONBatch, entries that are not JSON-RPC are
+	 * replaced by Invalid Request errors (see JSONBatch.getErrors()).
+	 * 
+	 * @param message
+	 *            the message
+	 * @return the JSONRequest, JSONResponse or JSONBatch, null if the message
+	 *         is not JSON-RPC.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws JSONRPCException
+	 *             the jSONRPC exception
+	 */
+	public static JSONMessage parse(final String message) throws IOException,
+			JSONRPCException {
+		final JsonParser jp = JOM.getInstance().getFactory()
+				.createParser(message);
+		try {
+			final JsonToken first = jp.nextToken();
+			if (first == JsonToken.START_OBJECT) {
+				return parseObject(jp, JOM.createObjectNode());
+			}
+			if (first != JsonToken.START_ARRAY) {
+				return null;
+			}
+			final List<JSONMessage> messages = new ArrayList<JSONMessage>();
+			final List<JSONResponse> errors = new ArrayList<JSONResponse>();
+			JsonToken token = jp.nextToken();
+			while (token != null && token != JsonToken.END_ARRAY) {
+				final ObjectNode json = JOM.createObjectNode();
+				JSONMessage entry = null;
+				if (token == JsonToken.START_OBJECT) {
+					try {
+						entry = parseObject(jp, json);
+					} catch (final JSONRPCException e) {
+						// parseObject() has consumed the whole entry
+						LOG.log(Level.WARNING, "Invalid batch entry", e);
+					}
+				} else {
+					jp.skipChildren();
+				}
+				if (entry != null) {
+					messages.add(entry);
+				} else {
+					errors.add(new JSONResponse(json.get(JSONMessage.ID),
+							new JSONRPCException(
+									JSONRPCException.CODE.INVALID_REQUEST,
+									"Batch entry is no JSON-RPC message")));
+				}
+				token = jp.nextToken();
+			}
+			return new JSONBatch(messages, errors);
+		} finally {
+			jp.close();
+		}
+	}
+	
+	/**
+	 * Parse the JSON object at the current position of the parser.
+	 * 
+	 * @param jp
+	 *            the parser, positioned at START_OBJECT
+	 * @param json
+	 *            the object to read the fields into, holds the id (if any)
+	 *            when the object is no valid JSON-RPC message
+	 * @return the JSONRequest or JSONResponse, null if not JSON-RPC.
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws JSONRPCException
+	 *             the jSONRPC exception
+	 */
+	private static JSONMessage parseObject(final JsonParser jp,
+			final ObjectNode json) throws IOException, JSONRPCException {
+		String rawParams = null;
+		while (jp.nextToken() == JsonToken.FIELD_NAME) {
+			final String field = jp.getCurrentName();
+			final JsonToken token = jp.nextToken();
+			if (JSONMessage.PARAMS.equals(field)
+					&& token == JsonToken.START_OBJECT) {
+				// copy the tokens instead of cutting the text at the parser
+				// offsets, those differ between Jackson versions
+				final StringWriter writer = new StringWriter();
+				final JsonGenerator gen = jp.getCodec().getFactory()
+						.createGenerator(writer);
+				gen.copyCurrentStructure(jp);
+				gen.close();
+				rawParams = writer.toString();
+			} else {
+				final JsonNode value = jp.readValueAsTree();
+				json.put(field, value);
+			}
+		}
+		if (isResponse(json)) {
+			return new JSONResponse(json);
+		}
+		if (isRequest(json)) {
+			return new JSONRequest(json, rawParams);
+		}
+		return null;
+	}
+	
+	/**
+	 * Checks whether the requests of incoming batches are invoked in parallel.
+	 * 
+	 * @return true, if parallel
+	 */
+	public static boolean isParallelBatch() {
+		return parallelBatch;
+	}
+	
+	/**
+	 * Sets whether the requests of incoming batches are invoked in parallel.
+	 * Only enable this if the entries of a batch don't depend on each other.
+	 * 
+	 * @param parallelBatch
+	 *            the new parallel batch
+	 */
+	public static void setParallelBatch(final boolean parallelBatch) {
+		JSONRPC.parallelBatch = parallelBatch;
+	}
+	
+	/**
+	 * Invoke all requests of a JSON-RPC batch on an object. Responses in the
+	 * batch are ignored. If an executor is given, the requests are invoked in
+	 * parallel, so they must be independent of each other. The errors of
+	 * invalid batch entries are added to the responses, an empty batch gets a
+	 * single Invalid Request error.
+	 * 
+	 * @param destination
+	 *            the destination
+	 * @param batch
+	 *            the batch
+	 * @param requestParams
+	 *            Optional request parameters
+	 * @param auth
+	 *            the auth
+	 * @param executor
+	 *            Optional executor, for parallel invocation
+	 * @return the responses, in request order, notifications left out,
+	 *         followed by the errors of invalid entries
+	 */
+	public static JSONBatch invoke(final Object destination,
+			final JSONBatch batch, final RequestParams requestParams,
+			final JSONAuthorizor auth, final Executor executor) {
+		final List<JSONRequest> requests = new ArrayList<JSONRequest>();
+		for (final JSONMessage message : batch.getMessages()) {
+			if (message instanceof JSONRequest) {
+				requests.add((JSONRequest) message);
+			}
+		}
+		final JSONResponse[] responses = new JSONResponse[requests.size()];
+		if (executor == null || requests.size() < 2) {
+			for (int i = 0; i < responses.length; i++) {
+				responses[i] = invoke(destination, requests.get(i),
+						withDeadline(requests.get(i), requestParams), auth);
+			}
+		} else {
+			final CountDownLatch latch = new CountDownLatch(responses.length);
+			for (int i = 0; i < responses.length; i++) {
+				final int index = i;
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							final JSONRequest request = requests.get(index);
+							responses[index] = invoke(destination, request,
+									withDeadline(request, requestParams), auth);
+						} finally {
+							latch.countDown();
+						}
+					}
+				});
+			}
+			try {
+				latch.await();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for (int i = 0; i < responses.length; i++) {
+					if (responses[i] == null
+							&& !requests.get(i).isNotification()) {
+						responses[i] = new JSONResponse(requests.get(i)
+								.getId(), new JSONRPCException(
+								JSONRPCException.CODE.INTERNAL_ERROR,
+								"Interrupted"));
+					}
+				}
+			}
+		}
+		final List<JSONResponse> result = new ArrayList<JSONResponse>(
+				responses.length);
+		for (final JSONResponse response : responses) {
+			// notifications have no response
+			if (response != null) {
+				result.add(response);
+			}
+		}
+		result.addAll(batch.getErrors());
+		if (batch.getMessages().isEmpty() && result.isEmpty()) {
+			result.add(new JSONResponse(new JSONRPCException(
+					JSONRPCException.CODE.INVALID_REQUEST, "Empty batch")));
+		}
+		return new JSONBatch(result);
+	}
+	
 	/**
 	 * Validate whether the given class contains valid JSON-RPC methods. A class
 	 * if valid when:<br>
@@ -229,29 +499,19 @@ public final class JSONRPC {
 		final List<String> errors = new ArrayList<String>();
 		final Set<String> methodNames = new HashSet<String>();
 		
-		AnnotatedClass ac = null;
 		try {
-			ac = AnnotationUtil.get(c);
-			if (ac != null) {
-				for (final AnnotatedMethod method : ac.getMethods()) {
-					final boolean available = isAvailable(method, null,
-							requestParams, null);
-					if (available) {
-						// The method name may only occur once
-						final String name = method.getName();
-						if (methodNames.contains(name)) {
-							errors.add("Public method '"
-									+ name
-									+ "' is defined more than once, which is not"
-									+ " allowed for JSON-RPC.");
-						}
-						methodNames.add(name);
-						
-						// TODO: I removed duplicate @Name check. If you reach
-						// this point the function at least has named
-						// parameters, due to the isAvailable() call. Should we
-						// add a duplicates check to isAvailable()?
+			for (final DispatchTable.MethodEntry entry : DispatchTable.get(c)
+					.getEntries()) {
+				if (entry.isAvailable(requestParams, null)) {
+					// The method name may only occur once
+					final String name = entry.getName();
+					if (methodNames.contains(name)) {
+						errors.add("Public method '"
+								+ name
+								+ "' is defined more than once, which is not"
+								+ " allowed for JSON-RPC.");
 					}
+					methodNames.add(name);
 				}
 			}
 		} catch (final Exception e) {
@@ -280,44 +540,46 @@ public final class JSONRPC {
 			if (c == null) {
 				return methods;
 			}
-			final AnnotatedClass annotatedClass = AnnotationUtil.get(c
-					.getClass());
-			for (final AnnotatedMethod method : annotatedClass.getMethods()) {
-				if (isAvailable(method, null, requestParams, null)) {
+			final DispatchTable table = DispatchTable.get(c.getClass());
+			for (final DispatchTable.MethodEntry entry : table.getMethods()) {
+				if (entry.isAvailable(requestParams, null)) {
 					// format as JSON
 					final List<Object> descParams = new ArrayList<Object>();
-					for (final AnnotatedParam param : method.getParams()) {
-						if (getRequestAnnotation(param, requestParams) == null) {
-							final String name = getName(param);
+					for (final DispatchTable.ParamBinder param : entry.getParams()) {
+						if (!param.isRequestParam(requestParams)) {
 							final Map<String, Object> paramData = new HashMap<String, Object>();
-							paramData.put("name", name);
+							paramData.put("name", param.getName());
 							paramData.put("type",
 									typeToString(param.getGenericType()));
-							paramData.put("required", isRequired(param));
+							paramData.put("required", param.isRequired());
 							descParams.add(paramData);
 						}
 					}
 					
 					final Map<String, Object> result = new HashMap<String, Object>();
-					result.put("type",
-							typeToString(method.getGenericReturnType()));
+					result.put("type", typeToString(entry.getMethod()
+							.getGenericReturnType()));
 					
 					final Map<String, Object> desc = new HashMap<String, Object>();
-					final String methodName = namespace.equals("") ? method
-							.getName() : namespace + "." + method.getName();
+					final String methodName = namespace.equals("") ? entry
+							.getName() : namespace + "." + entry.getName();
 					desc.put("method", methodName);
 					desc.put("params", descParams);
 					desc.put("result", result);
+					final Cacheable cacheable = entry.getCacheable();
+					if (cacheable != null) {
+						final Map<String, Object> cache = new HashMap<String, Object>();
+						cache.put("ttl", cacheable.ttl());
+						desc.put("cache", cache);
+					}
 					methods.put(methodName, desc);
 				}
 			}
-			for (final AnnotatedMethod method : annotatedClass
-					.getAnnotatedMethods(Namespace.class)) {
-				final String innerNamespace = method.getAnnotation(
-						Namespace.class).value();
-				methods.putAll(_describe(
-						method.getActualMethod().invoke(c, (Object[]) null),
-						requestParams, innerNamespace));
+			for (final Map.Entry<String, AnnotatedMethod> namespaceEntry : table
+					.getNamespaces().entrySet()) {
+				methods.putAll(_describe(namespaceEntry.getValue()
+						.getActualMethod().invoke(c, (Object[]) null),
+						requestParams, namespaceEntry.getKey()));
 			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "Failed to describe class:" + c.toString(),
@@ -328,7 +590,9 @@ public final class JSONRPC {
 	}
 	
 	/**
-	 * Describe all JSON-RPC methods of given class.
+	 * Describe all JSON-RPC methods of given class. The description is
+	 * memoized, for agents with cacheable methods the current statistics of
+	 * their result cache are added.
 	 * 
 	 * @param c
 	 *            The class to be described
@@ -338,17 +602,67 @@ public final class JSONRPC {
 	 */
 	public static List<Object> describe(final Object c,
 			final RequestParams requestParams) {
+		if (c == null) {
+			return new ArrayList<Object>(0);
+		}
+		final JSONDescription description = getDescription(c, requestParams);
+		if (description == null) {
+			return null;
+		}
+		if (description.isCacheable() && c instanceof ResultCacheOwner) {
+			final ResultCache cache = ((ResultCacheOwner) c).getResultCache();
+			if (cache != null) {
+				return addCacheStats(description.getMethods(), cache);
+			}
+		}
+		return description.getMethods();
+	}
+	
+	/**
+	 * Get the description of all JSON-RPC methods of given class. Descriptions
+	 * are created once per class (including the classes of its namespaces) and
+	 * set of request parameter types, and shared afterwards: neither the
+	 * description nor its methods should be modified.
+	 * 
+	 * @param c
+	 *            The class to be described
+	 * @param requestParams
+	 *            Optional request parameters.
+	 * @return the description, null if the class couldn't be described
+	 */
+	public static JSONDescription getDescription(final Object c,
+			final RequestParams requestParams) {
 		try {
-			final Map<String, Object> methods = _describe(c, requestParams, "");
-			
-			// create a sorted array
-			final List<Object> sortedMethods = new ArrayList<Object>();
-			final TreeSet<String> methodNames = new TreeSet<String>(
-					methods.keySet());
-			for (final String methodName : methodNames) {
-				sortedMethods.add(methods.get(methodName));
+			final StringBuilder key = new StringBuilder();
+			appendDescriptionKey(key, c);
+			key.append('|');
+			if (requestParams != null) {
+				for (final String type : new TreeSet<String>(
+						requestParams.keySet())) {
+					key.append(type).append(',');
+				}
+			}
+			JSONDescription description = DESCRIPTIONS.get(key.toString());
+			if (description == null) {
+				final Map<String, Object> methods = _describe(c,
+						requestParams, "");
+				if (methods == null) {
+					return null;
+				}
+				boolean cacheable = false;
+				for (final Object desc : methods.values()) {
+					cacheable |= ((Map<?, ?>) desc).containsKey("cache");
+				}
+				// TreeMap: already sorted by method name
+				description = new JSONDescription(new ArrayList<Object>(
+						methods.values()), cacheable);
+				final JSONDescription old = DESCRIPTIONS.putIfAbsent(
+						key.toString(), description);
+				if (old != null) {
+					description = old;
+				}
 			}
-			return sortedMethods;
+			return description;
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "Failed to describe class:" + c.toString(),
 					e);
@@ -356,6 +670,72 @@ public final class JSONRPC {
 		}
 	}
 	
+	/**
+	 * Append the classes of the given object and of its namespaces to the key
+	 * of its description.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param c
+	 *            the object
+	 * @throws IllegalAccessException
+	 *             the illegal access exception
+	 * @throws InvocationTargetException
+	 *             the invocation target exception
+	 */
+	private static void appendDescriptionKey(final StringBuilder key,
+			final Object c) throws IllegalAccessException,
+			InvocationTargetException {
+		if (c == null) {
+			key.append("null");
+			return;
+		}
+		key.append(c.getClass().getName());
+		final Map<String, AnnotatedMethod> namespaces = DispatchTable.get(
+				c.getClass()).getNamespaces();
+		if (!namespaces.isEmpty()) {
+			key.append('{');
+			for (final Map.Entry<String, AnnotatedMethod> namespace : namespaces
+					.entrySet()) {
+				key.append(namespace.getKey()).append('=');
+				appendDescriptionKey(key, namespace.getValue()
+						.getActualMethod().invoke(c, (Object[]) null));
+				key.append(';');
+			}
+			key.append('}');
+		}
+	}
+	
+	/**
+	 * Copy the descriptions of the cacheable methods, adding the statistics of
+	 * the given result cache.
+	 * 
+	 * @param methods
+	 *            the memoized method descriptions
+	 * @param cache
+	 *            the result cache
+	 * @return the list
+	 */
+	private static List<Object> addCacheStats(final List<Object> methods,
+			final ResultCache cache) {
+		final List<Object> result = new ArrayList<Object>(methods.size());
+		for (final Object method : methods) {
+			final Map<?, ?> desc = (Map<?, ?>) method;
+			final Map<?, ?> cacheDesc = (Map<?, ?>) desc.get("cache");
+			if (cacheDesc == null) {
+				result.add(method);
+				continue;
+			}
+			final Map<String, Object> stats = cache.getStats((String) desc
+					.get("method"));
+			stats.put("ttl", cacheDesc.get("ttl"));
+			final Map<Object, Object> copy = new HashMap<Object, Object>(desc);
+			copy.put("cache", stats);
+			result.add(copy);
+		}
+		return result;
+	}
+	
 	/**
 	 * Get type description from a class. Returns for example "String" or
 	 * "List<String>".
@@ -402,114 +782,6 @@ public final class JSONRPC {
 		return cause.toString();
 	}
 	
-	/**
-	 * @param params
-	 * @param annotatedParams
-	 * @param requestParams
-	 * @return the Object[], including the target object.
-	 */
-	private static Object[] castParams(final Object params,
-			final List<AnnotatedParam> annotatedParams,
-			final RequestParams requestParams) {
-		return castParams(null, params, annotatedParams, requestParams);
-	}
-	
-	/**
-	 * Cast a JSONArray or JSONObject params to the desired paramTypes.
-	 * 
-	 * @param params
-	 *            the params
-	 * @param annotatedParams
-	 *            the annotated params
-	 * @param requestParams
-	 *            the request params
-	 * @return the object[]
-	 */
-	private static Object[] castParams(final Object realDest,
-			final Object params, final List<AnnotatedParam> annotatedParams,
-			final RequestParams requestParams) {
-		
-		if (annotatedParams.size() == 0) {
-			if (realDest != null) {
-				return new Object[] { realDest };
-			} else {
-				return new Object[0];
-			}
-		}
-		
-		if (params instanceof ObjectNode) {
-			// JSON-RPC 2.0 with named parameters in a JSONObject
-			
-			if (annotatedParams.size() == 1
-					&& annotatedParams.get(0).getType()
-							.equals(ObjectNode.class)
-					&& annotatedParams.get(0).getAnnotations().size() == 0) {
-				
-				// the method expects one parameter of type JSONObject
-				// feed the params object itself to it.
-				if (realDest != null) {
-					return new Object[] { realDest, params };
-				} else {
-					return new Object[] { params };
-				}
-			} else {
-				
-				final ObjectNode paramsObject = (ObjectNode) params;
-				int offset = 0;
-				if (realDest != null) {
-					offset = 1;
-				}
-				final Object[] objects = new Object[annotatedParams.size()
-						+ offset];
-				if (realDest != null) {
-					objects[0] = realDest;
-				}
-				for (int i = 0; i < annotatedParams.size(); i++) {
-					final AnnotatedParam p = annotatedParams.get(i);
-					
-					final Annotation a = getRequestAnnotation(p, requestParams);
-					if (a != null) {
-						// this is a systems parameter
-						objects[i + offset] = requestParams.get(a);
-					} else {
-						final String name = getName(p);
-						if (name != null) {
-							// this is a named parameter
-							if (paramsObject.has(name)) {
-								objects[i + offset] = TypeUtil.inject(
-										paramsObject.get(name),
-										p.getGenericType());
-							} else {
-								if (isRequired(p)) {
-									throw new ClassCastException(
-											"Required parameter '" + name
-													+ "' missing.");
-								} else if (p.getType().isPrimitive()) {
-									// TODO: should this test be moved to
-									// isAvailable()?
-									throw new ClassCastException("Parameter '"
-											+ name
-											+ "' cannot be both optional and "
-											+ "a primitive type ("
-											+ p.getType().getSimpleName() + ")");
-								} else {
-									objects[i + offset] = null;
-								}
-							}
-						} else {
-							// this is a problem
-							throw new ClassCastException("Name of parameter "
-									+ i + " not defined");
-						}
-					}
-				}
-				return objects;
-			}
-		} else {
-			throw new ClassCastException("params must be a JSONObject");
-		}
-	}
-	
 	/**
 	 * Create a JSONRequest from a java method and arguments.
 	 * 
@@ -521,192 +793,7 @@ public final class JSONRPC {
 	 */
 	public static JSONRequest createRequest(final Method method,
 			final Object[] args) {
-		AnnotatedMethod annotatedMethod = null;
-		try {
-			annotatedMethod = new AnnotationUtil.AnnotatedMethod(method);
-		} catch (final Exception e) {
-			LOG.log(Level.WARNING, "Method can't be used as annotated method",
-					e);
-			throw new IllegalArgumentException("Method '" + method.getName()
-					+ "' can't be used as annotated method.", e);
-		}
-		final List<AnnotatedParam> annotatedParams = annotatedMethod
-				.getParams();
-		
-		final ObjectNode params = JOM.createObjectNode();
-		
-		for (int i = 0; i < annotatedParams.size(); i++) {
-			final AnnotatedParam annotatedParam = annotatedParams.get(i);
-			if (i < args.length && args[i] != null) {
-				final String name = getName(annotatedParam);
-				if (name != null) {
-					final JsonNode paramValue = JOM.getInstance().valueToTree(args[i]);
-					params.put(name, paramValue);
-				} else {
-					throw new IllegalArgumentException("Parameter " + i
-							+ " in method '" + method.getName()
-							+ "' is missing the @Name annotation.");
-				}
-			} else if (isRequired(annotatedParam)) {
-				throw new IllegalArgumentException("Required parameter " + i
-						+ " in method '" + method.getName() + "' is null.");
-			}
-		}
-		JsonNode id = null;
-		try {
-			id = JOM.getInstance().valueToTree(new UUID().toString());
-		} catch (final Exception e) {
-			LOG.log(Level.SEVERE,"Failed to generate UUID for request",e);
-		}
-		return new JSONRequest(id, method.getName(), params);
-	}
-	
-	/**
-	 * Check whether a method is available for JSON-RPC calls. This is the case
-	 * when it is public, has named parameters, and has a public or private @Access
-	 * annotation
-	 * 
-	 * @param method
-	 *            the method
-	 * @param destination
-	 *            the destination
-	 * @param requestParams
-	 *            the request params
-	 * @param auth
-	 *            the auth
-	 * @return available
-	 */
-	private static boolean isAvailable(final AnnotatedMethod method,
-			final Object destination, final RequestParams requestParams,
-			final JSONAuthorizor auth) {
-		
-		if (method == null) {
-			return false;
-		}
-		Access methodAccess = method.getAnnotation(Access.class);
-		if (destination != null
-				&& !method.getActualMethod().getDeclaringClass()
-						.isAssignableFrom(destination.getClass())) {
-			return false;
-		}
-		final int mod = method.getActualMethod().getModifiers();
-		if (!(Modifier.isPublic(mod) && hasNamedParams(method, requestParams))) {
-			return false;
-		}
-		
-		final Access classAccess = AnnotationUtil.get(
-				destination != null ? destination.getClass() : method
-						.getActualMethod().getDeclaringClass()).getAnnotation(
-				Access.class);
-		if (methodAccess == null) {
-			methodAccess = classAccess;
-		}
-		if (methodAccess == null) {
-			// New default: UNAVAILABLE!
-			return false;
-		}
-		if (methodAccess.value() == AccessType.UNAVAILABLE) {
-			return false;
-		}
-		
-		if (methodAccess.value() == AccessType.PRIVATE) {
-			return auth != null ? auth.onAccess(requestParams.get(Sender.class)
-					.toString(), methodAccess.tag()) : false;
-		}
-		if (methodAccess.value() == AccessType.SELF) {
-			return auth != null ? auth.isSelf(requestParams.get(Sender.class)
-					.toString()) : false;
-		}
-		return true;
-	}
-	
-	/**
-	 * Test whether a method has named parameters.
-	 * 
-	 * @param method
-	 *            the method
-	 * @param requestParams
-	 *            the request params
-	 * @return hasNamedParams
-	 */
-	private static boolean hasNamedParams(final AnnotatedMethod method,
-			final RequestParams requestParams) {
-		for (final AnnotatedParam param : method.getParams()) {
-			boolean found = false;
-			for (final Annotation a : param.getAnnotations()) {
-				if (requestParams != null && requestParams.has(a)) {
-					found = true;
-					break;
-				} else if (a instanceof Name) {
-					found = true;
-					break;
-				}
-			}
-			
-			if (!found) {
-				return false;
-			}
-		}
-		return true;
-	}
-	
-	/**
-	 * Test if a parameter is required Reads the parameter annotation @Required.
-	 * Returns True if the annotation is not provided.
-	 * 
-	 * @param param
-	 *            the param
-	 * @return required
-	 */
-	@SuppressWarnings("deprecation")
-	private static boolean isRequired(final AnnotatedParam param) {
-		boolean required = true;
-		final com.almende.eve.rpc.annotation.Required requiredAnnotation = param
-				.getAnnotation(com.almende.eve.rpc.annotation.Required.class);
-		if (requiredAnnotation != null) {
-			required = requiredAnnotation.value();
-		}
-		if (param.getAnnotation(Optional.class) != null) {
-			required = false;
-		}
-		return required;
-	}
-	
-	/**
-	 * Get the name of a parameter Reads the parameter annotation @Name. Returns
-	 * null if the annotation is not provided.
-	 * 
-	 * @param param
-	 *            the param
-	 * @return name
-	 */
-	private static String getName(final AnnotatedParam param) {
-		String name = null;
-		final Name nameAnnotation = param.getAnnotation(Name.class);
-		if (nameAnnotation != null) {
-			name = nameAnnotation.value();
-		}
-		return name;
-	}
-	
-	/**
-	 * Find a request annotation in the given parameters Returns null if no
-	 * system annotation is not found.
-	 * 
-	 * @param param
-	 *            the param
-	 * @param requestParams
-	 *            the request params
-	 * @return annotation
-	 */
-	private static Annotation getRequestAnnotation(final AnnotatedParam param,
-			final RequestParams requestParams) {
-		for (final Annotation annotation : param.getAnnotations()) {
-			if (requestParams != null && requestParams.has(annotation)) {
-				return annotation;
-			}
-		}
-		return null;
+		return RequestTemplate.get(method).createRequest(args);
 	}
 	
 	/**
@@ -51,7 +51,9 @@ public class JSONRPCException extends Exception {
 		/** The not found. */
 		NOT_FOUND,
 		/** The unauthorized. */
-		UNAUTHORIZED
+		UNAUTHORIZED,
+		/** The deadline of the request has passed. */
+		DEADLINE_EXCEEDED
 	};
 	
 	/**
@@ -251,6 +253,10 @@ public class JSONRPCException extends Exception {
 				setCode(-32401);
 				setMessage("Unauthorized");
 				break;
+			case DEADLINE_EXCEEDED:
+				setCode(-32408);
+				setMessage("Deadline exceeded");
+				break;
 		}
 		
 		if (message != null) {
@@ -21,10 +21,11 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  * The Class JSONRequest.
  */
 public final class JSONRequest extends JSONMessage {
-	private static final Logger	LOG					= Logger.getLogger(JSONRequest.class
-															.getCanonicalName());
-	private static final long	serialVersionUID	= 1970046457233622444L;
-	private ObjectNode			req					= JOM.createObjectNode();
+	private static final Logger			LOG					= Logger.getLogger(JSONRequest.class
+																.getCanonicalName());
+	private static final long			serialVersionUID	= 1970046457233622444L;
+	private ObjectNode					req					= JOM.createObjectNode();
+	private transient volatile String	rawParams			= null;
 	
 	/**
 	 * Instantiates a new jSON request.
@@ -84,8 +85,111 @@ public final class JSONRequest extends JSONMessage {
 					"Member 'params' is no ObjectNode");
 		}
 		
-		init(request.get(ID), request.get(METHOD).asText(),
-				(ObjectNode) request.get(PARAMS));
+		if (request.has(ID)) {
+			init(request.get(ID), request.get(METHOD).asText(),
+					(ObjectNode) request.get(PARAMS));
+		} else {
+			// JSON-RPC 2.0 notification
+			initNotification(request.get(METHOD).asText(),
+					(ObjectNode) request.get(PARAMS));
+		}
+		if (request.has(DEADLINE) && request.get(DEADLINE).canConvertToLong()) {
+			setDeadline(request.get(DEADLINE).asLong());
+		}
+	}
+	
+	/**
+	 * Create a JSON-RPC 2.0 notification: a request without id, to which the
+	 * receiver won't send a response.
+	 *
+	 * @param method the method
+	 * @param params the params
+	 * @return the notification
+	 */
+	public static JSONRequest createNotification(final String method,
+			final ObjectNode params) {
+		return new JSONRequest(method, params, true);
+	}
+	
+	/**
+	 * Get this request as notification: this request itself if it already is
+	 * one, otherwise a notification with the same method and params.
+	 *
+	 * @return the notification
+	 */
+	public JSONRequest toNotification() {
+		if (isNotification()) {
+			return this;
+		}
+		final JSONRequest notification = createNotification(getMethod(),
+				getParams());
+		notification.setDeadline(getDeadline());
+		return notification;
+	}
+	
+	/**
+	 * Get this request with the given deadline: this request itself if it
+	 * already has that deadline, otherwise a copy. The request itself is left
+	 * as is, as its sender may still use or resend it.
+	 *
+	 * @param deadline the deadline, null for none
+	 * @return the request
+	 */
+	public JSONRequest withDeadline(final Long deadline) {
+		final Long current = getDeadline();
+		if (deadline == null ? current == null : deadline.equals(current)) {
+			return this;
+		}
+		final JSONRequest copy = new JSONRequest(this);
+		copy.setDeadline(deadline);
+		return copy;
+	}
+	
+	/**
+	 * Instantiates a copy of a request. The params are copied as in
+	 * setParams(), or stay unparsed if the request's params weren't parsed
+	 * yet.
+	 *
+	 * @param request the request
+	 */
+	private JSONRequest(final JSONRequest request) {
+		final String raw = request.rawParams;
+		req.setAll(request.req);
+		if (raw != null) {
+			rawParams = raw;
+		} else {
+			setParams((ObjectNode) request.req.get(PARAMS));
+		}
+	}
+	
+	/**
+	 * Instantiates a new jSON request or notification.
+	 *
+	 * @param method the method
+	 * @param params the params
+	 * @param notification true to create a notification (without id)
+	 */
+	private JSONRequest(final String method, final ObjectNode params,
+			final boolean notification) {
+		if (notification) {
+			initNotification(method, params);
+		} else {
+			init(null, method, params);
+		}
+	}
+	
+	/**
+	 * Instantiates a new jSON request, of which the params are still
+	 * unparsed. See JSONRPC.parse().
+	 *
+	 * @param request the request, without params
+	 * @param rawParams the params, as JSON text
+	 * @throws JSONRPCException the jSONRPC exception
+	 */
+	JSONRequest(final JsonNode request, final String rawParams)
+			throws JSONRPCException {
+		init(request);
+		this.rawParams = rawParams;
 	}
 	
 	/**
@@ -155,6 +259,19 @@ public final class JSONRequest extends JSONMessage {
 		setParams(params);
 	}
 	
+	/**
+	 * Inits a notification, no id is generated.
+	 *
+	 * @param method the method
+	 * @param params the params
+	 */
+	private void initNotification(final String method,
+			final ObjectNode params) {
+		setVersion();
+		setMethod(method);
+		setParams(params);
+	}
+	
 	/**
 	 * Sets the id.
 	 *
@@ -176,6 +293,42 @@ public final class JSONRequest extends JSONMessage {
 		return req.get(ID);
 	}
 	
+	/**
+	 * Checks if this request is a notification, i.e. has no id and expects no
+	 * response.
+	 *
+	 * @return true, if is notification
+	 */
+	@JsonIgnore
+	public boolean isNotification() {
+		return !req.has(ID);
+	}
+	
+	/**
+	 * Sets the deadline: the time in milliseconds since epoch after which the
+	 * caller no longer waits for the result.
+	 *
+	 * @param deadline the new deadline, null to remove it
+	 */
+	public void setDeadline(final Long deadline) {
+		if (deadline == null) {
+			req.remove(DEADLINE);
+		} else {
+			req.put(DEADLINE, deadline);
+		}
+	}
+	
+	/**
+	 * Gets the deadline.
+	 *
+	 * @return the deadline, null if the request has none
+	 */
+	@JsonIgnore
+	public Long getDeadline() {
+		final JsonNode deadline = req.get(DEADLINE);
+		return deadline != null ? deadline.asLong() : null;
+	}
+	
 	/**
 	 * Sets the method.
 	 *
@@ -208,6 +361,7 @@ public final class JSONRequest extends JSONMessage {
 			newParams.setAll(params);
 		}
 		req.put(PARAMS, newParams);
+		rawParams = null;
 	}
 	
 	/**
@@ -216,6 +370,7 @@ public final class JSONRequest extends JSONMessage {
 	 * @return the params
 	 */
 	public ObjectNode getParams() {
+		parseParams();
 		return (ObjectNode) req.get(PARAMS);
 	}
 	
@@ -226,6 +381,7 @@ public final class JSONRequest extends JSONMessage {
 	 * @param value the value
 	 */
 	public void putParam(final String name, final Object value) {
+		parseParams();
 		final ObjectMapper mapper = JOM.getInstance();
 		req.with(PARAMS).put(name, mapper.convertValue(value, JsonNode.class));
 	}
@@ -237,6 +393,7 @@ public final class JSONRequest extends JSONMessage {
 	 * @return the param
 	 */
 	public Object getParam(final String name) {
+		parseParams();
 		final ObjectMapper mapper = JOM.getInstance();
 		final ObjectNode params = req.with(PARAMS);
 		if (params.has(name)) {
@@ -252,9 +409,67 @@ public final class JSONRequest extends JSONMessage {
 	 * @return the object
 	 */
 	public Object hasParam(final String name) {
+		parseParams();
 		return req.get(PARAMS).has(name);
 	}
 	
+	/**
+	 * Gets the params as unparsed JSON text, if they haven't been parsed yet.
+	 *
+	 * @return the raw params, or null
+	 */
+	String getRawParams() {
+		return rawParams;
+	}
+	
+	/**
+	 * Gets a 64 bit hash (FNV-1a) of the params as JSON text. Unparsed params
+	 * are hashed as received, they aren't parsed for this. Requests which
+	 * arrived as the same text have the same hash.
+	 *
+	 * @return the hash of the params
+	 */
+	public long getParamsHash() {
+		String text = rawParams;
+		if (text == null) {
+			final JsonNode params = req.get(PARAMS);
+			text = params != null ? params.toString() : "";
+		}
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+	
+	/**
+	 * Parse the raw params (if any) into the params ObjectNode. A request can
+	 * be shared by several threads (local calls, coalesced calls, batches):
+	 * the params are parsed once, under a lock, and published by clearing the
+	 * volatile raw params. Threads which still see the raw params may bind
+	 * from that text instead, it holds the same params.
+	 */
+	private void parseParams() {
+		if (rawParams == null) {
+			return;
+		}
+		synchronized (this) {
+			final String raw = rawParams;
+			if (raw != null) {
+				final JsonNode params;
+				try {
+					params = JOM.getInstance().readTree(raw);
+				} catch (final IOException e) {
+					throw new IllegalStateException("Failed to parse params", e);
+				}
+				// replaces the (empty) params node, the map isn't resized
+				req.put(PARAMS, params);
+				rawParams = null;
+			}
+		}
+	}
+	
 	/**
 	 * Sets the version.
 	 */
@@ -319,6 +534,7 @@ public final class JSONRequest extends JSONMessage {
 	 */
 	@JsonIgnore
 	public ObjectNode getObjectNode() {
+		parseParams();
 		return req;
 	}
 	
@@ -327,6 +543,7 @@ public final class JSONRequest extends JSONMessage {
 	 */
 	@Override
 	public String toString() {
+		parseParams();
 		final ObjectMapper mapper = JOM.getInstance();
 		try {
 			return mapper.writeValueAsString(req);
@@ -343,6 +560,7 @@ public final class JSONRequest extends JSONMessage {
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	private void writeObject(final java.io.ObjectOutputStream out) throws IOException {
+		parseParams();
 		final ObjectMapper mapper = new ObjectMapper();
 		mapper.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
 		mapper.writeValue(out, req);
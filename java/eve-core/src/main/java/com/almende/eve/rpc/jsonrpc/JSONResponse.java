@@ -165,8 +165,14 @@ public final class JSONResponse extends JSONMessage {
 	 */
 	public void setResult(final Object result) {
 		if (result != null) {
-			final ObjectMapper mapper = JOM.getInstance();
-			resp.put(RESULT, mapper.convertValue(result, JsonNode.class));
+			if (result instanceof JsonNode) {
+				// Already a tree, no need to convert (copy-on-write, see
+				// JSONMessage)
+				resp.put(RESULT, (JsonNode) result);
+			} else {
+				final ObjectMapper mapper = JOM.getInstance();
+				resp.put(RESULT, mapper.convertValue(result, JsonNode.class));
+			}
 			setError(null);
 		} else {
 			if (resp.has(RESULT)) {
@@ -0,0 +1,107 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.jsonrpc;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.almende.eve.rpc.annotation.Name;
+import com.almende.eve.rpc.annotation.Optional;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.util.uuid.UUID;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Precomputed description of how the arguments of a (proxied) java method map
+ * onto the params of a JSONRequest. One template is kept per Method, so
+ * building an outgoing request only has to serialize the argument values.
+ */
+final class RequestTemplate {
+	private static final ConcurrentHashMap<Method, RequestTemplate>	TEMPLATES	= new ConcurrentHashMap<Method, RequestTemplate>();
+	private final String											methodName;
+	private final String[]											names;
+	private final boolean[]											required;
+	
+	/**
+	 * Instantiates a new request template.
+	 * 
+	 * @param method
+	 *            the method
+	 */
+	@SuppressWarnings("deprecation")
+	private RequestTemplate(final Method method) {
+		methodName = method.getName();
+		final Annotation[][] annotations = method.getParameterAnnotations();
+		names = new String[annotations.length];
+		required = new boolean[annotations.length];
+		for (int i = 0; i < annotations.length; i++) {
+			boolean req = true;
+			boolean optional = false;
+			for (final Annotation annotation : annotations[i]) {
+				if (annotation instanceof Name) {
+					names[i] = ((Name) annotation).value();
+				} else if (annotation instanceof com.almende.eve.rpc.annotation.Required) {
+					req = ((com.almende.eve.rpc.annotation.Required) annotation)
+							.value();
+				} else if (annotation instanceof Optional) {
+					optional = true;
+				}
+			}
+			required[i] = req && !optional;
+		}
+	}
+	
+	/**
+	 * Get the (cached) template of the given method.
+	 * 
+	 * @param method
+	 *            the method
+	 * @return the request template
+	 */
+	static RequestTemplate get(final Method method) {
+		RequestTemplate template = TEMPLATES.get(method);
+		if (template == null) {
+			template = new RequestTemplate(method);
+			final RequestTemplate old = TEMPLATES.putIfAbsent(method, template);
+			if (old != null) {
+				template = old;
+			}
+		}
+		return template;
+	}
+	
+	/**
+	 * Create a new JSONRequest with the given arguments.
+	 * 
+	 * @param args
+	 *            the arguments, may be null for methods without parameters
+	 * @return the jSON request
+	 */
+	JSONRequest createRequest(final Object[] args) {
+		final ObjectMapper mapper = JOM.getInstance();
+		final ObjectNode params = mapper.createObjectNode();
+		final int argc = args != null ? args.length : 0;
+		for (int i = 0; i < names.length; i++) {
+			if (i < argc && args[i] != null) {
+				if (names[i] == null) {
+					throw new IllegalArgumentException("Parameter " + i
+							+ " in method '" + methodName
+							+ "' is missing the @Name annotation.");
+				}
+				final JsonNode paramValue = mapper.valueToTree(args[i]);
+				params.put(names[i], paramValue);
+			} else if (required[i]) {
+				throw new IllegalArgumentException("Required parameter " + i
+						+ " in method '" + methodName + "' is null.");
+			}
+		}
+		final JsonNode id = mapper.getNodeFactory().textNode(
+				new UUID().toString());
+		return new JSONRequest(id, methodName, params);
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.jsonrpc;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.almende.eve.rpc.annotation.Cacheable;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Cache of the results of the {@link Cacheable} methods of one destination
+ * (agent), used by JSONRPC.invoke. Results are kept as JSON, per method and
+ * cache key, until their ttl expires or the cache is invalidated.
+ * 
+ * Invalidating the cache moves it to a new generation: results computed
+ * during an older generation are not stored, so a result based on state that
+ * changed during the invocation doesn't end up in the cache.
+ */
+public class ResultCache {
+	/** maximum number of results kept per method */
+	public static final int									MAXENTRIES	= 1000;
+	private final ConcurrentHashMap<String, MethodResults>	methods		= new ConcurrentHashMap<String, MethodResults>();
+	private final AtomicLong								generation	= new AtomicLong();
+	
+	/**
+	 * Gets the current generation of the cache, to be passed to put().
+	 * 
+	 * @return the generation
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+	
+	/**
+	 * Get a cached result.
+	 * 
+	 * @param method
+	 *            the (namespaced) method name
+	 * @param key
+	 *            the cache key
+	 * @return a copy of the cached result, null if not found or expired
+	 */
+	public JsonNode get(final String method, final String key) {
+		final MethodResults cache = getOrCreate(method);
+		final Result result = cache.results.get(key);
+		if (result != null) {
+			if (!result.isExpired(System.currentTimeMillis())) {
+				cache.hits.incrementAndGet();
+				return result.value.deepCopy();
+			}
+			cache.results.remove(key, result);
+		}
+		cache.misses.incrementAndGet();
+		return null;
+	}
+	
+	/**
+	 * Store a result, unless the cache has been invalidated since the given
+	 * generation.
+	 * 
+	 * @param method
+	 *            the (namespaced) method name
+	 * @param key
+	 *            the cache key
+	 * @param value
+	 *            the result
+	 * @param ttl
+	 *            the time to live in milliseconds, 0 for no expiry
+	 * @param gen
+	 *            the generation of the cache when the invocation started
+	 */
+	public void put(final String method, final String key, final Object value,
+			final long ttl, final long gen) {
+		if (generation.get() != gen) {
+			return;
+		}
+		final MethodResults cache = getOrCreate(method);
+		if (cache.results.size() >= MAXENTRIES) {
+			cache.expire(System.currentTimeMillis());
+			if (cache.results.size() >= MAXENTRIES) {
+				return;
+			}
+		}
+		final JsonNode json = value != null ? JOM.getInstance().valueToTree(
+				value) : null;
+		final Result result = new Result(json != null ? json : JOM
+				.createNullNode(), ttl > 0 ? System.currentTimeMillis() + ttl
+				: 0);
+		cache.results.put(key, result);
+		if (generation.get() != gen) {
+			// invalidated meanwhile
+			cache.results.remove(key, result);
+		}
+	}
+	
+	/**
+	 * Remove all cached results.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		for (final MethodResults cache : methods.values()) {
+			cache.results.clear();
+		}
+	}
+	
+	/**
+	 * Remove the cached results of a single method.
+	 * 
+	 * @param method
+	 *            the (namespaced) method name
+	 */
+	public void invalidate(final String method) {
+		generation.incrementAndGet();
+		final MethodResults cache = methods.get(method);
+		if (cache != null) {
+			cache.results.clear();
+		}
+	}
+	
+	/**
+	 * Number of cached results.
+	 * 
+	 * @return the size
+	 */
+	public int size() {
+		int size = 0;
+		for (final MethodResults cache : methods.values()) {
+			size += cache.results.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Total number of lookups answered from the cache.
+	 * 
+	 * @return the hits
+	 */
+	public long getHits() {
+		long hits = 0;
+		for (final MethodResults cache : methods.values()) {
+			hits += cache.hits.get();
+		}
+		return hits;
+	}
+	
+	/**
+	 * Total number of lookups not answered from the cache.
+	 * 
+	 * @return the misses
+	 */
+	public long getMisses() {
+		long misses = 0;
+		for (final MethodResults cache : methods.values()) {
+			misses += cache.misses.get();
+		}
+		return misses;
+	}
+	
+	/**
+	 * Get the statistics of a single method: the number of cached results
+	 * ("size"), "hits" and "misses".
+	 * 
+	 * @param method
+	 *            the (namespaced) method name
+	 * @return the stats
+	 */
+	public Map<String, Object> getStats(final String method) {
+		final Map<String, Object> stats = new HashMap<String, Object>();
+		final MethodResults cache = methods.get(method);
+		stats.put("size", cache != null ? cache.results.size() : 0);
+		stats.put("hits", cache != null ? cache.hits.get() : 0L);
+		stats.put("misses", cache != null ? cache.misses.get() : 0L);
+		return stats;
+	}
+	
+	/**
+	 * Get the cache of the given method, creating it if needed.
+	 * 
+	 * @param method
+	 *            the method
+	 * @return the method cache
+	 */
+	private MethodResults getOrCreate(final String method) {
+		MethodResults cache = methods.get(method);
+		if (cache == null) {
+			cache = new MethodResults();
+			final MethodResults old = methods.putIfAbsent(method, cache);
+			if (old != null) {
+				cache = old;
+			}
+		}
+		return cache;
+	}
+	
+	/**
+	 * The cached results and statistics of one method.
+	 */
+	private static final class MethodResults {
+		private final ConcurrentHashMap<String, Result>	results	= new ConcurrentHashMap<String, Result>();
+		private final AtomicLong						hits	= new AtomicLong();
+		private final AtomicLong						misses	= new AtomicLong();
+		
+		/**
+		 * Remove the expired results.
+		 * 
+		 * @param now
+		 *            the current time
+		 */
+		private void expire(final long now) {
+			final Iterator<Result> iter = results.values().iterator();
+			while (iter.hasNext()) {
+				if (iter.next().isExpired(now)) {
+					iter.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A cached result.
+	 */
+	private static final class Result {
+		private final JsonNode	value;
+		private final long		expires;
+		
+		/**
+		 * Instantiates a new result.
+		 * 
+		 * @param value
+		 *            the value
+		 * @param expires
+		 *            the expiry time, 0 if it doesn't expire
+		 */
+		private Result(final JsonNode value, final long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+		
+		/**
+		 * Checks if this result has expired.
+		 * 
+		 * @param now
+		 *            the current time
+		 * @return true, if expired
+		 */
+		private boolean isExpired(final long now) {
+			return expires > 0 && expires <= now;
+		}
+	}
+}
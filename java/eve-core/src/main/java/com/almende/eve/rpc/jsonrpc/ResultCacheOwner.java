@@ -0,0 +1,20 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.rpc.jsonrpc;
+
+/**
+ * The Interface ResultCacheOwner, implemented by destinations whose
+ * {@link com.almende.eve.rpc.annotation.Cacheable} methods have their results
+ * cached by JSONRPC.invoke.
+ */
+public interface ResultCacheOwner {
+
+	/**
+	 * Internal method, gets the result cache of this destination.
+	 *
+	 * @return the result cache, null to disable caching
+	 */
+	ResultCache getResultCache();
+}
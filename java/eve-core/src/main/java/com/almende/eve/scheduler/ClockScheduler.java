@@ -5,37 +5,66 @@ package com.almende.eve.scheduler;
 
 import java.io.Serializable;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map.Entry;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 
 import com.almende.eve.agent.AgentHost;
 import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.agent.callback.AsyncCallback;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.scheduler.clock.Clock;
-import com.almende.eve.scheduler.clock.RunnableClock;
+import com.almende.eve.scheduler.clock.TimingWheelClock;
+import com.almende.eve.scheduler.clock.VirtualClock;
+import com.almende.eve.state.State;
 import com.almende.eve.state.TypedKey;
 import com.almende.util.uuid.UUID;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * The Class ClockScheduler.
+ * 
+ * Each task is stored under its own key in the state of the agent, so
+ * creating or cancelling a task only writes that task. The scheduler keeps an
+ * index of the tasks ordered by due time, built from the state when it is
+ * first used: inserting, cancelling and finding the next task are O(log n).
+ * 
+ * Repeating tasks keep the phase of their first run. A sequential task is
+ * sent as a request, and its next run is only scheduled when the response
+ * arrives (or the request times out), so runs of one task never overlap. Runs
+ * which became due in the meantime are handled by the MissedRunPolicy.
+ * 
+ * While a VirtualClock is started the schedulers use that clock, otherwise a
+ * TimingWheelClock.
  */
 public class ClockScheduler extends AbstractScheduler implements Runnable {
 	private static final Logger									LOG			= Logger.getLogger("ClockScheduler");
+	private static final Clock									WALLCLOCK	= new TimingWheelClock();
 	private final AgentInterface								myAgent;
-	private final Clock											myClock;
 	private final ClockScheduler								_this		= this;
+	/** task list of older versions, migrated to per-task keys on load */
 	private static final TypedKey<TreeMap<String, TaskEntry>>	TYPEDKEY	= new TypedKey<TreeMap<String, TaskEntry>>(
 																					"_taskList") {
 																			};
-	private static final int									MAXCOUNT	= 100;
+	private static final String									TASKPREFIX	= "_task_";
+	private final Map<String, TaskEntry>						tasks		= new HashMap<String, TaskEntry>();
+	private final TreeSet<TaskEntry>							timeline	= new TreeSet<TaskEntry>();
+	private boolean												loaded		= false;
+	private final long											timeout;
+	private final MissedRunPolicy								policy;
+	private final SchedulerMetrics								metrics;
 	
 	/**
 	 * Instantiates a new clock scheduler.
@@ -46,48 +75,94 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 *            the host
 	 */
 	public ClockScheduler(final AgentInterface myAgent, final AgentHost host) {
+		this(myAgent, host, 0, MissedRunPolicy.SKIP, new SchedulerMetrics(
+				"clockScheduler", null));
+	}
+	
+	/**
+	 * Instantiates a new clock scheduler.
+	 * 
+	 * @param myAgent
+	 *            the my agent
+	 * @param host
+	 *            the host
+	 * @param timeout
+	 *            the time in milliseconds to wait for the response to a run of
+	 *            a sequential task, the default timeout is used if not positive
+	 * @param policy
+	 *            the policy for missed runs of repeating tasks
+	 * @param metrics
+	 *            the metrics to record the tasks and runs in
+	 */
+	public ClockScheduler(final AgentInterface myAgent, final AgentHost host,
+			final long timeout, final MissedRunPolicy policy,
+			final SchedulerMetrics metrics) {
 		if (myAgent == null) {
 			throw new IllegalArgumentException("MyAgent should not be null!");
 		}
 		this.myAgent = myAgent;
-		myClock = new RunnableClock();
+		this.timeout = timeout;
+		this.policy = policy;
+		this.metrics = metrics;
 	}
 	
 	/**
-	 * Gets the first task.
+	 * Gets the clock to request triggers from: the VirtualClock if started,
+	 * the wall clock otherwise.
 	 * 
-	 * @return the first task
+	 * @return the clock
 	 */
-	public TaskEntry getFirstTask() {
-		if (myAgent.getState() == null) {
-			return null;
+	private static Clock getClock() {
+		final VirtualClock virtualClock = VirtualClock.getInstance();
+		return virtualClock != null ? virtualClock : WALLCLOCK;
+	}
+	
+	/**
+	 * Build the index from the tasks in the state, if not done yet. Tasks
+	 * which were still marked active were interrupted, they are run again.
+	 * 
+	 * @return false if the agent has no state
+	 */
+	private synchronized boolean load() {
+		if (loaded) {
+			return true;
 		}
-		final TreeMap<String, TaskEntry> timeline = myAgent.getState().get(
-				TYPEDKEY);
-		if (timeline != null && !timeline.isEmpty()) {
-			TaskEntry task = timeline.firstEntry().getValue();
-			int count = 0;
-			while (task != null && task.isActive() && count < MAXCOUNT) {
-				count++;
-				final Entry<String, TaskEntry> entry = timeline
-						.higherEntry(task.getTaskId());
-				task = null;
-				if (entry != null) {
-					task = entry.getValue();
-				}
+		final State state = myAgent.getState();
+		if (state == null) {
+			return false;
+		}
+		final TreeMap<String, TaskEntry> oldTimeline = state.get(TYPEDKEY);
+		if (oldTimeline != null) {
+			for (final TaskEntry task : oldTimeline.values()) {
+				state.put(TASKPREFIX + task.getTaskId(), task);
 			}
-			if (count >= MAXCOUNT) {
-				LOG.warning("Oops: more than 100 tasks active at the same time:"
-						+ myAgent.getId()
-						+ " : "
-						+ timeline.size()
-						+ "/"
-						+ count);
-			} else {
-				return task;
+			state.remove(TYPEDKEY.getKey());
+		}
+		for (final String key : state.keySet()) {
+			if (key.startsWith(TASKPREFIX)) {
+				final TaskEntry task = state.get(key, TaskEntry.class);
+				if (task != null && task.getTaskId() != null) {
+					task.setActive(false);
+					tasks.put(task.getTaskId(), task);
+					timeline.add(task);
+				}
 			}
 		}
-		return null;
+		loaded = true;
+		metrics.added(tasks.size());
+		return true;
+	}
+	
+	/**
+	 * Gets the first task, the inactive task with the earliest due time.
+	 * 
+	 * @return the first task
+	 */
+	public synchronized TaskEntry getFirstTask() {
+		if (!load() || timeline.isEmpty()) {
+			return null;
+		}
+		return timeline.first();
 	}
 	
 	/**
@@ -108,35 +183,26 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 * @param onlyIfExists
 	 *            the only if exists
 	 */
-	public void putTask(final TaskEntry task, final boolean onlyIfExists) {
-		if (task == null || myAgent.getState() == null) {
+	public synchronized void putTask(final TaskEntry task,
+			final boolean onlyIfExists) {
+		if (task == null || !load()) {
 			LOG.warning("Trying to save task to non-existing state or task is null");
 			return;
 		}
-		final TreeMap<String, TaskEntry> oldTimeline = myAgent.getState().get(
-				TYPEDKEY);
-		TreeMap<String, TaskEntry> timeline = null;
-		
-		if (oldTimeline != null) {
-			timeline = new TreeMap<String, TaskEntry>(oldTimeline);
-		} else {
-			timeline = new TreeMap<String, TaskEntry>();
+		final TaskEntry old = tasks.get(task.getTaskId());
+		if (onlyIfExists && old == null) {
+			return;
 		}
-		
-		if (onlyIfExists) {
-			if (timeline.containsKey(task.getTaskId())) {
-				timeline.put(task.getTaskId(), task);
-			}
+		if (old != null) {
+			timeline.remove(old);
 		} else {
-			timeline.put(task.getTaskId(), task);
+			metrics.added(1);
 		}
-		
-		if (!myAgent.getState().putIfUnchanged(TYPEDKEY.getKey(), timeline,
-				oldTimeline)) {
-			// recursive retry....
-			putTask(task, onlyIfExists);
-			return;
+		tasks.put(task.getTaskId(), task);
+		if (!task.isActive()) {
+			timeline.add(task);
 		}
+		myAgent.getState().put(TASKPREFIX + task.getTaskId(), task);
 	}
 	
 	/*
@@ -145,29 +211,46 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 * @see com.almende.eve.scheduler.Scheduler#cancelTask(java.lang.String)
 	 */
 	@Override
-	public void cancelTask(final String id) {
-		if (myAgent.getState() == null) {
+	public synchronized void cancelTask(final String id) {
+		if (!load()) {
 			return;
 		}
-		
-		final TreeMap<String, TaskEntry> oldTimeline = myAgent.getState().get(
-				TYPEDKEY);
-		TreeMap<String, TaskEntry> timeline = null;
-		
-		if (oldTimeline != null) {
-			timeline = new TreeMap<String, TaskEntry>(oldTimeline);
-			timeline.remove(id);
-		} else {
-			timeline = new TreeMap<String, TaskEntry>();
+		final TaskEntry task = tasks.remove(id);
+		if (task != null) {
+			timeline.remove(task);
+			metrics.removed(1);
+			myAgent.getState().remove(TASKPREFIX + id);
 		}
-		
-		if (timeline != null
-				&& !myAgent.getState().putIfUnchanged(TYPEDKEY.getKey(),
-						timeline, oldTimeline)) {
-			// recursive retry....
-			cancelTask(id);
-			return;
+	}
+	
+	/**
+	 * Number of tasks of this scheduler, 0 if not loaded.
+	 * 
+	 * @return the size
+	 */
+	synchronized int size() {
+		return loaded ? tasks.size() : 0;
+	}
+	
+	/**
+	 * Mark the given task active, taking it out of the timeline.
+	 * 
+	 * @param task
+	 *            the task
+	 * @return the stored task, null if it doesn't exist or is active already
+	 */
+	private synchronized TaskEntry claimTask(final TaskEntry task) {
+		if (!load()) {
+			return null;
+		}
+		final TaskEntry entry = tasks.get(task.getTaskId());
+		if (entry == null || entry.isActive()) {
+			return null;
 		}
+		timeline.remove(entry);
+		entry.setActive(true);
+		myAgent.getState().put(TASKPREFIX + entry.getTaskId(), entry);
+		return entry;
 	}
 	
 	/**
@@ -177,35 +260,134 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 *            the task
 	 */
 	public void runTask(final TaskEntry task) {
-		if (task == null || task.isActive()) {
+		if (task == null) {
+			return;
+		}
+		final TaskEntry entry = claimTask(task);
+		if (entry == null) {
 			return;
 		}
-		task.setActive(true);
-		_this.putTask(task, true);
 		
+		final long started = DateTimeUtils.currentTimeMillis();
+		metrics.started(started - entry.getDue().getMillis());
+		final Completion completion = (entry.getInterval() > 0 && entry
+				.isSequential()) ? new Completion(entry, started) : null;
 		try {
-			// TODO: fix sequential calls, needs callback and guaranteed
-			// replies, also in the case of void? (This holds for all methods?)
-			final String receiverUrl = "local:" + myAgent.getId();
-			// Next call is always short/asynchronous
-			myAgent.send(task.getRequest(), URI.create(receiverUrl), null, null);
+			final URI receiverUrl = URI.create("local:" + myAgent.getId());
+			if (completion != null) {
+				// the next run waits for the response, or the timeout
+				myAgent.send(new JSONRequest(entry.getRequest().getMethod(),
+						entry.getRequest().getParams()), receiverUrl,
+						completion, null, timeout);
+				return;
+			}
+			// Next call is always short/asynchronous, and needs no response
+			myAgent.send(entry.getRequest().toNotification(), receiverUrl,
+					null, null);
+			metrics.finished(DateTimeUtils.currentTimeMillis() - started,
+					false);
 			
-			if (task.getInterval() <= 0) {
+			if (entry.getInterval() <= 0) {
 				// Remove from list
-				_this.cancelTask(task.getTaskId());
+				_this.cancelTask(entry.getTaskId());
 			} else {
-				task.setDue(DateTime.now().plus(task.getInterval()));
-				task.setActive(false);
-				_this.putTask(task, true);
-				_this.run();
+				reschedule(entry, started);
 			}
 		} catch (final Exception e) {
 			LOG.log(Level.SEVERE, myAgent.getId()
-					+ ": Failed to run scheduled task:" + task.toString(), e);
+					+ ": Failed to run scheduled task:" + entry.toString(), e);
+			if (completion != null) {
+				completion.onFailure(e);
+			} else {
+				metrics.finished(DateTimeUtils.currentTimeMillis() - started,
+						true);
+			}
 		}
 		
 	}
 	
+	/**
+	 * Schedule the next run of a repeating task, after a run.
+	 * 
+	 * @param entry
+	 *            the task
+	 * @param started
+	 *            the time the run started, in milliseconds
+	 */
+	private void reschedule(final TaskEntry entry, final long started) {
+		final long now = DateTimeUtils.currentTimeMillis();
+		final long due = entry.getDue().getMillis();
+		final long next = policy.getNextDue(due, entry.getInterval(), now);
+		entry.setMissed(entry.getMissed()
+				+ policy.countMissed(due, started, next, entry.getInterval()));
+		entry.setDue(new DateTime(next));
+		entry.setActive(false);
+		_this.putTask(entry, true);
+	}
+	
+	/**
+	 * Completion of a run of a sequential task: schedules the next run, once.
+	 */
+	private final class Completion implements AsyncCallback<JSONResponse> {
+		private final AtomicBoolean	done	= new AtomicBoolean(false);
+		private final TaskEntry		entry;
+		private final long			started;
+		
+		/**
+		 * Instantiates a new completion.
+		 * 
+		 * @param entry
+		 *            the task
+		 * @param started
+		 *            the time the run started, in milliseconds
+		 */
+		private Completion(final TaskEntry entry, final long started) {
+			this.entry = entry;
+			this.started = started;
+		}
+		
+		/**
+		 * Complete the run, once: record it and schedule the next run.
+		 * 
+		 * @param failed
+		 *            whether the run failed
+		 */
+		private void complete(final boolean failed) {
+			if (done.compareAndSet(false, true)) {
+				metrics.finished(DateTimeUtils.currentTimeMillis() - started,
+						failed);
+				reschedule(entry, started);
+				run();
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.almende.eve.agent.callback.AsyncCallback#onSuccess(java.lang.
+		 * Object)
+		 */
+		@Override
+		public void onSuccess(final JSONResponse result) {
+			complete(result != null && result.getError() != null);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.almende.eve.agent.callback.AsyncCallback#onFailure(java.lang.
+		 * Exception)
+		 */
+		@Override
+		public void onFailure(final Exception exception) {
+			LOG.log(Level.WARNING, myAgent.getId() + ": Run of task "
+					+ entry.getTaskId() + " failed", exception);
+			complete(true);
+		}
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -228,14 +410,15 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	@Override
 	public String createTask(final JSONRequest request, final long delay,
 			final boolean repeat, final boolean sequential) {
-		final TaskEntry task = new TaskEntry(DateTime.now().plus(delay),
-				request, (repeat ? delay : 0), sequential);
+		// repeating tasks run right away, and then every delay
+		final TaskEntry task = new TaskEntry(repeat ? DateTime.now()
+				: DateTime.now().plus(delay), request, (repeat ? delay : 0),
+				sequential);
 		putTask(task);
 		if (repeat || delay <= 0) {
 			runTask(task);
-		} else {
-			run();
 		}
+		run();
 		return task.getTaskId();
 	}
 	
@@ -245,18 +428,11 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 * @see com.almende.eve.scheduler.Scheduler#getTasks()
 	 */
 	@Override
-	public Set<String> getTasks() {
-		if (myAgent.getState() == null) {
+	public synchronized Set<String> getTasks() {
+		if (!load()) {
 			return null;
 		}
-		
-		final Set<String> result = new HashSet<String>();
-		final TreeMap<String, TaskEntry> timeline = myAgent.getState().get(
-				TYPEDKEY);
-		if (timeline == null || timeline.size() == 0) {
-			return result;
-		}
-		return timeline.keySet();
+		return new HashSet<String>(tasks.keySet());
 	}
 	
 	/*
@@ -266,17 +442,15 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 */
 	@Override
 	public Set<String> getDetailedTasks() {
-		if (myAgent.getState() == null) {
-			return null;
+		final ArrayList<TaskEntry> entries;
+		synchronized (this) {
+			if (!load()) {
+				return null;
+			}
+			entries = new ArrayList<TaskEntry>(tasks.values());
 		}
-		
 		final Set<String> result = new HashSet<String>();
-		final TreeMap<String, TaskEntry> timeline = myAgent.getState().get(
-				TYPEDKEY);
-		if (timeline == null || timeline.size() == 0) {
-			return result;
-		}
-		for (final TaskEntry entry : timeline.values()) {
+		for (final TaskEntry entry : entries) {
 			result.add(entry.toString());
 		}
 		return result;
@@ -289,15 +463,13 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 */
 	@Override
 	public void run() {
-		final TaskEntry task = getFirstTask();
+		TaskEntry task = getFirstTask();
+		while (task != null && !task.getDue().isAfterNow()) {
+			runTask(task);
+			task = getFirstTask();
+		}
 		if (task != null) {
-			if (task.getDue().isBeforeNow()) {
-				runTask(task);
-				// recursive call next task
-				run();
-				return;
-			}
-			myClock.requestTrigger(myAgent.getId(), task.getDue(), this);
+			getClock().requestTrigger(myAgent.getId(), task.getDue(), this);
 		}
 	}
 	
@@ -307,14 +479,11 @@ public class ClockScheduler extends AbstractScheduler implements Runnable {
 	 * @see java.lang.Object#toString()
 	 */
 	@Override
-	public String toString() {
-		if (myAgent.getState() == null) {
+	public synchronized String toString() {
+		if (!load()) {
 			return null;
 		}
-		
-		final TreeMap<String, TaskEntry> timeline = myAgent.getState().get(
-				TYPEDKEY);
-		return (timeline != null) ? timeline.toString() : "[]";
+		return tasks.values().toString();
 	}
 }
 
@@ -334,6 +503,7 @@ class TaskEntry implements Comparable<TaskEntry>, Serializable {
 	private long				interval			= 0;
 	private boolean				sequential			= true;
 	private boolean				active				= false;
+	private long				missed				= 0;
 	
 	/**
 	 * Instantiates a new task entry.
@@ -451,6 +621,15 @@ class TaskEntry implements Comparable<TaskEntry>, Serializable {
 		return interval;
 	}
 	
+	/**
+	 * Gets the number of missed runs, see MissedRunPolicy.
+	 * 
+	 * @return the missed runs
+	 */
+	public long getMissed() {
+		return missed;
+	}
+	
 	/**
 	 * Sets the task id.
 	 * 
@@ -521,6 +700,16 @@ class TaskEntry implements Comparable<TaskEntry>, Serializable {
 		this.active = active;
 	}
 	
+	/**
+	 * Sets the number of missed runs.
+	 * 
+	 * @param missed
+	 *            the new missed runs
+	 */
+	public void setMissed(final long missed) {
+		this.missed = missed;
+	}
+	
 	/**
 	 * Checks if is sequential.
 	 * 
@@ -13,13 +13,23 @@ import com.almende.eve.agent.AgentHost;
 import com.almende.eve.agent.AgentInterface;
 
 /**
- * A factory for creating ClockScheduler objects.
+ * A factory for creating ClockScheduler objects. Params (all optional):
+ * <ul>
+ * <li>timeout: the time in milliseconds to wait for the response to a run of a
+ * sequential task, default 0: the default timeout of the callbacks</li>
+ * <li>missedRuns: "skip" (the default) or "catchUp", see MissedRunPolicy</li>
+ * <li>metricsSink: the class name of a SchedulerMetricsSink, see
+ * SchedulerMetrics</li>
+ * </ul>
  */
 public class ClockSchedulerFactory implements SchedulerFactory {
 	private static final Logger				LOG			= Logger.getLogger(ClockSchedulerFactory.class
 																.getCanonicalName());
 	private final Map<String, Scheduler>	schedulers	= new HashMap<String, Scheduler>();
 	private AgentHost						host		= null;
+	private long							timeout		= 0;
+	private MissedRunPolicy					policy		= MissedRunPolicy.SKIP;
+	private SchedulerMetrics				metrics		= null;
 	
 	/**
 	 * This constructor is called when constructed by the AgentHost.
@@ -32,6 +42,12 @@ public class ClockSchedulerFactory implements SchedulerFactory {
 	public ClockSchedulerFactory(final AgentHost host,
 			final Map<String, Object> params) {
 		this(host, "");
+		metrics = new SchedulerMetrics("clockScheduler", params);
+		if (params != null) {
+			timeout = Math.max(0, RunnableSchedulerFactory.getLong(params,
+					"timeout", timeout));
+			policy = MissedRunPolicy.fromParams(params);
+		}
 	}
 	
 	/**
@@ -44,6 +60,17 @@ public class ClockSchedulerFactory implements SchedulerFactory {
 	 */
 	public ClockSchedulerFactory(final AgentHost host, final String id) {
 		this.host = host;
+		metrics = new SchedulerMetrics("clockScheduler", null);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.scheduler.SchedulerFactory#getMetrics()
+	 */
+	@Override
+	public SchedulerMetrics getMetrics() {
+		return metrics;
 	}
 	
 	/*
@@ -61,7 +88,8 @@ public class ClockSchedulerFactory implements SchedulerFactory {
 				scheduler = (ClockScheduler) schedulers.get(agent.getId());
 			} else {
 				try {
-					scheduler = new ClockScheduler(agent, host);
+					scheduler = new ClockScheduler(agent, host, timeout,
+							policy, metrics);
 					schedulers.put(agent.getId(), scheduler);
 				} catch (final Exception e) {
 					LOG.log(Level.SEVERE, "Couldn't init new scheduler", e);
@@ -84,8 +112,12 @@ public class ClockSchedulerFactory implements SchedulerFactory {
 	 */
 	@Override
 	public void destroyScheduler(final String agentId) {
+		final Scheduler scheduler;
 		synchronized (schedulers) {
-			schedulers.remove(agentId);
+			scheduler = schedulers.remove(agentId);
+		}
+		if (scheduler != null) {
+			metrics.removed(((ClockScheduler) scheduler).size());
 		}
 	}
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler;
+
+import java.util.Map;
+
+/**
+ * What a scheduler does with the runs of a repeating task which became due
+ * while the task was still running (sequential tasks) or while the scheduler
+ * was behind. Repeating tasks keep the phase of their first run: run n is due
+ * at first + n * interval.
+ */
+public enum MissedRunPolicy {
+	
+	/**
+	 * Skip the runs that are overdue, the next run is the first one due in the
+	 * future (or now). Each skipped run is counted as missed.
+	 */
+	SKIP,
+	
+	/**
+	 * Run every overdue run, back to back, until the task has caught up. Runs
+	 * which start one interval or more after their due time are counted as
+	 * missed.
+	 */
+	CATCH_UP;
+	
+	/**
+	 * Get the policy from the params of a scheduler factory: "missedRuns" is
+	 * either "skip" (the default) or "catchUp".
+	 * 
+	 * @param params
+	 *            the params, may be null
+	 * @return the policy
+	 */
+	public static MissedRunPolicy fromParams(final Map<String, Object> params) {
+		if (params != null && params.get("missedRuns") != null) {
+			final String value = params.get("missedRuns").toString()
+					.replaceAll("[-_]", "");
+			if ("catchup".equalsIgnoreCase(value)) {
+				return CATCH_UP;
+			}
+		}
+		return SKIP;
+	}
+	
+	/**
+	 * Get the due time of the next run of a repeating task.
+	 * 
+	 * @param due
+	 *            the due time of the last run, in milliseconds
+	 * @param interval
+	 *            the interval in milliseconds
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the due time of the next run
+	 */
+	public long getNextDue(final long due, final long interval, final long now) {
+		long next = due + interval;
+		if (this == SKIP && next < now) {
+			next += ((now - next + interval - 1) / interval) * interval;
+		}
+		return next;
+	}
+	
+	/**
+	 * Count the missed runs of a repeating task, after one of its runs.
+	 * 
+	 * @param due
+	 *            the due time of the run, in milliseconds
+	 * @param started
+	 *            the time the run started, in milliseconds
+	 * @param next
+	 *            the due time of the next run, as given by getNextDue()
+	 * @param interval
+	 *            the interval in milliseconds
+	 * @return the number of missed runs
+	 */
+	public long countMissed(final long due, final long started,
+			final long next, final long interval) {
+		if (this == SKIP) {
+			return (next - due) / interval - 1;
+		}
+		return started - due >= interval ? 1 : 0;
+	}
+}
@@ -17,20 +17,25 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 import org.joda.time.Interval;
 
 import com.almende.eve.agent.AgentHost;
 import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.agent.callback.AsyncCallback;
 import com.almende.eve.config.Config;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.clock.VirtualClock;
 import com.almende.eve.state.State;
 import com.almende.util.TypeUtil;
 
@@ -39,16 +44,54 @@ import com.almende.util.TypeUtil;
  * http://docs.oracle.com/javase/1.5.0/docs/api/java
  * /util/concurrent/ScheduledExecutorService.html
  * http://www.javapractices.com/topic/TopicAction.do?Id=54
+ * 
+ * Each task is persisted under its own key in the state of the factory, so
+ * storing or removing a task only writes that task. Restoring the tasks at
+ * startup doesn't write anything.
+ * 
+ * Tasks due in the same tick are run as one batch, per agent: the agent is
+ * looked up once for all its due tasks.
+ * 
+ * Repeating tasks keep the phase of their first run. A sequential task is
+ * sent as a request, and its next run is only scheduled when the response
+ * arrives (or the request times out), so runs of one task never overlap. Runs
+ * which became due in the meantime are handled by the MissedRunPolicy of the
+ * factory. While a VirtualClock is started, batches are triggered by that
+ * clock, and the tasks of a batch run one agent after the other. Params (all
+ * optional):
+ * <ul>
+ * <li>id: the id of the state of the factory</li>
+ * <li>tick: the length of a tick in milliseconds, default 10</li>
+ * <li>jitter: the maximum random delay in milliseconds added to the first run
+ * of a task, to spread tasks created (or restored) at the same time, default 0
+ * </li>
+ * <li>coalesce: if true, identical requests of an agent in the same batch are
+ * sent only once, default false</li>
+ * <li>timeout: the time in milliseconds to wait for the response to a run of a
+ * sequential task, default 0: the default timeout of the callbacks</li>
+ * <li>missedRuns: "skip" (the default) or "catchUp", see MissedRunPolicy</li>
+ * <li>metricsSink: the class name of a SchedulerMetricsSink, see
+ * SchedulerMetrics</li>
+ * </ul>
  */
 public class RunnableSchedulerFactory implements SchedulerFactory {
 	private static final Logger						LOG			= Logger.getLogger(RunnableSchedulerFactory.class
 																		.getSimpleName());
+	private static final String						TASKPREFIX	= "task_";
 	private final ScheduledExecutorService			scheduler	= Executors
 																		.newScheduledThreadPool(
 																				8,
 																				Config.getThreadFactory());
 	/** All tasks: {agentId: {taskId: task}} */
 	private final Map<String, Map<String, Task>>	allTasks	= new ConcurrentHashMap<String, Map<String, Task>>();
+	/** The batches waiting to run: {tick: batch} */
+	private final ConcurrentHashMap<Long, Batch>	batches		= new ConcurrentHashMap<Long, Batch>();
+	private long									tick		= 10;
+	private long									jitter		= 0;
+	private boolean									coalesce	= false;
+	private long									timeout		= 0;
+	private MissedRunPolicy							policy		= MissedRunPolicy.SKIP;
+	private SchedulerMetrics						metrics		= null;
 	private State									state		= null;
 	private String									stateId		= null;
 	private AgentHost								host		= null;
@@ -64,7 +107,8 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 	 */
 	public RunnableSchedulerFactory(final AgentHost host,
 			final Map<String, Object> params) {
-		this(host, (params != null) ? (String) params.get("id") : null);
+		this(host, (params != null) ? (String) params.get("id") : null,
+				params);
 	}
 	
 	/**
@@ -76,12 +120,63 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 	 *            the id
 	 */
 	public RunnableSchedulerFactory(final AgentHost host, final String id) {
+		this(host, id, null);
+	}
+	
+	/**
+	 * Instantiates a new runnable scheduler factory.
+	 * 
+	 * @param host
+	 *            the host
+	 * @param id
+	 *            the id
+	 * @param params
+	 *            the params, may be null
+	 */
+	private RunnableSchedulerFactory(final AgentHost host, final String id,
+			final Map<String, Object> params) {
 		this.host = host;
 		stateId = id;
+		if (params != null) {
+			tick = Math.max(1, getLong(params, "tick", tick));
+			jitter = Math.max(0, getLong(params, "jitter", jitter));
+			coalesce = Boolean.valueOf(String.valueOf(params.get("coalesce")));
+			timeout = Math.max(0, getLong(params, "timeout", timeout));
+			policy = MissedRunPolicy.fromParams(params);
+		}
+		metrics = new SchedulerMetrics(
+				(id == null || id.equals("")) ? "_runnableScheduler" : id,
+				params);
 		
 		init();
 	}
 	
+	/**
+	 * Get a numeric param.
+	 * 
+	 * @param params
+	 *            the params
+	 * @param key
+	 *            the key
+	 * @param defaultValue
+	 *            the default value
+	 * @return the value
+	 */
+	static long getLong(final Map<String, Object> params,
+			final String key, final long defaultValue) {
+		final Object value = params.get(key);
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		} else if (value != null) {
+			try {
+				return Long.parseLong(value.toString());
+			} catch (final NumberFormatException e) {
+				LOG.warning("Invalid scheduler param " + key + ":" + value);
+			}
+		}
+		return defaultValue;
+	}
+	
 	/**
 	 * Perform initialization tasks.
 	 */
@@ -137,7 +232,166 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 	 */
 	@Override
 	public void destroyScheduler(final String agentId) {
-		allTasks.remove(agentId);
+		final Map<String, Task> tasks = allTasks.remove(agentId);
+		if (tasks != null) {
+			metrics.removed(tasks.size());
+			for (final String taskId : tasks.keySet()) {
+				state.remove(TASKPREFIX + taskId);
+			}
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.scheduler.SchedulerFactory#getMetrics()
+	 */
+	@Override
+	public SchedulerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Random delay to add to the first run of a task.
+	 * 
+	 * @return the delay in milliseconds
+	 */
+	private long getJitter() {
+		return jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1)
+				: 0;
+	}
+	
+	/**
+	 * Add a task to the batch of the tick it is due in, scheduling the batch
+	 * if it is the first task of that tick.
+	 * 
+	 * @param task
+	 *            the task
+	 * @param delay
+	 *            the delay in milliseconds
+	 */
+	private void enqueue(final Task task, final long delay) {
+		final long now = DateTimeUtils.currentTimeMillis();
+		final long tickId = (now + Math.max(delay, 0) + tick - 1) / tick;
+		while (true) {
+			Batch batch = batches.get(tickId);
+			if (batch == null) {
+				final Batch created = new Batch(tickId);
+				created.add(task);
+				batch = batches.putIfAbsent(tickId, created);
+				if (batch == null) {
+					final VirtualClock clock = VirtualClock.getInstance();
+					if (clock != null) {
+						clock.requestTrigger(stateId + "_" + tickId,
+								new DateTime(tickId * tick), created);
+					} else {
+						scheduler.schedule(created, tickId * tick - now,
+								TimeUnit.MILLISECONDS);
+					}
+					return;
+				}
+			}
+			if (batch.add(task)) {
+				return;
+			}
+			// batch started running meanwhile
+			batches.remove(tickId, batch);
+		}
+	}
+	
+	/**
+	 * Run the given due tasks of an agent.
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @param tasks
+	 *            the tasks
+	 */
+	private void runTasks(final String agentId, final List<Task> tasks) {
+		AgentInterface sender = null;
+		try {
+			sender = host.getAgent(agentId);
+		} catch (final Exception e) {
+			LOG.log(Level.WARNING, "Couldn't get agent:" + agentId, e);
+		}
+		if (sender == null) {
+			LOG.warning("Agent doesn't exist:" + agentId);
+			destroyScheduler(agentId);
+			return;
+		}
+		final Set<String> sent = coalesce ? new HashSet<String>() : null;
+		for (final Task task : tasks) {
+			task.run(sender, sent);
+		}
+	}
+	
+	/**
+	 * The tasks due in one tick.
+	 */
+	private final class Batch implements Runnable {
+		private final long			tickId;
+		private final List<Task>	tasks	= new ArrayList<Task>();
+		private boolean				closed	= false;
+		
+		/**
+		 * Instantiates a new batch.
+		 * 
+		 * @param tickId
+		 *            the tick
+		 */
+		private Batch(final long tickId) {
+			this.tickId = tickId;
+		}
+		
+		/**
+		 * Add a task to this batch.
+		 * 
+		 * @param task
+		 *            the task
+		 * @return false if the batch is running already
+		 */
+		private synchronized boolean add(final Task task) {
+			if (closed) {
+				return false;
+			}
+			tasks.add(task);
+			return true;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			batches.remove(tickId, this);
+			synchronized (this) {
+				closed = true;
+			}
+			// group the tasks per agent
+			final Map<String, List<Task>> agents = new HashMap<String, List<Task>>();
+			for (final Task task : tasks) {
+				List<Task> list = agents.get(task.getAgentId());
+				if (list == null) {
+					list = new ArrayList<Task>();
+					agents.put(task.getAgentId(), list);
+				}
+				list.add(task);
+			}
+			for (final Entry<String, List<Task>> entry : agents.entrySet()) {
+				if (agents.size() == 1 || VirtualClock.getInstance() != null) {
+					runTasks(entry.getKey(), entry.getValue());
+				} else {
+					scheduler.execute(new Runnable() {
+						@Override
+						public void run() {
+							runTasks(entry.getKey(), entry.getValue());
+						}
+					});
+				}
+			}
+		}
 	}
 	
 	/**
@@ -173,15 +427,15 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		/** The timestamp. */
 		private DateTime			timestamp			= null;
 		
-		/** The future. */
-		private ScheduledFuture<?>	future				= null;
-		
 		/** The interval. */
 		private long				interval			= 0;
 		
 		/** The sequential. */
 		private boolean				sequential			= false;
 		
+		/** The number of missed runs. */
+		private long				missed				= 0;
+		
 		/**
 		 * Schedule a task.
 		 * 
@@ -208,9 +462,9 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 			}
 			
 			if (interval) {
-				start(-1);
+				start(getJitter() - 1);
 			} else {
-				start(delay);
+				start(delay + getJitter());
 			}
 		}
 		
@@ -218,23 +472,33 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		 * Schedule a task.
 		 * 
 		 * @param params
-		 *            A Map with parameters: agentId, request (stringified
-		 *            JSONRequest), and timestamp (ISOdate)
+		 *            A Map with parameters: agentId, taskId, request
+		 *            (stringified JSONRequest), and timestamp (ISOdate)
+		 * @param persist
+		 *            whether the task has to be persisted, false if it is
+		 *            restored from its own entry in the state
 		 * @throws JSONRPCException
 		 *             the jSONRPC exception
 		 * @throws IOException
 		 *             Signals that an I/O exception has occurred.
 		 */
-		Task(final Map<String, String> params) throws JSONRPCException,
-				IOException {
+		Task(final Map<String, String> params, final boolean persist)
+				throws JSONRPCException, IOException {
 			// TODO: throw exceptions when agentId, request are null or
 			// delay < 0
 			
+			taskId = params.get("taskId");
+			if (taskId != null) {
+				reserveTaskId(taskId);
+			}
 			agentId = params.get("agentId");
 			request = new JSONRequest(params.get("request"));
 			timestamp = new DateTime(params.get("timestamp"));
 			interval = Long.valueOf(params.get("interval"));
 			sequential = Boolean.valueOf(params.get("sequential"));
+			if (params.get("missed") != null) {
+				missed = Long.valueOf(params.get("missed"));
+			}
 			
 			long delay = 0;
 			if (timestamp.isAfterNow()) {
@@ -243,9 +507,9 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 			}
 			
 			if (interval > 0) {
-				start(-1);
+				start(getJitter() - 1, persist);
 			} else {
-				start(delay);
+				start(delay + getJitter(), persist);
 			}
 		}
 		
@@ -256,49 +520,166 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		 *            delay in milliseconds
 		 */
 		private void start(final long delay) {
+			start(delay, true);
+		}
+		
+		/**
+		 * Start task.
+		 * 
+		 * @param delay
+		 *            delay in milliseconds
+		 * @param persist
+		 *            whether to write the task to the state
+		 */
+		private void start(final long delay, final boolean persist) {
 			// create the task
-			timestamp = DateTime.now().plus(delay);
+			if (persist || timestamp == null) {
+				timestamp = DateTime.now().plus(delay);
+			}
 			if (taskId == null) {
 				taskId = createTaskId();
 			}
 			// persist the task, must be before schedule, because otherwise it
 			// will report as cancelled!
-			store();
+			store(persist);
+			enqueue(this, delay);
+		}
+		
+		/**
+		 * Run this task, called by its batch.
+		 * 
+		 * @param sender
+		 *            the agent of this task
+		 * @param sent
+		 *            the requests sent in this batch, null if identical
+		 *            requests aren't coalesced
+		 */
+		private void run(final AgentInterface sender, final Set<String> sent) {
 			// TODO: Double threading with send method!
-			// TODO: fix sequential calls
-			future = scheduler.schedule(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						if (cancelled()) {
-							return;
-						}
-						if (interval > 0 && !sequential) {
-							start(interval);
-						}
-						
-						final String receiverUrl = "local:" + agentId;
-						final AgentInterface sender = host.getAgent(agentId);
-						if (sender == null) {
-							LOG.warning("Agent doesn't exist:" + agentId);
-							destroyScheduler(agentId);
-							return;
-						}
-						sender.send(request, URI.create(receiverUrl), null,
-								null);
-						
-						if (interval > 0 && sequential && !cancelled()) {
-							start(interval);
-						}
-					} catch (final Exception e) {
-						LOG.log(Level.WARNING, "", e);
-					} finally {
-						if (interval <= 0) {
-							remove();
-						}
+			final long started = DateTimeUtils.currentTimeMillis();
+			final Completion completion = (interval > 0 && sequential) ? new Completion(
+					started) : null;
+			boolean ran = false;
+			boolean waiting = false;
+			boolean failed = false;
+			try {
+				if (cancelled()) {
+					return;
+				}
+				ran = true;
+				metrics.started(started - timestamp.getMillis());
+				if (interval > 0 && !sequential) {
+					reschedule(started);
+				}
+				
+				if (sent == null
+						|| sent.add(request.getMethod() + " "
+								+ request.getParams())) {
+					final URI receiverUrl = URI.create("local:" + agentId);
+					if (completion != null) {
+						// self-call, the next run waits for the response
+						sender.send(
+								new JSONRequest(request.getMethod(), request
+										.getParams()), receiverUrl,
+								completion, null, timeout);
+						waiting = true;
+					} else {
+						// self-call, no response needed
+						sender.send(request.toNotification(), receiverUrl,
+								null, null);
+					}
+				}
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "", e);
+				failed = true;
+			} finally {
+				if (ran && completion == null) {
+					metrics.finished(DateTimeUtils.currentTimeMillis()
+							- started, failed);
+				} else if (ran && !waiting) {
+					completion.complete(failed);
+				}
+				if (interval <= 0) {
+					remove();
+				}
+			}
+		}
+		
+		/**
+		 * Schedule the next run of this repeating task.
+		 * 
+		 * @param started
+		 *            the time the last run started, in milliseconds
+		 */
+		private void reschedule(final long started) {
+			final long now = DateTimeUtils.currentTimeMillis();
+			final long due = timestamp.getMillis();
+			final long next = policy.getNextDue(due, interval, now);
+			missed += policy.countMissed(due, started, next, interval);
+			timestamp = new DateTime(next);
+			store(true);
+			enqueue(this, next - now);
+		}
+		
+		/**
+		 * Completion of a run of a sequential task: schedules the next run,
+		 * once.
+		 */
+		private final class Completion implements AsyncCallback<JSONResponse> {
+			private final AtomicBoolean	done	= new AtomicBoolean(false);
+			private final long			started;
+			
+			/**
+			 * Instantiates a new completion.
+			 * 
+			 * @param started
+			 *            the time the run started, in milliseconds
+			 */
+			private Completion(final long started) {
+				this.started = started;
+			}
+			
+			/**
+			 * Complete the run, once: record it and schedule the next run.
+			 * 
+			 * @param failed
+			 *            whether the run failed
+			 */
+			private void complete(final boolean failed) {
+				if (done.compareAndSet(false, true)) {
+					metrics.finished(DateTimeUtils.currentTimeMillis()
+							- started, failed);
+					if (!cancelled()) {
+						reschedule(started);
 					}
 				}
-			}, delay, TimeUnit.MILLISECONDS);
+			}
+			
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see
+			 * com.almende.eve.agent.callback.AsyncCallback#onSuccess(java.lang.
+			 * Object)
+			 */
+			@Override
+			public void onSuccess(final JSONResponse result) {
+				complete(result != null && result.getError() != null);
+			}
+			
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see
+			 * com.almende.eve.agent.callback.AsyncCallback#onFailure(java.lang.
+			 * Exception)
+			 */
+			@Override
+			public void onFailure(final Exception exception) {
+				LOG.log(Level.WARNING, "Run of task " + taskId + " failed",
+						exception);
+				complete(true);
+			}
 		}
 		
 		/**
@@ -337,15 +718,6 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 			return timestamp;
 		}
 		
-		/**
-		 * Gets the future.
-		 * 
-		 * @return the future
-		 */
-		public ScheduledFuture<?> getFuture() {
-			return future;
-		}
-		
 		/**
 		 * Gets the interval.
 		 * 
@@ -364,21 +736,30 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 			return sequential;
 		}
 		
+		/**
+		 * Gets the number of missed runs, see MissedRunPolicy.
+		 * 
+		 * @return the missed runs
+		 */
+		public long getMissed() {
+			return missed;
+		}
+		
 		/**
 		 * Cancel.
 		 */
 		public void cancel() {
-			if (future != null) {
-				final boolean mayInterruptIfRunning = false;
-				future.cancel(mayInterruptIfRunning);
-			}
+			// the batch of this task skips it
 			remove();
 		}
 		
 		/**
 		 * Store this task in the global task list.
+		 * 
+		 * @param persist
+		 *            whether to write the task to the state
 		 */
-		private void store() {
+		private void store(final boolean persist) {
 			Map<String, Task> tasks = allTasks.get(agentId);
 			if (tasks == null) {
 				synchronized (allTasks) {
@@ -389,8 +770,12 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 					}
 				}
 			}
-			tasks.put(taskId, this);
-			storeTasks();
+			if (tasks.put(taskId, this) == null) {
+				metrics.added(1);
+			}
+			if (persist) {
+				state.put(TASKPREFIX + taskId, getParams());
+			}
 		}
 		
 		/**
@@ -399,7 +784,9 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		private void remove() {
 			final Map<String, Task> tasks = allTasks.get(agentId);
 			if (tasks != null) {
-				tasks.remove(taskId);
+				if (tasks.remove(taskId) != null) {
+					metrics.removed(1);
+				}
 				
 				if (tasks.size() == 0) {
 					synchronized (tasks) {
@@ -410,7 +797,7 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 						}
 					}
 				}
-				storeTasks();
+				state.remove(TASKPREFIX + taskId);
 			}
 		}
 		
@@ -439,10 +826,12 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		public Map<String, String> getParams() {
 			final Map<String, String> params = new HashMap<String, String>();
 			params.put("agentId", agentId);
+			params.put("taskId", taskId);
 			params.put("request", request.toString());
 			params.put("timestamp", timestamp.toString());
 			params.put("interval", new Long(interval).toString());
 			params.put("sequential", Boolean.valueOf(sequential).toString());
+			params.put("missed", Long.toString(missed));
 			return params;
 		}
 		
@@ -560,7 +949,7 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 					result.add(task.toString());
 				}
 			}
-			return new HashSet<String>();
+			return result;
 		}
 		
 		/*
@@ -589,6 +978,20 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		}
 	}
 	
+	/**
+	 * Make sure new taskIds won't collide with the given (restored) id.
+	 * 
+	 * @param taskId
+	 *            the task id
+	 */
+	private synchronized void reserveTaskId(final String taskId) {
+		try {
+			count = Math.max(count, Long.parseLong(taskId));
+		} catch (final NumberFormatException e) {
+			LOG.log(Level.FINE, "Non numeric taskId:" + taskId, e);
+		}
+	}
+	
 	/**
 	 * load scheduled, persisted tasks.
 	 */
@@ -597,24 +1000,38 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 		int failedTaskCount = 0;
 		
 		try {
+			for (final String key : state.keySet()) {
+				if (!key.startsWith(TASKPREFIX)) {
+					continue;
+				}
+				taskCount++;
+				try {
+					// start the task, it is persisted already
+					new Task(state.get(key,
+							new TypeUtil<Map<String, String>>() {
+							}), false);
+				} catch (final Exception e) {
+					LOG.log(Level.WARNING, "", e);
+					failedTaskCount++;
+				}
+			}
+			
+			// tasks stored in a single list by older versions
 			final List<Map<String, String>> serializedTasks = state.get(
 					"tasks", new TypeUtil<List<Map<String, String>>>() {
 					});
-			
 			if (serializedTasks != null) {
 				for (final Map<String, String> taskParams : serializedTasks) {
 					taskCount++;
 					try {
-						// start the task
-						new Task(taskParams);
-						// TODO: optimize: when a new Task is created, it will
-						// automatically
-						// store and persist allTasks again. That is inefficient
+						// start the task, moving it to its own entry
+						new Task(taskParams, true);
 					} catch (final Exception e) {
 						LOG.log(Level.WARNING, "", e);
 						failedTaskCount++;
 					}
 				}
+				state.remove("tasks");
 			}
 		} catch (final Exception e) {
 			LOG.log(Level.WARNING, "", e);
@@ -627,22 +1044,4 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 						: ""));
 	}
 	
-	/**
-	 * Persist all currently running tasks.
-	 */
-	private void storeTasks() {
-		final ArrayList<Map<String, String>> serializedTasks = new ArrayList<Map<String, String>>();
-		
-		for (final Entry<String, Map<String, Task>> allEntry : allTasks
-				.entrySet()) {
-			final Map<String, Task> tasks = allEntry.getValue();
-			for (final Entry<String, Task> entry : tasks.entrySet()) {
-				final Task task = entry.getValue();
-				serializedTasks.add(task.getParams());
-			}
-		}
-		
-		state.put("tasks", serializedTasks);
-	}
-	
 }
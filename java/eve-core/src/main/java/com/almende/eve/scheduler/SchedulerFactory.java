@@ -27,4 +27,11 @@ public interface SchedulerFactory {
 	 *            the agent id
 	 */
 	void destroyScheduler(String agentId);
+	
+	/**
+	 * Gets the metrics of the tasks scheduled by this factory.
+	 * 
+	 * @return the metrics, null if not measured
+	 */
+	SchedulerMetrics getMetrics();
 }
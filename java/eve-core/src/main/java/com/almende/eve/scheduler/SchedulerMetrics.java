@@ -0,0 +1,293 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Measurements of a scheduler factory: the number of pending tasks, how late
+ * runs start (lag), how long they take (execution) and how many fail. For
+ * sequential tasks a run takes until the response arrives, for other tasks
+ * until the request is sent. Every measurement is also handed to the sink,
+ * if any.
+ */
+public class SchedulerMetrics {
+	private static final Logger				LOG			= Logger.getLogger(SchedulerMetrics.class
+															.getName());
+	private final String					name;
+	private final AtomicLong				pending		= new AtomicLong();
+	private final AtomicLong				failures	= new AtomicLong();
+	private final Histogram					lag			= new Histogram();
+	private final Histogram					execution	= new Histogram();
+	private volatile SchedulerMetricsSink	sink		= null;
+	
+	/**
+	 * Instantiates new scheduler metrics.
+	 * 
+	 * @param name
+	 *            the name of the scheduler factory
+	 * @param params
+	 *            the params of the scheduler factory, may be null. The
+	 *            optional "metricsSink" param is the class name of the sink.
+	 */
+	public SchedulerMetrics(final String name, final Map<String, Object> params) {
+		this.name = name;
+		if (params != null && params.get("metricsSink") != null) {
+			final String className = params.get("metricsSink").toString();
+			try {
+				sink = (SchedulerMetricsSink) Class.forName(className)
+						.newInstance();
+			} catch (final Exception e) {
+				LOG.log(Level.WARNING, "Couldn't create metrics sink "
+						+ className, e);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the sink.
+	 * 
+	 * @param sink
+	 *            the new sink, null for none
+	 */
+	public void setSink(final SchedulerMetricsSink sink) {
+		this.sink = sink;
+	}
+	
+	/**
+	 * Hand a measurement to the sink.
+	 * 
+	 * @param metric
+	 *            the metric
+	 * @param value
+	 *            the value
+	 */
+	private void record(final String metric, final long value) {
+		final SchedulerMetricsSink current = sink;
+		if (current != null) {
+			try {
+				current.record(name, metric, value);
+			} catch (final RuntimeException e) {
+				LOG.log(Level.WARNING, "Metrics sink failed", e);
+			}
+		}
+	}
+	
+	/**
+	 * Count added tasks.
+	 * 
+	 * @param count
+	 *            the number of added tasks
+	 */
+	public void added(final long count) {
+		if (count != 0) {
+			record("pending", pending.addAndGet(count));
+		}
+	}
+	
+	/**
+	 * Count removed tasks.
+	 * 
+	 * @param count
+	 *            the number of removed tasks
+	 */
+	public void removed(final long count) {
+		added(-count);
+	}
+	
+	/**
+	 * Record the start of a run.
+	 * 
+	 * @param lag
+	 *            the time between the due time and the start, in milliseconds
+	 */
+	public void started(final long lag) {
+		this.lag.add(lag);
+		record("lag", lag);
+	}
+	
+	/**
+	 * Record the end of a run.
+	 * 
+	 * @param duration
+	 *            the duration in milliseconds
+	 * @param failed
+	 *            whether the run failed
+	 */
+	public void finished(final long duration, final boolean failed) {
+		execution.add(duration);
+		record("execution", duration);
+		if (failed) {
+			failures.incrementAndGet();
+			record("failures", 1);
+		}
+	}
+	
+	/**
+	 * Gets the number of pending tasks.
+	 * 
+	 * @return the pending tasks
+	 */
+	public long getPending() {
+		return pending.get();
+	}
+	
+	/**
+	 * Gets the number of failed runs.
+	 * 
+	 * @return the failures
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+	
+	/**
+	 * Gets the lag histogram.
+	 * 
+	 * @return the lag
+	 */
+	public Histogram getLag() {
+		return lag;
+	}
+	
+	/**
+	 * Gets the execution time histogram.
+	 * 
+	 * @return the execution
+	 */
+	public Histogram getExecution() {
+		return execution;
+	}
+	
+	/**
+	 * Gets the metrics as JSON.
+	 * 
+	 * @return the metrics
+	 */
+	public ObjectNode toJSON() {
+		final ObjectNode result = JOM.createObjectNode();
+		result.put("scheduler", name);
+		result.put("pending", pending.get());
+		result.put("fired", lag.getCount());
+		result.put("failures", failures.get());
+		result.put("lag", lag.toJSON());
+		result.put("execution", execution.toJSON());
+		return result;
+	}
+	
+	/**
+	 * Histogram of durations in milliseconds, in buckets of powers of two:
+	 * bucket i counts the durations below 2^i (and at least 2^(i-1)).
+	 */
+	public static final class Histogram {
+		private static final int		BUCKETS	= 32;
+		private final AtomicLongArray	buckets	= new AtomicLongArray(BUCKETS);
+		private final AtomicLong		count	= new AtomicLong();
+		private final AtomicLong		sum		= new AtomicLong();
+		private final AtomicLong		max		= new AtomicLong();
+		
+		/**
+		 * Add a duration, negative durations count as 0.
+		 * 
+		 * @param value
+		 *            the duration in milliseconds
+		 */
+		public void add(final long value) {
+			final long duration = Math.max(0, value);
+			buckets.incrementAndGet(Math.min(BUCKETS - 1,
+					64 - Long.numberOfLeadingZeros(duration)));
+			count.incrementAndGet();
+			sum.addAndGet(duration);
+			long old = max.get();
+			while (duration > old && !max.compareAndSet(old, duration)) {
+				old = max.get();
+			}
+		}
+		
+		/**
+		 * Gets the number of durations.
+		 * 
+		 * @return the count
+		 */
+		public long getCount() {
+			return count.get();
+		}
+		
+		/**
+		 * Gets the mean duration.
+		 * 
+		 * @return the mean in milliseconds
+		 */
+		public double getMean() {
+			final long total = count.get();
+			return total > 0 ? (double) sum.get() / total : 0;
+		}
+		
+		/**
+		 * Gets the maximum duration.
+		 * 
+		 * @return the max in milliseconds
+		 */
+		public long getMax() {
+			return max.get();
+		}
+		
+		/**
+		 * Gets an upper bound of the given percentile: the upper bound of the
+		 * bucket holding it.
+		 * 
+		 * @param percentile
+		 *            the percentile, between 0 and 100
+		 * @return the upper bound in milliseconds, 0 if empty
+		 */
+		public long getPercentile(final double percentile) {
+			final long total = count.get();
+			if (total == 0) {
+				return 0;
+			}
+			final double rank = total * percentile / 100;
+			long seen = 0;
+			for (int i = 0; i < BUCKETS - 1; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(1L << i, max.get());
+				}
+			}
+			return max.get();
+		}
+		
+		/**
+		 * Gets the histogram as JSON, only non-empty buckets are included.
+		 * 
+		 * @return the histogram
+		 */
+		public ObjectNode toJSON() {
+			final ObjectNode result = JOM.createObjectNode();
+			result.put("count", count.get());
+			result.put("mean", getMean());
+			result.put("max", max.get());
+			result.put("p50", getPercentile(50));
+			result.put("p90", getPercentile(90));
+			result.put("p99", getPercentile(99));
+			final ObjectNode counts = JOM.createObjectNode();
+			for (int i = 0; i < BUCKETS; i++) {
+				final long bucket = buckets.get(i);
+				if (bucket > 0) {
+					counts.put(i < BUCKETS - 1 ? "<" + (1L << i) : ">="
+							+ (1L << (i - 1)), bucket);
+				}
+			}
+			result.put("buckets", counts);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler;
+
+/**
+ * Receives the measurements of a scheduler factory, e.g. to forward them to a
+ * monitoring system. Configured by the "metricsSink" param of the scheduler
+ * factory: the name of a class implementing this interface, with a public
+ * no-argument constructor.
+ * 
+ * Measurements are recorded on the threads running the tasks, so
+ * implementations must be thread safe and shouldn't block.
+ */
+public interface SchedulerMetricsSink {
+	
+	/**
+	 * Record a measurement.
+	 * 
+	 * @param scheduler
+	 *            the name of the scheduler factory
+	 * @param metric
+	 *            the metric: "pending" (number of pending tasks, on change),
+	 *            "lag" (milliseconds between the due time and the start of a
+	 *            run), "execution" (duration of a run in milliseconds) or
+	 *            "failures" (1 per failed run)
+	 * @param value
+	 *            the value
+	 */
+	void record(String scheduler, String metric, long value);
+}
@@ -18,7 +18,11 @@ import com.almende.eve.config.Config;
 
 /**
  * The Class RunnableClock.
+ * 
+ * @deprecated Triggers with equal due times overwrite each other, and all
+ *             agents contend on a single lock. Use {@link TimingWheelClock}.
  */
+@Deprecated
 public class RunnableClock implements Runnable, Clock {
 	private static final NavigableMap<ClockEntry, ClockEntry>	TIMELINE	= new TreeMap<ClockEntry, ClockEntry>();
 	private static final ScheduledExecutorService				POOL		= Executors
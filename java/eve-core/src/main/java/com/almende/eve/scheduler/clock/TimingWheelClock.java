@@ -0,0 +1,354 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler.clock;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.joda.time.DateTime;
+
+import com.almende.eve.config.Config;
+
+/**
+ * Clock based on a hierarchical timing wheel, sharded by trigger id.
+ * 
+ * Requesting a trigger only updates the pending trigger of its id and queues
+ * the trigger for its shard, without locking. Each shard has a single ticker
+ * which moves queued triggers into its wheel: LEVELS levels of SLOTS slots,
+ * each level covering SLOTS times the span of the level below it. Triggers
+ * are cascaded to lower levels as their time comes near, and fired from the
+ * lowest level. Triggers which are replaced or cancelled are dropped lazily,
+ * when the ticker reaches them. Clearing the clock has the tickers purge their
+ * wheels, so they stop.
+ * 
+ * Triggers fire at the first tick at or after their due time, on a separate
+ * pool. Triggers with equal due times are independent, only a trigger with
+ * the same id is replaced (and only by an earlier one). A ticker stops when
+ * its shard is empty.
+ */
+public class TimingWheelClock implements Clock {
+	/** duration of a tick in milliseconds, the resolution of the clock */
+	public static final long						TICK	= 10;
+	private static final int						SHARDS	= 4;
+	private static final int						BITS	= 6;
+	private static final int						SLOTS	= 1 << BITS;
+	private static final int						LEVELS	= 4;
+	private static final ScheduledExecutorService	TICKER	= Executors
+																	.newScheduledThreadPool(
+																			SHARDS,
+																			Config.getThreadFactory());
+	private static final ExecutorService			POOL	= Executors
+																	.newCachedThreadPool(Config
+																			.getThreadFactory());
+	private static final Shard[]					WHEELS	= new Shard[SHARDS];
+	static {
+		for (int i = 0; i < SHARDS; i++) {
+			WHEELS[i] = new Shard();
+		}
+	}
+	
+	/**
+	 * Gets the shard of the given trigger.
+	 * 
+	 * @param triggerId
+	 *            the trigger id
+	 * @return the shard
+	 */
+	private static Shard getShard(final String triggerId) {
+		final int hash = triggerId.hashCode();
+		return WHEELS[((hash ^ (hash >>> 16)) & 0x7fffffff) % SHARDS];
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.scheduler.clock.Clock#requestTrigger(java.lang.String,
+	 * org.joda.time.DateTime, java.lang.Runnable)
+	 */
+	@Override
+	public void requestTrigger(final String triggerId, final DateTime due,
+			final Runnable callback) {
+		getShard(triggerId).request(
+				new Trigger(triggerId, due.getMillis(), callback));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.scheduler.clock.Clock#cancel(java.lang.String)
+	 */
+	@Override
+	public void cancel(final String triggerId) {
+		getShard(triggerId).pending.remove(triggerId);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.scheduler.clock.Clock#clear()
+	 */
+	@Override
+	public void clear() {
+		for (final Shard shard : WHEELS) {
+			shard.pending.clear();
+			shard.purge.set(true);
+		}
+	}
+	
+	/**
+	 * Number of pending triggers.
+	 * 
+	 * @return the size
+	 */
+	public static int size() {
+		int size = 0;
+		for (final Shard shard : WHEELS) {
+			size += shard.pending.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * A requested trigger.
+	 */
+	private static final class Trigger {
+		private final String	triggerId;
+		private final long		due;
+		private final long		tick;
+		private final Runnable	callback;
+		
+		/**
+		 * Instantiates a new trigger.
+		 * 
+		 * @param triggerId
+		 *            the trigger id
+		 * @param due
+		 *            the due time in milliseconds
+		 * @param callback
+		 *            the callback
+		 */
+		private Trigger(final String triggerId, final long due,
+				final Runnable callback) {
+			this.triggerId = triggerId;
+			this.due = due;
+			// first tick at or after the due time
+			tick = (due + TICK - 1) / TICK;
+			this.callback = callback;
+		}
+	}
+	
+	/**
+	 * One shard of the clock: the pending triggers of its ids, and the wheel
+	 * holding them. The wheel is only accessed by the ticker.
+	 */
+	private static final class Shard implements Runnable {
+		private final ConcurrentHashMap<String, Trigger>	pending		= new ConcurrentHashMap<String, Trigger>();
+		private final ConcurrentLinkedQueue<Trigger>		inbox		= new ConcurrentLinkedQueue<Trigger>();
+		private final AtomicBoolean							ticking		= new AtomicBoolean(
+																				false);
+		private final AtomicBoolean							purge		= new AtomicBoolean(
+																				false);
+		@SuppressWarnings("unchecked")
+		private final List<Trigger>[][]						wheel		= new List[LEVELS][SLOTS];
+		private List<Trigger>								overflow	= new ArrayList<Trigger>();
+		private long										current		= 0;
+		private int											count		= 0;
+		
+		/**
+		 * Request a trigger, unless an earlier trigger with the same id is
+		 * pending.
+		 * 
+		 * @param trigger
+		 *            the trigger
+		 */
+		private void request(final Trigger trigger) {
+			while (true) {
+				final Trigger old = pending.get(trigger.triggerId);
+				if (old == null) {
+					if (pending.putIfAbsent(trigger.triggerId, trigger) == null) {
+						break;
+					}
+				} else if (old.due <= trigger.due) {
+					return;
+				} else if (pending.replace(trigger.triggerId, old, trigger)) {
+					break;
+				}
+			}
+			inbox.offer(trigger);
+			if (ticking.compareAndSet(false, true)) {
+				TICKER.execute(this);
+			}
+		}
+		
+		/**
+		 * Checks whether the given trigger is still pending.
+		 * 
+		 * @param trigger
+		 *            the trigger
+		 * @return true, if pending
+		 */
+		private boolean isPending(final Trigger trigger) {
+			return pending.get(trigger.triggerId) == trigger;
+		}
+		
+		/**
+		 * Fire the given trigger, if still pending.
+		 * 
+		 * @param trigger
+		 *            the trigger
+		 */
+		private void fire(final Trigger trigger) {
+			if (pending.remove(trigger.triggerId, trigger)) {
+				POOL.execute(trigger.callback);
+			}
+		}
+		
+		/**
+		 * Put a trigger in the wheel, relative to the current tick: in the
+		 * lowest level whose next level has the trigger in the current slot.
+		 * 
+		 * @param trigger
+		 *            the trigger
+		 */
+		private void place(final Trigger trigger) {
+			if (trigger.tick <= current) {
+				fire(trigger);
+				return;
+			}
+			count++;
+			for (int level = 0; level < LEVELS; level++) {
+				final int shift = BITS * (level + 1);
+				if ((trigger.tick >>> shift) == (current >>> shift)) {
+					final int slot = (int) ((trigger.tick >>> (BITS * level)) & (SLOTS - 1));
+					if (wheel[level][slot] == null) {
+						wheel[level][slot] = new ArrayList<Trigger>();
+					}
+					wheel[level][slot].add(trigger);
+					return;
+				}
+			}
+			overflow.add(trigger);
+		}
+		
+		/**
+		 * Drop the triggers which are no longer pending from the given slot.
+		 * 
+		 * @param triggers
+		 *            the triggers, may be null
+		 * @return the remaining triggers, null if none
+		 */
+		private List<Trigger> purge(final List<Trigger> triggers) {
+			if (triggers == null) {
+				return null;
+			}
+			final Iterator<Trigger> iter = triggers.iterator();
+			while (iter.hasNext()) {
+				if (!isPending(iter.next())) {
+					iter.remove();
+				}
+			}
+			count += triggers.size();
+			return triggers.isEmpty() ? null : triggers;
+		}
+		
+		/**
+		 * Drop the triggers which are no longer pending from the wheel, after
+		 * the clock has been cleared.
+		 */
+		private void purge() {
+			count = 0;
+			for (int level = 0; level < LEVELS; level++) {
+				for (int slot = 0; slot < SLOTS; slot++) {
+					wheel[level][slot] = purge(wheel[level][slot]);
+				}
+			}
+			final List<Trigger> triggers = purge(overflow);
+			overflow = triggers != null ? triggers : new ArrayList<Trigger>();
+		}
+		
+		/**
+		 * Take the triggers out of a slot, and place them again.
+		 * 
+		 * @param triggers
+		 *            the triggers, may be null
+		 */
+		private void cascade(final List<Trigger> triggers) {
+			if (triggers == null) {
+				return;
+			}
+			count -= triggers.size();
+			for (final Trigger trigger : triggers) {
+				if (isPending(trigger)) {
+					place(trigger);
+				}
+			}
+		}
+		
+		/**
+		 * Move the wheel to the next tick: cascade the slots of the higher
+		 * levels which start at this tick, and fire the lowest level slot.
+		 */
+		private void advance() {
+			current++;
+			if ((current & ((1L << (BITS * LEVELS)) - 1)) == 0) {
+				final List<Trigger> triggers = overflow;
+				overflow = new ArrayList<Trigger>();
+				cascade(triggers);
+			}
+			for (int level = LEVELS - 1; level >= 0; level--) {
+				if ((current & ((1L << (BITS * level)) - 1)) == 0) {
+					final int slot = (int) ((current >>> (BITS * level)) & (SLOTS - 1));
+					final List<Trigger> triggers = wheel[level][slot];
+					wheel[level][slot] = null;
+					// level 0 triggers are due, and fired by place()
+					cascade(triggers);
+				}
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			if (purge.getAndSet(false)) {
+				purge();
+			}
+			final long now = System.currentTimeMillis() / TICK;
+			if (count == 0 && current < now) {
+				// nothing in the wheel, no need to walk the ticks in between
+				current = now;
+			}
+			Trigger trigger = inbox.poll();
+			while (trigger != null) {
+				if (isPending(trigger)) {
+					place(trigger);
+				}
+				trigger = inbox.poll();
+			}
+			while (current < now) {
+				advance();
+			}
+			if (count == 0) {
+				ticking.set(false);
+				if (inbox.isEmpty() || !ticking.compareAndSet(false, true)) {
+					return;
+				}
+			}
+			TICKER.schedule(this, TICK, TimeUnit.MILLISECONDS);
+		}
+	}
+}
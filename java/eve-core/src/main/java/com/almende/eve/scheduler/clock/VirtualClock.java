@@ -0,0 +1,376 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.scheduler.clock;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.DateTimeUtils.MillisProvider;
+
+/**
+ * Discrete-event clock for simulations: time doesn't pass by itself, but
+ * jumps to the next due trigger once all agents are quiescent. While started,
+ * the clock is the time source of Joda-Time (DateTime.now() etc.) in the
+ * whole JVM, and both schedulers use it instead of the wall clock. Hours of
+ * simulated time can thus be run in seconds.
+ * 
+ * Agents are quiescent when none of the work submitted to the pool of the
+ * agent host (e.g. the handling of local messages) is running, and no code
+ * between enter() and leave() is running. Work done by other threads, e.g.
+ * remote transports, isn't seen.
+ * 
+ * The clock is driven by run(): triggers fire one at a time, on the calling
+ * thread, in order of due time and then of request, each after the work of
+ * the previous trigger has finished.
+ */
+public final class VirtualClock implements Clock {
+	private static final Logger				LOG			= Logger.getLogger(VirtualClock.class
+															.getName());
+	private static volatile VirtualClock	instance	= null;
+	private final Map<String, Trigger>		triggers	= new HashMap<String, Trigger>();
+	private final TreeSet<Trigger>			timeline	= new TreeSet<Trigger>();
+	private volatile long					now;
+	private long							sequence	= 0;
+	private int								busy		= 0;
+	private ExecutorService					pool		= null;
+	private ExecutorService					tracked		= null;
+	
+	/**
+	 * Instantiates a new virtual clock.
+	 * 
+	 * @param start
+	 *            the start time
+	 */
+	private VirtualClock(final DateTime start) {
+		now = start.getMillis();
+	}
+	
+	/**
+	 * Start virtual time, replacing the wall clock.
+	 * 
+	 * @param start
+	 *            the time to start at
+	 * @return the clock
+	 */
+	public static synchronized VirtualClock start(final DateTime start) {
+		final VirtualClock clock = new VirtualClock(start);
+		DateTimeUtils.setCurrentMillisProvider(new MillisProvider() {
+			@Override
+			public long getMillis() {
+				return clock.now;
+			}
+		});
+		instance = clock;
+		return clock;
+	}
+	
+	/**
+	 * Stop virtual time, going back to the wall clock. Pending triggers are
+	 * handed to a TimingWheelClock, so the schedulers which requested them
+	 * keep running.
+	 */
+	public static synchronized void stop() {
+		DateTimeUtils.setCurrentMillisSystem();
+		if (instance != null) {
+			final VirtualClock clock = instance;
+			instance = null;
+			final Clock wallClock = new TimingWheelClock();
+			synchronized (clock) {
+				for (final Trigger trigger : clock.timeline) {
+					wallClock.requestTrigger(trigger.triggerId, new DateTime(
+							trigger.due), trigger.callback);
+				}
+				clock.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the virtual clock, if started.
+	 * 
+	 * @return the clock, null when using the wall clock
+	 */
+	public static VirtualClock getInstance() {
+		return instance;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.almende.eve.scheduler.clock.Clock#requestTrigger(java.lang.String,
+	 * org.joda.time.DateTime, java.lang.Runnable)
+	 */
+	@Override
+	public synchronized void requestTrigger(final String triggerId,
+			final DateTime due, final Runnable callback) {
+		final Trigger old = triggers.get(triggerId);
+		if (old != null) {
+			if (old.due <= due.getMillis()) {
+				return;
+			}
+			timeline.remove(old);
+		}
+		final Trigger trigger = new Trigger(triggerId, due.getMillis(),
+				sequence++, callback);
+		triggers.put(triggerId, trigger);
+		timeline.add(trigger);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.scheduler.clock.Clock#cancel(java.lang.String)
+	 */
+	@Override
+	public synchronized void cancel(final String triggerId) {
+		final Trigger trigger = triggers.remove(triggerId);
+		if (trigger != null) {
+			timeline.remove(trigger);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.almende.eve.scheduler.clock.Clock#clear()
+	 */
+	@Override
+	public synchronized void clear() {
+		triggers.clear();
+		timeline.clear();
+	}
+	
+	/**
+	 * Number of pending triggers.
+	 * 
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return triggers.size();
+	}
+	
+	/**
+	 * Mark the start of activity the clock has to wait for, e.g. the setup of
+	 * a simulation. Must be followed by leave().
+	 */
+	public synchronized void enter() {
+		busy++;
+	}
+	
+	/**
+	 * Mark the end of activity started by enter().
+	 */
+	public synchronized void leave() {
+		busy--;
+		if (busy == 0) {
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Wrap the given pool, so the clock waits for the work submitted to it.
+	 * 
+	 * @param pool
+	 *            the pool
+	 * @return the tracked pool
+	 */
+	public synchronized ExecutorService track(final ExecutorService pool) {
+		if (this.pool != pool) {
+			this.pool = pool;
+			tracked = new TrackedPool(pool);
+		}
+		return tracked;
+	}
+	
+	/**
+	 * Run the simulation until the given time: fire all triggers due up to
+	 * then, jumping to the due time of each trigger as soon as the agents are
+	 * quiescent. Must not be called between enter() and leave().
+	 * 
+	 * @param until
+	 *            the time to stop at, the clock is set to it when done
+	 * @return the number of fired triggers
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	public int run(final DateTime until) throws InterruptedException {
+		int fired = 0;
+		while (true) {
+			final Trigger trigger;
+			synchronized (this) {
+				while (busy > 0) {
+					wait();
+				}
+				if (timeline.isEmpty()
+						|| timeline.first().due > until.getMillis()) {
+					now = Math.max(now, until.getMillis());
+					return fired;
+				}
+				trigger = timeline.pollFirst();
+				triggers.remove(trigger.triggerId);
+				now = Math.max(now, trigger.due);
+				busy++;
+			}
+			try {
+				trigger.callback.run();
+			} catch (final RuntimeException e) {
+				LOG.log(Level.WARNING, "Trigger " + trigger.triggerId
+						+ " failed", e);
+			} finally {
+				leave();
+			}
+			fired++;
+		}
+	}
+	
+	/**
+	 * A requested trigger, ordered by due time and then by request.
+	 */
+	private static final class Trigger implements Comparable<Trigger> {
+		private final String	triggerId;
+		private final long		due;
+		private final long		sequence;
+		private final Runnable	callback;
+		
+		/**
+		 * Instantiates a new trigger.
+		 * 
+		 * @param triggerId
+		 *            the trigger id
+		 * @param due
+		 *            the due time in milliseconds
+		 * @param sequence
+		 *            the sequence number of the request
+		 * @param callback
+		 *            the callback
+		 */
+		private Trigger(final String triggerId, final long due,
+				final long sequence, final Runnable callback) {
+			this.triggerId = triggerId;
+			this.due = due;
+			this.sequence = sequence;
+			this.callback = callback;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Comparable#compareTo(java.lang.Object)
+		 */
+		@Override
+		public int compareTo(final Trigger o) {
+			if (due != o.due) {
+				return due < o.due ? -1 : 1;
+			}
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0
+					: 1);
+		}
+	}
+	
+	/**
+	 * A pool whose work keeps the clock from advancing. The work is counted
+	 * when submitted, so work handed from one task to another is never missed.
+	 */
+	private final class TrackedPool extends AbstractExecutorService {
+		private final ExecutorService	pool;
+		
+		/**
+		 * Instantiates a new tracked pool.
+		 * 
+		 * @param pool
+		 *            the pool
+		 */
+		private TrackedPool(final ExecutorService pool) {
+			this.pool = pool;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+		 */
+		@Override
+		public void execute(final Runnable command) {
+			enter();
+			try {
+				pool.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							command.run();
+						} finally {
+							leave();
+						}
+					}
+				});
+			} catch (final RuntimeException e) {
+				leave();
+				throw e;
+			}
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.ExecutorService#shutdown()
+		 */
+		@Override
+		public void shutdown() {
+			pool.shutdown();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.ExecutorService#shutdownNow()
+		 */
+		@Override
+		public List<Runnable> shutdownNow() {
+			return pool.shutdownNow();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.ExecutorService#isShutdown()
+		 */
+		@Override
+		public boolean isShutdown() {
+			return pool.isShutdown();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.ExecutorService#isTerminated()
+		 */
+		@Override
+		public boolean isTerminated() {
+			return pool.isTerminated();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.util.concurrent.ExecutorService#awaitTermination(long,
+		 * java.util.concurrent.TimeUnit)
+		 */
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit)
+				throws InterruptedException {
+			return pool.awaitTermination(timeout, unit);
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.transport;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * A TransportService which can also send a message on the calling thread,
+ * reporting whether it was delivered. Used where failed deliveries have to
+ * be retried, e.g. by the EventDispatcher.
+ */
+public interface SynchronousTransportService extends TransportService {
+	
+	/**
+	 * Send a message to an other agent, and wait until it has been delivered.
+	 * A response received in return is handed to the sender, like with
+	 * sendAsync.
+	 * 
+	 * @param senderUri
+	 *            the sender url
+	 * @param receiverUri
+	 *            the receiver url
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 *             Signals that the message could not be delivered.
+	 */
+	void send(final URI senderUri, final URI receiverUri, final String message)
+			throws IOException;
+	
+}
@@ -5,28 +5,18 @@
 package com.almende.util;
 
 import java.lang.reflect.InvocationTargetException;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import com.almende.eve.agent.annotation.Namespace;
-import com.almende.eve.rpc.jsonrpc.jackson.JOM;
-import com.almende.util.AnnotationUtil.AnnotatedClass;
+import com.almende.eve.rpc.jsonrpc.DispatchTable;
+import com.almende.eve.rpc.jsonrpc.DispatchTable.Target;
 import com.almende.util.AnnotationUtil.AnnotatedMethod;
-import com.fasterxml.jackson.core.JsonProcessingException;
 
 /**
- * The Class NamespaceUtil.
+ * The Class NamespaceUtil, resolves namespaced method names. Lookups are
+ * done through the per-class {@link DispatchTable}.
  */
 public final class NamespaceUtil {
 	
-	private static final Map<String, AnnotatedMethod[]>	cache		= new HashMap<String, AnnotatedMethod[]>();
-	private static final NamespaceUtil					instance	= new NamespaceUtil();
-	private static final Pattern						PATTERN		= Pattern
-																			.compile("\\.[^.]+$");
+	private static final NamespaceUtil	instance	= new NamespaceUtil();
 	
 	/**
 	 * Instantiates a new namespace util.
@@ -57,42 +47,7 @@ public final class NamespaceUtil {
 	}
 	
 	/**
-	 * Populate cache.
-	 * 
-	 * @param destination
-	 *            the destination
-	 * @param steps
-	 *            the steps
-	 * @param methods
-	 *            the methods
-	 * @throws IllegalAccessException
-	 *             the illegal access exception
-	 * @throws InvocationTargetException
-	 *             the invocation target exception
-	 */
-	private void populateCache(final Object destination, final String steps,
-			final AnnotatedMethod[] methods) throws IllegalAccessException,
-			InvocationTargetException {
-		final AnnotatedClass clazz = AnnotationUtil.get(destination.getClass());
-		for (final AnnotatedMethod method : clazz
-				.getAnnotatedMethods(Namespace.class)) {
-			final String path = steps + "."
-					+ method.getAnnotation(Namespace.class).value();
-			methods[methods.length - 1] = method;
-			cache.put(path, Arrays.copyOf(methods, methods.length));
-			
-			final Object newDest = method.getActualMethod().invoke(destination,
-					(Object[]) null);
-			// recurse:
-			if (newDest != null) {
-				populateCache(newDest, path,
-						Arrays.copyOf(methods, methods.length + 1));
-			}
-		}
-	}
-	
-	/**
-	 * _get.
+	 * _get, resolves the path through the (cached) dispatch tables.
 	 * 
 	 * @param destination
 	 *            the destination
@@ -110,49 +65,10 @@ public final class NamespaceUtil {
 			throws IllegalAccessException, InvocationTargetException,
 			NoSuchMethodException {
 		final CallTuple result = new CallTuple();
-		String reducedPath = "";
-		String reducedMethod = path;
-		if (path.indexOf('.') >= 0) {
-			reducedPath = destination.getClass().getName() + "." + path;
-			final Matcher matcher = PATTERN.matcher(reducedPath);
-			reducedPath = matcher.replaceFirst("");
-			reducedMethod = matcher.group().substring(1);
-		}
-		if (!cache.containsKey(reducedPath)) {
-			final AnnotatedMethod[] methods = new AnnotatedMethod[1];
-			final String newSteps = destination.getClass().getName();
-			cache.put("", new AnnotatedMethod[0]);
-			populateCache(destination, newSteps, methods);
-		}
-		if (!cache.containsKey(reducedPath)) {
-			try {
-				throw new IllegalStateException("Non resolveable path given:'"
-						+ path + "' \n checked:"
-						+ JOM.getInstance().writeValueAsString(cache));
-			} catch (final JsonProcessingException e) {
-				throw new IllegalStateException("Non resolveable path given:'"
-						+ path + "' \n checked:" + cache);
-			}
-		}
-		final AnnotatedMethod[] methodPath = cache.get(reducedPath);
-		Object newDestination = destination;
-		for (final AnnotatedMethod method : methodPath) {
-			if (method != null) {
-				newDestination = method.getActualMethod().invoke(destination,
-						(Object[]) null);
-			}
-		}
-		if (newDestination == null) {
-			// Oops, namespace getter returned null pointer!
-			return result;
-		}
-		result.setDestination(newDestination);
-		final AnnotatedClass newClazz = AnnotationUtil.get(newDestination
-				.getClass());
-		final List<AnnotatedMethod> methods = newClazz
-				.getMethods(reducedMethod);
-		if (!methods.isEmpty()) {
-			result.setMethod(methods.get(0));
+		final Target target = DispatchTable.resolve(destination, path);
+		if (target != null) {
+			result.setDestination(target.getDestination());
+			result.setMethod(target.getEntry().getMethod());
 		}
 		return result;
 	}
@@ -103,9 +103,20 @@ public abstract class TypeUtil<T> {
 		}
 		final ObjectMapper mapper = JOM.getInstance();
 		if (value instanceof JsonNode) {
-			if (((JsonNode) value).isNull()) {
+			final JsonNode node = (JsonNode) value;
+			if (node.isNull()) {
 				return null;
 			}
+			// Shortcuts, no conversion needed: (copy-on-write, see
+			// JSONMessage) Only for node types, Object targets get the
+			// converted Map, List or primitive instead.
+			if (JsonNode.class.isAssignableFrom(fullType.getRawClass())
+					&& fullType.getRawClass().isInstance(value)) {
+				return (T) value;
+			}
+			if (node.isTextual() && fullType.hasRawClass(String.class)) {
+				return (T) node.textValue();
+			}
 			try {
 				return mapper.convertValue(value, fullType);
 			} catch (final Exception e) {
@@ -60,7 +60,8 @@ function Controller($scope, $resource) {
     // define a RESTful resource
     var agent = $resource(url + ':resource', {}, {
         'post': {method: 'POST'},
-        'events': {method: 'GET', params: {resource: 'events'}, isArray: true}
+        'events': {method: 'GET', params: {resource: 'events'}, isArray: true},
+        'methods': {method: 'GET', params: {resource: 'methods'}, isArray: true}
     });
 
     /**
@@ -331,18 +332,23 @@ function Controller($scope, $resource) {
             }
         });
 
-        // get methods
-        send ('getMethods', {}, function (err, result) {
-            if (!err) {
-                $scope.methods = result;
-                $scope.methodName = $scope.methods[0].method;
-                $scope.setMethod();
-
-                // update method select box
-                setTimeout(function () {
-                    new Chosen(document.getElementById('methods'));
-                }, 15);
-            }
+        // get methods, the servlet serves them with an ETag
+        var setMethods = function (result) {
+            $scope.methods = result;
+            $scope.methodName = $scope.methods[0].method;
+            $scope.setMethod();
+
+            // update method select box
+            setTimeout(function () {
+                new Chosen(document.getElementById('methods'));
+            }, 15);
+        };
+        agent.methods({}, undefined, setMethods, function () {
+            send ('getMethods', {}, function (err, result) {
+                if (!err) {
+                    setMethods(result);
+                }
+            });
         });
     };
 
@@ -4,8 +4,17 @@
  */
 package com.almende.eve.test;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,14 +22,32 @@ import junit.framework.TestCase;
 
 import org.junit.Test;
 
+import com.almende.eve.agent.Agent;
 import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.IdempotencyCache;
 import com.almende.eve.agent.callback.AsyncCallback;
+import com.almende.eve.agent.callback.SingleFlight;
+import com.almende.eve.agent.callback.SyncCallback;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.annotation.Deadline;
+import com.almende.eve.rpc.annotation.Sender;
+import com.almende.eve.rpc.jsonrpc.DispatchTable;
+import com.almende.eve.rpc.jsonrpc.JSONBatch;
+import com.almende.eve.rpc.jsonrpc.JSONDescription;
+import com.almende.eve.rpc.jsonrpc.JSONMessage;
+import com.almende.eve.rpc.jsonrpc.JSONRPC;
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.scheduler.ClockSchedulerFactory;
 import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryStateFactory;
 import com.almende.eve.test.agents.TestAgent;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.IntNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
@@ -83,4 +110,532 @@ public class TestCall extends TestCase {
 		}
 	}
 	
+	/**
+	 * Test binding of params straight from the request text.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testStreamingParams() throws Exception {
+		final TestAgent agent = new TestAgent();
+		final RequestParams params = new RequestParams();
+		params.put(Sender.class, "local:test");
+		
+		JSONRequest request = (JSONRequest) Agent
+				.jsonConvert("{\"jsonrpc\":\"2.0\",\"id\":1,\"params\":"
+						+ "{\"extra\":[1,{\"a\":2}],\"num2\":3,\"num\":4},"
+						+ "\"method\":\"testPrimitive\"}");
+		assertEquals(7, JSONRPC.invoke(agent, request, params, agent)
+				.getResult().asInt());
+		
+		request = (JSONRequest) Agent
+				.jsonConvert("{\"id\":2,\"method\":\"helloWorld\",\"params\":{\"msg\":\"hi\"}}");
+		assertEquals("hi", request.getParams().get("msg").asText());
+		assertEquals("Hello world, you said: hi",
+				JSONRPC.invoke(agent, request, params, agent).getResult()
+						.asText());
+		
+		request = (JSONRequest) Agent
+				.jsonConvert("{\"id\":3,\"method\":\"testPrimitive\",\"params\":{\"num\":4}}");
+		assertNotNull(JSONRPC.invoke(agent, request, params, agent).getError());
+		
+		// a request shared by several threads is parsed once, consistently
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int i = 0; i < 100; i++) {
+				final JSONRequest shared = (JSONRequest) Agent
+						.jsonConvert("{\"id\":4,\"method\":\"testPrimitive\","
+								+ "\"params\":{\"num\":" + i + ",\"num2\":1}}");
+				final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+				for (int j = 0; j < 4; j++) {
+					final boolean invoke = j % 2 == 0;
+					results.add(executor.submit(new Callable<Integer>() {
+						@Override
+						public Integer call() {
+							if (invoke) {
+								return JSONRPC.invoke(agent, shared, params,
+										agent).getResult().asInt();
+							}
+							return shared.getParams().get("num").asInt() + 1;
+						}
+					}));
+				}
+				for (final Future<Integer> result : results) {
+					assertEquals(i + 1, result.get().intValue());
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Test a request with params received as JSON text.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testReceiveText() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		for (final String id : new String[] { "textAgent", "textSender" }) {
+			if (host.hasAgent(id)) {
+				host.deleteAgent(id);
+			}
+		}
+		final TestAgent agent = host.createAgent(TestAgent.class, "textAgent");
+		host.createAgent(TestAgent.class, "textSender");
+		
+		final SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+		host.getCallbackRegistry().push("textSender", IntNode.valueOf(1),
+				"helloWorld", callback, 0);
+		agent.receive("{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"helloWorld\","
+				+ "\"params\":{\"msg\":\"hi\"}}",
+				URI.create("local:textSender"), null);
+		assertEquals("Hello world, you said: hi", callback.get().getResult()
+				.asText());
+		
+		host.deleteAgent("textAgent");
+		host.deleteAgent("textSender");
+	}
+	
+	/**
+	 * Test JSON-RPC 2.0 batches.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBatch() throws Exception {
+		final TestAgent agent = new TestAgent();
+		final RequestParams params = new RequestParams();
+		params.put(Sender.class, "local:test");
+		
+		final JSONBatch batch = (JSONBatch) Agent
+				.jsonConvert("[{\"id\":1,\"method\":\"helloWorld\",\"params\":{\"msg\":\"hi\"}},"
+						+ "5,{\"id\":2,\"method\":\"testPrimitive\",\"params\":{\"num\":1,\"num2\":2}},"
+						+ "{\"id\":3,\"method\":\"unknown\",\"params\":{}},"
+						+ "{\"id\":4,\"foo\":\"bar\"}]");
+		assertEquals(3, batch.getMessages().size());
+		assertEquals(2, batch.getErrors().size());
+		
+		final ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			for (final JSONBatch result : new JSONBatch[] {
+					JSONRPC.invoke(agent, batch, params, agent, null),
+					JSONRPC.invoke(agent, batch, params, agent, executor) }) {
+				final List<JSONMessage> responses = result.getMessages();
+				assertEquals(5, responses.size());
+				assertEquals("Hello world, you said: hi",
+						((JSONResponse) responses.get(0)).getResult().asText());
+				assertEquals(3, ((JSONResponse) responses.get(1)).getResult()
+						.asInt());
+				assertNotNull(((JSONResponse) responses.get(2)).getError());
+				assertEquals(3, responses.get(2).getId().asInt());
+				
+				// the invalid entries are answered with Invalid Request
+				assertEquals(-32600, ((JSONRPCException) ((JSONResponse) responses
+						.get(3)).getError().getCause()).getCode());
+				assertTrue(responses.get(3).getId().isNull());
+				assertEquals(-32600, ((JSONRPCException) ((JSONResponse) responses
+						.get(4)).getError().getCause()).getCode());
+				assertEquals(4, responses.get(4).getId().asInt());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		
+		// an empty batch gets a single Invalid Request error
+		final JSONBatch empty = (JSONBatch) Agent.jsonConvert("[]");
+		final List<JSONMessage> emptyResponses = JSONRPC.invoke(agent, empty,
+				params, agent, null).getMessages();
+		assertEquals(1, emptyResponses.size());
+		assertEquals(-32600, ((JSONRPCException) ((JSONResponse) emptyResponses
+				.get(0)).getError().getCause()).getCode());
+		
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		if (host.hasAgent("batchAgent")) {
+			host.deleteAgent("batchAgent");
+		}
+		final TestAgent sender = host.createAgent(TestAgent.class,
+				"batchAgent");
+		final List<JSONRequest> requests = new ArrayList<JSONRequest>();
+		final ObjectNode hello = JOM.createObjectNode();
+		hello.put("msg", "batch");
+		requests.add(new JSONRequest("helloWorld", hello));
+		requests.add(new JSONRequest("increment", JOM.createObjectNode())
+				.toNotification());
+		requests.add(new JSONRequest("unknown", JOM.createObjectNode()));
+		final List<JSONResponse> responses = sender.sendBatch(
+				URI.create("local:batchAgent"), requests);
+		// the notification gets no response
+		assertEquals(2, responses.size());
+		assertEquals("Hello world, you said: batch", responses.get(0)
+				.getResult().asText());
+		assertNotNull(responses.get(1).getError());
+		
+		// a request past its deadline isn't sent
+		final JSONRequest late = new JSONRequest("helloWorld", hello)
+				.withDeadline(System.currentTimeMillis() - 1);
+		final List<JSONResponse> lateResponses = sender.sendBatch(
+				URI.create("unknown:batchAgent"),
+				Collections.singletonList(late));
+		assertEquals(1, lateResponses.size());
+		assertEquals(late.getId(), lateResponses.get(0).getId());
+		assertNotNull(lateResponses.get(0).getError());
+		
+		// a batch that can't be sent leaves no callbacks behind
+		try {
+			sender.sendBatch(URI.create("unknown:batchAgent"), requests);
+			fail("Batch sent over an unknown protocol");
+		} catch (final IOException e) {
+			for (final JSONRequest request : requests) {
+				if (!request.isNotification()) {
+					assertNull(host.getCallbackRegistry().pull("batchAgent",
+							request.getId()));
+				}
+			}
+		}
+		host.deleteAgent("batchAgent");
+	}
+	
+	/**
+	 * Test JSON-RPC 2.0 notifications.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testNotification() throws Exception {
+		final TestAgent agent = new TestAgent();
+		final RequestParams params = new RequestParams();
+		params.put(Sender.class, "local:test");
+		
+		final JSONRequest notification = (JSONRequest) Agent
+				.jsonConvert("{\"jsonrpc\":\"2.0\",\"method\":\"helloWorld\",\"params\":{\"msg\":\"hi\"}}");
+		assertTrue(notification.isNotification());
+		assertNull(notification.getId());
+		assertNull(JSONRPC.invoke(agent, notification, params, agent));
+		
+		final ObjectNode hello = JOM.createObjectNode();
+		hello.put("msg", "hi");
+		assertFalse(new JSONRequest("helloWorld", hello).isNotification());
+		assertTrue(new JSONRequest("helloWorld", hello).toNotification()
+				.isNotification());
+		
+		final JSONBatch batch = (JSONBatch) Agent
+				.jsonConvert("[{\"method\":\"helloWorld\",\"params\":{\"msg\":\"hi\"}},"
+						+ "{\"id\":2,\"method\":\"helloWorld\",\"params\":{\"msg\":\"hi\"}}]");
+		final JSONBatch responses = JSONRPC.invoke(agent, batch, params, agent,
+				null);
+		assertEquals(1, responses.getMessages().size());
+		assertEquals(2, responses.getMessages().get(0).getId().asInt());
+	}
+	
+	/**
+	 * Test the propagation of request deadlines.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDeadline() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		if (host.hasAgent("deadlineAgent")) {
+			host.deleteAgent("deadlineAgent");
+		}
+		final TestAgent agent = host.createAgent(TestAgent.class,
+				"deadlineAgent");
+		final URI url = URI.create("local:deadlineAgent");
+		final long deadline = System.currentTimeMillis() + 5000;
+		
+		final JSONRequest request = new JSONRequest("getDeadline", null);
+		request.setDeadline(deadline);
+		assertEquals(Long.valueOf(deadline), ((JSONRequest) Agent
+				.jsonConvert(request.toString())).getDeadline());
+		assertEquals(Long.valueOf(deadline),
+				agent.call(url, request, JOM.getTypeFactory().constructType(
+						Long.class)).get());
+		
+		// nested calls inherit the deadline
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("url", url.toString());
+		final JSONRequest nested = new JSONRequest("getNestedDeadline", params);
+		nested.setDeadline(deadline);
+		assertEquals(Long.valueOf(deadline),
+				agent.call(url, nested, JOM.getTypeFactory().constructType(
+						Long.class)).get());
+		
+		// an inherited deadline is set on a copy, the request is left as is
+		final JSONRequest plain = (JSONRequest) Agent
+				.jsonConvert("{\"id\":5,\"method\":\"testPrimitive\","
+						+ "\"params\":{\"num\":1,\"num2\":2}}");
+		final JSONRequest copy = plain.withDeadline(deadline);
+		assertNull(plain.getDeadline());
+		assertEquals(Long.valueOf(deadline), copy.getDeadline());
+		assertEquals(plain.getId(), copy.getId());
+		assertEquals(2, copy.getParams().get("num2").asInt());
+		assertSame(copy, copy.withDeadline(deadline));
+		
+		// no deadline
+		assertNull(agent.send(url, "getDeadline", JOM.createObjectNode(),
+				Long.class));
+		
+		// expired requests are not invoked
+		final JSONRequest expired = new JSONRequest("getDeadline", null);
+		expired.setDeadline(System.currentTimeMillis() - 1);
+		final RequestParams requestParams = new RequestParams();
+		requestParams.put(Sender.class, "local:test");
+		final JSONResponse response = JSONRPC.invoke(agent, expired,
+				JSONRPC.withDeadline(expired, requestParams), agent);
+		// getError() wraps the error as a remote exception
+		assertEquals(-32408, ((JSONRPCException) response.getError().getCause())
+				.getCode());
+		
+		host.deleteAgent("deadlineAgent");
+	}
+	
+	/**
+	 * Test that duplicate requests are answered from the idempotency cache.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDuplicateRequest() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		if (host.hasAgent("idempotentAgent")) {
+			host.deleteAgent("idempotentAgent");
+		}
+		final IdempotencyCache previous = host.getIdempotencyCache();
+		final IdempotencyCache cache = new IdempotencyCache(10, 60000);
+		host.setIdempotencyCache(cache);
+		try {
+			final TestAgent agent = host.createAgent(TestAgent.class,
+					"idempotentAgent");
+			final URI url = URI.create("local:idempotentAgent");
+			final JavaType type = JOM.getTypeFactory().constructType(
+					Integer.class);
+			
+			final JSONRequest request = new JSONRequest("increment",
+					JOM.createObjectNode());
+			assertEquals(Integer.valueOf(1), agent.call(url, request, type)
+					.get());
+			// a retry of the same request isn't invoked again
+			assertEquals(Integer.valueOf(1), agent.call(url, request, type)
+					.get());
+			assertEquals(1, cache.getHits());
+			assertEquals(1, cache.getMisses());
+			assertEquals(0.5, cache.getHitRate());
+			
+			// a new request is
+			final JSONRequest next = new JSONRequest("increment",
+					JOM.createObjectNode());
+			assertEquals(Integer.valueOf(2), agent.call(url, next, type).get());
+			assertEquals(1, cache.size());
+			
+			// different calls which share an id are no duplicates
+			final JsonNode id = JOM.getInstance().getNodeFactory()
+					.numberNode(1);
+			final ObjectNode hi = JOM.createObjectNode();
+			hi.put("msg", "hi");
+			final ObjectNode ho = JOM.createObjectNode();
+			ho.put("msg", "ho");
+			final JavaType text = JOM.getTypeFactory().constructType(
+					String.class);
+			assertEquals("Hello world, you said: hi", agent.call(url,
+					new JSONRequest(id, "helloWorld", hi), text).get());
+			assertEquals("Hello world, you said: ho", agent.call(url,
+					new JSONRequest(id, "helloWorld", ho), text).get());
+			assertEquals(Integer.valueOf(3), agent.call(url,
+					new JSONRequest(id, "increment", JOM.createObjectNode()),
+					type).get());
+			assertEquals(1, cache.getHits());
+			
+			host.deleteAgent("idempotentAgent");
+			assertEquals(0, cache.size());
+		} finally {
+			host.setIdempotencyCache(previous);
+		}
+	}
+	
+	/**
+	 * Test the caching of the results of Cacheable methods.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testResultCache() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		if (host.hasAgent("cachingAgent")) {
+			host.deleteAgent("cachingAgent");
+		}
+		final TestAgent agent = host.createAgent(TestAgent.class,
+				"cachingAgent");
+		final URI url = URI.create("local:cachingAgent");
+		final ObjectNode a = JOM.createObjectNode();
+		a.put("msg", "a");
+		final ObjectNode b = JOM.createObjectNode();
+		b.put("msg", "b");
+		final int start = TestAgent.INVOCATIONS.get();
+		
+		assertEquals("a: null", agent.send(url, "getCounter", a, String.class));
+		assertEquals("a: null", agent.send(url, "getCounter", a, String.class));
+		assertEquals(start + 1, TestAgent.INVOCATIONS.get());
+		// other params, other key
+		assertEquals("b: null", agent.send(url, "getCounter", b, String.class));
+		assertEquals(start + 2, TestAgent.INVOCATIONS.get());
+		
+		// state changes invalidate the cache
+		agent.send(url, "increment", JOM.createObjectNode(), Integer.class);
+		assertEquals("a: 1", agent.send(url, "getCounter", a, String.class));
+		assertEquals(start + 3, TestAgent.INVOCATIONS.get());
+		
+		// explicit invalidation
+		agent.getResultCache().invalidate("getCounter");
+		assertEquals("a: 1", agent.send(url, "getCounter", a, String.class));
+		assertEquals(start + 4, TestAgent.INVOCATIONS.get());
+		
+		// framework keys (tasks, subscriptions) don't invalidate the cache
+		agent.getState().put("_task_cache", "task");
+		assertEquals("a: 1", agent.send(url, "getCounter", a, String.class));
+		assertEquals(start + 4, TestAgent.INVOCATIONS.get());
+		agent.getState().remove("_task_cache");
+		assertEquals("a: 1", agent.send(url, "getCounter", a, String.class));
+		assertEquals(start + 4, TestAgent.INVOCATIONS.get());
+		
+		// statistics are reported by describe
+		Map<String, Object> stats = null;
+		for (final Object method : agent.getMethods()) {
+			final Map<?, ?> desc = (Map<?, ?>) method;
+			if ("getCounter".equals(desc.get("method"))) {
+				stats = (Map<String, Object>) desc.get("cache");
+			}
+		}
+		assertNotNull(stats);
+		assertEquals(3L, stats.get("hits"));
+		assertEquals(4L, stats.get("misses"));
+		assertEquals(0L, stats.get("ttl"));
+		
+		host.deleteAgent("cachingAgent");
+		assertNull(host.getResultCache("cachingAgent", false));
+	}
+	
+	/**
+	 * Test the coalescing of identical concurrent calls.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSingleFlight() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		for (final String id : new String[] { "flightAgent",
+				"otherFlightAgent" }) {
+			if (host.hasAgent(id)) {
+				host.deleteAgent(id);
+			}
+		}
+		final SingleFlight previous = host.getSingleFlight();
+		final SingleFlight flights = new SingleFlight();
+		host.setSingleFlight(flights);
+		try {
+			final TestAgent agent = host.createAgent(TestAgent.class,
+					"flightAgent");
+			final TestAgent otherAgent = host.createAgent(TestAgent.class,
+					"otherFlightAgent");
+			final URI url = URI.create("local:flightAgent");
+			final ObjectNode params = JOM.createObjectNode();
+			params.put("msg", "hi");
+			final int start = TestAgent.INVOCATIONS.get();
+			
+			final List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < 10; i++) {
+				futures.add(agent.call(url, "slowEcho", params, String.class));
+			}
+			// the same call of another agent isn't coalesced
+			final Future<String> otherSender = otherAgent.call(url,
+					"slowEcho", params, String.class);
+			// a call with other params isn't coalesced
+			final ObjectNode other = JOM.createObjectNode();
+			other.put("msg", "bye");
+			assertEquals("bye",
+					agent.send(url, "slowEcho", other, String.class));
+			for (final Future<String> future : futures) {
+				assertEquals("hi", future.get());
+			}
+			assertEquals("hi", otherSender.get());
+			assertEquals(start + 3, TestAgent.INVOCATIONS.get());
+			assertEquals(12, flights.getCalls());
+			assertEquals(9, flights.getCoalesced());
+			assertEquals(0, flights.size());
+			LOG.info("Coalescing ratio: " + flights.getCoalescingRatio());
+			
+			host.deleteAgent("flightAgent");
+			host.deleteAgent("otherFlightAgent");
+		} finally {
+			host.setSingleFlight(previous);
+		}
+	}
+	
+	/**
+	 * Test the memoized description of agents.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDescription() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		if (host.hasAgent("describedAgent")) {
+			host.deleteAgent("describedAgent");
+		}
+		final TestAgent agent = host.createAgent(TestAgent.class,
+				"describedAgent");
+		
+		// one description per class and access context
+		final JSONDescription description = agent.getMethodsDescription();
+		assertNotNull(description);
+		assertSame(description, host.getAgent("describedAgent")
+				.getMethodsDescription());
+		final RequestParams requestParams = new RequestParams();
+		requestParams.put(Deadline.class, null);
+		requestParams.put(Sender.class, "local:other");
+		assertSame(description,
+				JSONRPC.getDescription(agent, requestParams));
+		
+		// the serialized form matches the description
+		final ArrayNode json = (ArrayNode) JOM.getInstance().readTree(
+				description.getBytes());
+		assertEquals(description.getMethods().size(), json.size());
+		assertTrue(description.getETag().startsWith("\""));
+		assertTrue(description.isCacheable());
+		
+		// described methods are exactly the ones that can be invoked
+		for (final Object method : description.getMethods()) {
+			final DispatchTable.Target target = DispatchTable.resolve(agent,
+					(String) ((Map<?, ?>) method).get("method"));
+			assertNotNull(target);
+			assertTrue(target.getEntry().isAvailable(requestParams, null));
+		}
+		assertTrue(JSONRPC.validate(TestAgent.class, requestParams).isEmpty());
+		
+		// without request params getDeadline() is left out
+		final JSONDescription other = JSONRPC.getDescription(agent, null);
+		assertTrue(other.getMethods().size() < json.size());
+		assertFalse(other.getETag().equals(description.getETag()));
+		
+		host.deleteAgent("describedAgent");
+	}
+	
 }
@@ -0,0 +1,294 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.callback.AsyncCallback;
+import com.almende.eve.agent.callback.AsyncCallbackQueue;
+import com.almende.eve.agent.callback.CallbackFuture;
+import com.almende.eve.agent.callback.CallbackRegistry;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Test the timeouts of the AsyncCallbackQueue.
+ */
+public class TestCallbackQueue extends TestCase {
+	private static final Logger	LOG			= Logger.getLogger(TestCallbackQueue.class
+													.getName());
+	private static final int	CALLS		= 100000;
+	private static final int	AGENTS		= 1000000;
+	private static final int	HOSTAGENTS	= 10000;
+	
+	/**
+	 * Test per-call timeouts and queue isolation.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testTimeout() throws Exception {
+		final AsyncCallbackQueue<String> queue = new AsyncCallbackQueue<String>();
+		final AsyncCallbackQueue<String> other = new AsyncCallbackQueue<String>();
+		final long timedOut = AsyncCallbackQueue.getTimedOutCount();
+		
+		final CallbackFuture<String> fast = new CallbackFuture<String>();
+		final CallbackFuture<String> answered = new CallbackFuture<String>();
+		final CallbackFuture<String> cleared = new CallbackFuture<String>();
+		queue.push("fast", "fast call", fast, 200);
+		queue.push("answered", "answered call", answered, 200);
+		other.push("cleared", "cleared call", cleared, 200);
+		assertEquals(2, queue.size());
+		
+		try {
+			queue.push("fast", "duplicate", new CallbackFuture<String>());
+			fail("Duplicate id should be refused");
+		} catch (final IllegalStateException e) {
+			// expected
+		}
+		
+		queue.pull("answered").onSuccess("done");
+		assertEquals("done", answered.get());
+		
+		// clearing one queue fails its callbacks, it doesn't stop the
+		// timeouts of other queues
+		other.clear();
+		assertEquals(0, other.size());
+		try {
+			cleared.get(1, TimeUnit.SECONDS);
+			fail("Cleared call should have failed");
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof CancellationException);
+		}
+		
+		final long start = System.nanoTime();
+		try {
+			fast.get(5, TimeUnit.SECONDS);
+			fail("Call should have timed out");
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		final long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- start);
+		assertTrue("Timed out after " + duration + " ms", duration < 1000);
+		assertEquals(0, queue.size());
+		assertEquals(timedOut + 1, AsyncCallbackQueue.getTimedOutCount());
+		
+		// a blocking timeout callback doesn't hold up the other timeouts
+		final CountDownLatch release = new CountDownLatch(1);
+		final CallbackFuture<String> other2 = new CallbackFuture<String>();
+		queue.push("other", "other call", other2, 200);
+		queue.push("blocking", "blocking call", new AsyncCallback<String>() {
+			@Override
+			public void onSuccess(final String result) {
+			}
+			
+			@Override
+			public void onFailure(final Exception exception) {
+				try {
+					release.await(10, TimeUnit.SECONDS);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 200);
+		try {
+			other2.get(5, TimeUnit.SECONDS);
+			fail("Call should have timed out");
+		} catch (final ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		} finally {
+			release.countDown();
+		}
+	}
+	
+	/**
+	 * Benchmark push and pull of many outstanding callbacks.
+	 */
+	@Test
+	public void testManyCallbacks() {
+		final AsyncCallbackQueue<String> queue = new AsyncCallbackQueue<String>();
+		final long start = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			queue.push(i, "call", new CallbackFuture<String>());
+		}
+		assertEquals(CALLS, queue.size());
+		for (int i = 0; i < CALLS; i++) {
+			assertNotNull(queue.pull(i));
+		}
+		final long duration = System.nanoTime() - start;
+		assertEquals(0, queue.size());
+		LOG.info("Pushed and pulled " + CALLS + " callbacks in "
+				+ (duration / 1000000) + " ms, "
+				+ (duration / CALLS) + " ns/callback");
+	}
+	
+	/**
+	 * Test the lifecycle of the queues in the callback registry.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRegistry() throws Exception {
+		final CallbackRegistry registry = new CallbackRegistry(200);
+		assertNull(registry.pull("agent", "unknown"));
+		assertEquals(0, registry.size());
+		
+		final CallbackFuture<String> callback = new CallbackFuture<String>();
+		registry.push("agent", 1, "call", callback, 0);
+		registry.push("agent", 2, "call", new CallbackFuture<String>(), 0);
+		assertEquals(1, registry.size());
+		assertSame(callback, registry.pull("agent", 1));
+		assertEquals(1, registry.size());
+		assertNotNull(registry.pull("agent", 2));
+		// empty queues are kept for the next calls
+		assertEquals(1, registry.size());
+		registry.push("agent", 3, "call", new CallbackFuture<String>(), 0);
+		assertNotNull(registry.pull("agent", 3));
+		assertEquals(1, registry.size());
+		// and dropped once they have been idle
+		Thread.sleep(1000);
+		assertEquals(0, registry.size());
+		
+		registry.push("deleted", 1, "call", new CallbackFuture<String>(), 0);
+		registry.remove("deleted");
+		assertEquals(0, registry.size());
+		
+		// queues handed out directly are kept until removed
+		final AsyncCallbackQueue<String> pinned = registry.get("transport");
+		pinned.push(1, "call", new CallbackFuture<String>());
+		assertNotNull(pinned.pull(1));
+		assertSame(pinned, registry.get("transport"));
+		registry.remove("transport");
+		assertEquals(0, registry.size());
+	}
+	
+	/**
+	 * Memory benchmark: the callback queues of a million agents which each do
+	 * a call, and are deleted or see the call answered.
+	 */
+	@Test
+	public void testRegistryMemory() {
+		// drop the queues as soon as they run empty
+		final CallbackRegistry registry = new CallbackRegistry(0);
+		final long heap = usedHeap();
+		final long start = System.nanoTime();
+		for (int i = 0; i < AGENTS; i++) {
+			final String id = "agent" + i;
+			registry.push(id, i, "call", new CallbackFuture<String>(), 0);
+			if (i % 2 == 0) {
+				assertNotNull(registry.pull(id, i));
+			} else {
+				registry.remove(id);
+			}
+		}
+		final long duration = System.nanoTime() - start;
+		assertEquals(0, registry.size());
+		LOG.info("Registry: " + AGENTS + " agents in " + (duration / 1000000)
+				+ " ms, queues left: " + registry.size() + ", heap growth: "
+				+ ((usedHeap() - heap) / 1024) + " kB");
+	}
+	
+	/**
+	 * Create and delete host agents, each doing a call: no callback queues
+	 * should be left behind.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testAgentLifecycle() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final CallbackRegistry registry = host.getCallbackRegistry();
+		final int before = registry.size();
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("msg", "hi");
+		final long heap = usedHeap();
+		final long start = System.nanoTime();
+		for (int i = 0; i < HOSTAGENTS; i++) {
+			final String id = "registryAgent" + i;
+			final TestAgent agent = host.createAgent(TestAgent.class, id);
+			assertEquals("Hello world, you said: hi",
+					agent.call(URI.create("local:" + id), "helloWorld", params,
+							String.class).get());
+			host.deleteAgent(id);
+		}
+		final long duration = System.nanoTime() - start;
+		assertEquals(before, registry.size());
+		LOG.info("Created and deleted " + HOSTAGENTS + " agents in "
+				+ (duration / 1000000) + " ms, heap growth: "
+				+ ((usedHeap() - heap) / 1024) + " kB");
+	}
+	
+	/**
+	 * Delete an agent while it waits for responses: the waiters get an error
+	 * instead of hanging.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testDeletedWaiter() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		for (final String id : new String[] { "waitingAgent", "slowAgent" }) {
+			if (host.hasAgent(id)) {
+				host.deleteAgent(id);
+			}
+		}
+		final TestAgent agent = host.createAgent(TestAgent.class,
+				"waitingAgent");
+		host.createAgent(TestAgent.class, "slowAgent");
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("msg", "hi");
+		
+		// the second call is coalesced with the first one
+		final List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < 2; i++) {
+			futures.add(agent.call(URI.create("local:slowAgent"), "slowEcho",
+					params, String.class));
+		}
+		host.deleteAgent("waitingAgent");
+		for (final Future<String> future : futures) {
+			try {
+				future.get(5, TimeUnit.SECONDS);
+				fail("Call of a deleted agent should have failed");
+			} catch (final ExecutionException e) {
+				assertTrue(e.getCause() instanceof CancellationException);
+			}
+		}
+		host.deleteAgent("slowAgent");
+	}
+	
+	/**
+	 * Used heap after a garbage collection.
+	 * 
+	 * @return the used heap in bytes
+	 */
+	private long usedHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.ClockSchedulerFactory;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.scheduler.clock.Clock;
+import com.almende.eve.scheduler.clock.TimingWheelClock;
+import com.almende.eve.scheduler.clock.VirtualClock;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestSchedulerAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestClock. With -Deve.benchmark=true (mvn test -P benchmark)
+ * testManyTriggers requests a million triggers.
+ */
+public class TestClock extends TestCase {
+	private static final Logger		LOG			= Logger.getLogger(TestClock.class
+													.getName());
+	private static final boolean	BENCHMARK	= Boolean.getBoolean("eve.benchmark");
+	private static final int		TRIGGERS	= BENCHMARK ? 1000000 : 10000;
+	
+	/**
+	 * Test triggers with equal due times, and replacing triggers.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testTriggers() throws Exception {
+		final Clock clock = new TimingWheelClock();
+		// beyond the span of the lowest level of the wheel
+		final DateTime due = DateTime.now().plus(1000);
+		final CountDownLatch latch = new CountDownLatch(2);
+		final Runnable callback = new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+		// same due time, other trigger ids: both fire
+		clock.requestTrigger("tie1", due, callback);
+		clock.requestTrigger("tie2", due, callback);
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertTrue(DateTime.now().getMillis() >= due.getMillis());
+		
+		// same trigger id: only the earliest trigger fires
+		final AtomicInteger fired = new AtomicInteger();
+		final Runnable counter = new Runnable() {
+			@Override
+			public void run() {
+				fired.incrementAndGet();
+			}
+		};
+		clock.requestTrigger("same", DateTime.now().plus(300), counter);
+		clock.requestTrigger("same", DateTime.now().plus(100), counter);
+		clock.requestTrigger("same", DateTime.now().plus(200), counter);
+		Thread.sleep(600);
+		assertEquals(1, fired.get());
+		
+		// cancelled triggers don't fire
+		clock.requestTrigger("cancelled", DateTime.now().plus(100), counter);
+		clock.cancel("cancelled");
+		Thread.sleep(300);
+		assertEquals(1, fired.get());
+	}
+	
+	/**
+	 * Benchmark: a million pending triggers, spread over the next hour.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testManyTriggers() throws Exception {
+		final Clock clock = new TimingWheelClock();
+		final Runnable callback = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+		final String[] ids = new String[TRIGGERS];
+		final DateTime[] dues = new DateTime[TRIGGERS];
+		final long now = System.currentTimeMillis();
+		for (int i = 0; i < TRIGGERS; i++) {
+			ids[i] = "trigger" + i;
+			dues[i] = new DateTime(now + 60000 + (i * 7919L) % 3600000);
+		}
+		final long start = System.nanoTime();
+		for (int i = 0; i < TRIGGERS; i++) {
+			clock.requestTrigger(ids[i], dues[i], callback);
+		}
+		final long duration = System.nanoTime() - start;
+		assertTrue(TimingWheelClock.size() >= TRIGGERS);
+		LOG.info("Requested " + TRIGGERS + " triggers in "
+				+ (duration / 1000000) + " ms, " + (duration / TRIGGERS)
+				+ " ns/trigger");
+		
+		clock.clear();
+		assertEquals(0, TimingWheelClock.size());
+	}
+	
+	/**
+	 * Test ten hours of an hourly task on both schedulers, in virtual time.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testVirtualClock() throws Exception {
+		final DateTime start = new DateTime(2014, 1, 1, 0, 0);
+		final VirtualClock clock = VirtualClock.start(start);
+		try {
+			final AgentHost host = AgentHost.getInstance();
+			host.setStateFactory(new MemoryStateFactory());
+			for (final boolean clockScheduler : new boolean[] { false, true }) {
+				if (clockScheduler) {
+					host.setSchedulerFactory(new ClockSchedulerFactory(host, ""));
+				} else {
+					host.setSchedulerFactory(new RunnableSchedulerFactory(host,
+							"_virtualScheduler"));
+				}
+				if (host.hasAgent("Virtual")) {
+					host.deleteAgent("Virtual");
+				}
+				final DateTime begin = DateTime.now();
+				final TestSchedulerAgent agent = host.createAgent(
+						TestSchedulerAgent.class, "Virtual");
+				agent.resetCount();
+				
+				final ObjectNode params = JOM.createObjectNode();
+				params.put("duration", 0);
+				agent.getScheduler().createTask(
+						new JSONRequest("slowTest", params), 3600000, true,
+						false);
+				
+				final long real = System.currentTimeMillis();
+				clock.run(begin.plusHours(10));
+				LOG.info("Simulated 10 hours in "
+						+ (System.currentTimeMillis() - real) + " ms");
+				
+				assertEquals(begin.plusHours(10), DateTime.now());
+				// at the start, and after every hour
+				assertEquals(11, agent.getCount());
+				agent.getScheduler().cancelAllTasks();
+				host.deleteAgent("Virtual");
+			}
+		} finally {
+			VirtualClock.stop();
+		}
+		assertTrue(DateTime.now().isAfter(start.plusYears(1)));
+	}
+	
+	/**
+	 * Test that a scheduler created in virtual time keeps running on the wall
+	 * clock once the virtual clock is stopped.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testStopVirtualClock() throws Exception {
+		final VirtualClock clock = VirtualClock.start(new DateTime(2014, 1, 1,
+				0, 0));
+		final AgentHost host = AgentHost.getInstance();
+		final TestSchedulerAgent agent;
+		try {
+			host.setStateFactory(new MemoryStateFactory());
+			host.setSchedulerFactory(new ClockSchedulerFactory(host, ""));
+			if (host.hasAgent("StopVirtual")) {
+				host.deleteAgent("StopVirtual");
+			}
+			agent = host.createAgent(TestSchedulerAgent.class, "StopVirtual");
+			agent.resetCount();
+			final ObjectNode params = JOM.createObjectNode();
+			params.put("duration", 0);
+			agent.getScheduler().createTask(
+					new JSONRequest("slowTest", params), 3600000);
+			assertEquals(1, clock.size());
+		} finally {
+			VirtualClock.stop();
+		}
+		assertEquals(0, clock.size());
+		
+		// the pending trigger is handed to the wall clock, and is long due
+		Thread.sleep(500);
+		assertEquals(1, agent.getCount());
+		
+		// new tasks of the scheduler are triggered by the wall clock
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("duration", 0);
+		agent.getScheduler().createTask(new JSONRequest("slowTest", params),
+				100);
+		Thread.sleep(1000);
+		assertEquals(2, agent.getCount());
+		host.deleteAgent("StopVirtual");
+	}
+}
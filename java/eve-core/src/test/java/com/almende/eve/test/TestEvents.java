@@ -0,0 +1,473 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.event.Callback;
+import com.almende.eve.event.EventDispatcher;
+import com.almende.eve.event.EventsInterface;
+import com.almende.eve.event.LocalEventBus;
+import com.almende.eve.event.SubscriptionIndex;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.scheduler.RunnableSchedulerFactory;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestAgent;
+import com.almende.eve.test.agents.TestEventAgent;
+import com.almende.eve.test.agents.TestOrderAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The Class TestEvents.
+ */
+public class TestEvents extends TestCase {
+	private static final Logger	LOG				= Logger.getLogger(TestEvents.class
+														.getName());
+	private static final int	SUBSCRIBERS		= 1000;
+	private static final int	EVENTS			= 100;
+	private static final int	GRID			= 20;
+	private static final int	CYCLES			= 50;
+	
+	/**
+	 * Create a fresh test event agent.
+	 * 
+	 * @param host
+	 *            the host
+	 * @param id
+	 *            the id
+	 * @return the agent
+	 * @throws Exception
+	 *             the exception
+	 */
+	private TestEventAgent createAgent(final AgentHost host, final String id)
+			throws Exception {
+		if (host.hasAgent(id)) {
+			host.deleteAgent(id);
+		}
+		return host.createAgent(TestEventAgent.class, id);
+	}
+	
+	/**
+	 * Wait until the agents received the given number of events.
+	 * 
+	 * @param agent
+	 *            the agent
+	 * @param count
+	 *            the count
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void awaitReceived(final TestEventAgent agent, final int count)
+			throws Exception {
+		final long until = System.currentTimeMillis() + 10000;
+		while (agent.getReceived() < count
+				&& System.currentTimeMillis() < until) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, agent.getReceived());
+	}
+	
+	/**
+	 * Benchmark: an event with a thousand subscriptions, delivered without
+	 * scheduler tasks.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testFanOut() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host,
+				"_eventScheduler"));
+		final TestEventAgent publisher = createAgent(host, "eventPublisher");
+		final TestEventAgent subscriber = createAgent(host, "eventSubscriber");
+		
+		for (int i = 0; i < SUBSCRIBERS; i++) {
+			final ObjectNode params = JOM.createObjectNode();
+			params.put("nr", i);
+			publisher.getEventsFactory().createSubscription("tick",
+					"local:eventSubscriber", "onEvent", params);
+		}
+		assertEquals(SUBSCRIBERS, publisher.getEventsFactory()
+				.getSubscriptions("tick").size());
+		
+		final EventDispatcher dispatcher = host.getEventDispatcher();
+		final long delivered = dispatcher.getDelivered();
+		subscriber.resetReceived();
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("value", 1);
+		publisher.getEventsFactory().trigger("tick", params);
+		awaitReceived(subscriber, SUBSCRIBERS);
+		assertEquals(SUBSCRIBERS, dispatcher.getDelivered() - delivered);
+		assertTrue(publisher.getScheduler().getTasks().isEmpty());
+		
+		subscriber.resetReceived();
+		final long start = System.nanoTime();
+		for (int i = 0; i < EVENTS; i++) {
+			publisher.getEventsFactory().trigger("tick", params);
+		}
+		awaitReceived(subscriber, SUBSCRIBERS * EVENTS);
+		final long duration = System.nanoTime() - start;
+		LOG.info("Delivered " + EVENTS + " events to " + SUBSCRIBERS
+				+ " subscriptions in " + (duration / 1000000) + " ms, "
+				+ (duration / (EVENTS * SUBSCRIBERS)) + " ns/callback");
+		
+		host.deleteAgent("eventPublisher");
+		host.deleteAgent("eventSubscriber");
+	}
+	
+	/**
+	 * Test the retries of a destination which can't be reached.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRetry() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final TestEventAgent publisher = createAgent(host, "eventPublisher");
+		// no transport for this protocol, so sending fails
+		publisher.getEventsFactory().createSubscription("tick",
+				"unknown://nowhere/agents/subscriber", "onEvent", null);
+		
+		final EventDispatcher dispatcher = host.getEventDispatcher();
+		dispatcher.setRetryDelay(20);
+		dispatcher.setMaxRetries(2);
+		try {
+			final long retried = dispatcher.getRetried();
+			final long dropped = dispatcher.getDropped();
+			publisher.getEventsFactory().trigger("tick");
+			publisher.getEventsFactory().trigger("tick");
+			
+			final long until = System.currentTimeMillis() + 5000;
+			while (dispatcher.getDropped() - dropped < 2
+					&& System.currentTimeMillis() < until) {
+				Thread.sleep(10);
+			}
+			// the second event queued up behind the first
+			assertEquals(2, dispatcher.getDropped() - dropped);
+			assertEquals(4, dispatcher.getRetried() - retried);
+			assertEquals(0, dispatcher.getPending());
+		} finally {
+			dispatcher.setRetryDelay(1000);
+			dispatcher.setMaxRetries(5);
+			host.deleteAgent("eventPublisher");
+		}
+	}
+	
+	/**
+	 * Test matching events on hierarchical patterns.
+	 */
+	@Test
+	public void testPatterns() {
+		final SubscriptionIndex index = new SubscriptionIndex();
+		final String[] patterns = new String[] { "cell.state", "cell.*",
+				"cell.**", "*.state", "**.state", "*", "cell.*.state", "other" };
+		for (int i = 0; i < patterns.length; i++) {
+			final Callback subscription = new Callback("id" + i,
+					"local:subscriber", "onEvent", null);
+			subscription.setEvent(patterns[i]);
+			index.add(subscription);
+		}
+		assertEquals(patterns.length, index.size());
+		assertEquals("[id0, id1, id2, id3, id4, id5]",
+				ids(index.match("cell.state")));
+		assertEquals("[id2, id4, id5, id6]", ids(index.match("cell.1.state")));
+		assertEquals("[id2, id5]", ids(index.match("cell")));
+		assertEquals("[id5, id7]", ids(index.match("other")));
+		assertEquals("[id4, id5]", ids(index.match("state")));
+		
+		index.remove("id5");
+		index.remove("id2");
+		assertEquals("[id0, id1, id3, id4]", ids(index.match("cell.state")));
+		assertEquals("[]", ids(index.match("cell")));
+		assertEquals(1, index.find("local:subscriber", "onEvent", "cell.*")
+				.size());
+		assertEquals(6, index.find("local:subscriber", null, null).size());
+	}
+	
+	/**
+	 * Gets the sorted ids of the given subscriptions.
+	 * 
+	 * @param subscriptions
+	 *            the subscriptions
+	 * @return the ids
+	 */
+	private String ids(final List<Callback> subscriptions) {
+		final List<String> result = new ArrayList<String>();
+		for (final Callback subscription : subscriptions) {
+			result.add(subscription.getId());
+		}
+		Collections.sort(result);
+		return result.toString();
+	}
+	
+	/**
+	 * Test concurrent subscriptions, duplicates, unsubscribing and the
+	 * conversion of subscriptions stored in the old format.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSubscriptions() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final TestEventAgent publisher = createAgent(host, "eventPublisher");
+		createAgent(host, "eventSubscriber");
+		
+		// subscriptions stored by older versions, in a single map
+		final HashMap<String, List<Callback>> old = new HashMap<String, List<Callback>>();
+		final List<Callback> oldSubscriptions = new ArrayList<Callback>();
+		oldSubscriptions.add(new Callback("oldId", "local:eventSubscriber",
+				"onEvent", null));
+		old.put("tick", oldSubscriptions);
+		publisher.getState().put("subscriptions", old);
+		
+		final EventsInterface events = publisher.getEventsFactory();
+		final ExecutorService pool = Executors.newFixedThreadPool(8);
+		final List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < 2 * SUBSCRIBERS; i++) {
+			final int nr = i % SUBSCRIBERS;
+			results.add(pool.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					final ObjectNode params = JOM.createObjectNode();
+					params.put("nr", nr);
+					return events.createSubscription("tick",
+							"local:eventSubscriber", "onEvent", params);
+				}
+			}));
+		}
+		for (int i = 0; i < SUBSCRIBERS; i++) {
+			// duplicates get the id of the existing subscription
+			assertEquals(results.get(i).get(), results.get(i + SUBSCRIBERS)
+					.get());
+		}
+		pool.shutdown();
+		assertFalse(publisher.getState().containsKey("subscriptions"));
+		assertEquals(SUBSCRIBERS + 1, events.getSubscriptions("tick").size());
+		
+		events.createSubscription("*", "local:eventSubscriber", "onEvent",
+				null);
+		events.createSubscription("tock.*", "local:eventSubscriber",
+				"onEvent", null);
+		publisher.resetReceived();
+		events.trigger("tick");
+		awaitReceived(publisher, SUBSCRIBERS + 2);
+		publisher.resetReceived();
+		events.trigger("tock.tock");
+		awaitReceived(publisher, 2);
+		
+		events.deleteSubscription("oldId", null, null, null);
+		events.deleteSubscription(results.get(0).get(), null, null, null);
+		assertEquals(SUBSCRIBERS - 1, events.getSubscriptions("tick").size());
+		events.deleteSubscription(null, "tick", "local:eventSubscriber", null);
+		assertEquals(0, events.getSubscriptions("tick").size());
+		assertEquals(1, events.getSubscriptions("*").size());
+		events.deleteSubscription(null, null, "local:eventSubscriber",
+				"onEvent");
+		assertEquals(0, events.getSubscriptions("*").size());
+		assertEquals(0, events.getSubscriptions("tock.*").size());
+		
+		host.deleteAgent("eventPublisher");
+		host.deleteAgent("eventSubscriber");
+	}
+	
+	/**
+	 * Test that the instances of an agent which isn't ThreadSafe, one per
+	 * getAgent, share the subscription index kept by the host.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSharedIndex() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		if (host.hasAgent("indexPublisher")) {
+			host.deleteAgent("indexPublisher");
+		}
+		host.createAgent(TestAgent.class, "indexPublisher");
+		assertNotSame(host.getAgent("indexPublisher"),
+				host.getAgent("indexPublisher"));
+		
+		final ExecutorService pool = Executors.newFixedThreadPool(8);
+		final List<Future<String>> results = new ArrayList<Future<String>>();
+		try {
+			for (int i = 0; i < 2 * SUBSCRIBERS; i++) {
+				final int nr = i % SUBSCRIBERS;
+				results.add(pool.submit(new Callable<String>() {
+					@Override
+					public String call() throws Exception {
+						final ObjectNode params = JOM.createObjectNode();
+						params.put("nr", nr);
+						return host.getAgent("indexPublisher")
+								.getEventsFactory()
+								.createSubscription("tick",
+										"local:eventSubscriber", "onEvent",
+										params);
+					}
+				}));
+			}
+			for (int i = 0; i < SUBSCRIBERS; i++) {
+				// duplicates on other instances get the same id
+				assertEquals(results.get(i).get(),
+						results.get(i + SUBSCRIBERS).get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+		final SubscriptionIndex index = host.getSubscriptionIndex(
+				"indexPublisher", false);
+		assertNotNull(index);
+		assertEquals(SUBSCRIBERS, index.size());
+		assertEquals(SUBSCRIBERS, host.getAgent("indexPublisher")
+				.getEventsFactory().getSubscriptions("tick").size());
+		
+		host.getAgent("indexPublisher").getEventsFactory()
+				.deleteSubscription(results.get(0).get(), null, null, null);
+		assertEquals(SUBSCRIBERS - 1, index.size());
+		
+		host.deleteAgent("indexPublisher");
+		assertNull(host.getSubscriptionIndex("indexPublisher", false));
+	}
+	
+	/**
+	 * Test the order of the callbacks delivered on the local bus to an agent
+	 * which isn't ThreadSafe.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLocalBusOrder() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final TestEventAgent publisher = createAgent(host, "orderPublisher");
+		if (host.hasAgent("orderSubscriber")) {
+			host.deleteAgent("orderSubscriber");
+		}
+		final TestOrderAgent subscriber = host.createAgent(
+				TestOrderAgent.class, "orderSubscriber");
+		subscriber.reset();
+		
+		// a triggered event reaches the subscriber
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("nr", -1);
+		publisher.getEventsFactory().createSubscription("tick",
+				"local:orderSubscriber", "onEvent", params);
+		publisher.getEventsFactory().trigger("tick");
+		long until = System.currentTimeMillis() + 10000;
+		while (subscriber.getReceived().isEmpty()
+				&& System.currentTimeMillis() < until) {
+			Thread.sleep(5);
+		}
+		assertEquals(Collections.singletonList(-1), subscriber.getReceived());
+		
+		// callbacks handed to the bus are invoked one at a time, in order
+		subscriber.reset();
+		final LocalEventBus bus = host.getEventDispatcher().getLocalBus();
+		for (int i = 0; i < EVENTS * 10; i++) {
+			final ObjectNode callbackParams = JOM.createObjectNode();
+			callbackParams.put("nr", i);
+			assertTrue(bus.deliver(publisher, "local:orderSubscriber",
+					Collections.singletonList(JSONRequest.createNotification(
+							"onEvent", callbackParams))));
+		}
+		until = System.currentTimeMillis() + 10000;
+		while (subscriber.getReceived().size() < EVENTS * 10
+				&& System.currentTimeMillis() < until) {
+			Thread.sleep(5);
+		}
+		final List<Integer> received = subscriber.getReceived();
+		assertEquals(EVENTS * 10, received.size());
+		for (int i = 0; i < received.size(); i++) {
+			assertEquals(Integer.valueOf(i), received.get(i));
+		}
+		assertEquals(1, subscriber.getMaxRunning());
+		
+		host.deleteAgent("orderPublisher");
+		host.deleteAgent("orderSubscriber");
+	}
+	
+	/**
+	 * Benchmark of the local event bus, on the pattern of the Game of Life
+	 * demo: a grid of agents, each subscribed to the events of its eight
+	 * neighbors, triggering an event every cycle.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLocalBus() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final TestEventAgent[] cells = new TestEventAgent[GRID * GRID];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = createAgent(host, "cell_" + i);
+		}
+		for (int i = 0; i < cells.length; i++) {
+			final int row = i / GRID;
+			final int column = i % GRID;
+			for (int dr = -1; dr <= 1; dr++) {
+				for (int dc = -1; dc <= 1; dc++) {
+					if (dr != 0 || dc != 0) {
+						final int neighbor = ((row + dr + GRID) % GRID) * GRID
+								+ (column + dc + GRID) % GRID;
+						cells[neighbor].getEventsFactory().createSubscription(
+								"cycleCalculated", "local:cell_" + i,
+								"onEvent", null);
+					}
+				}
+			}
+		}
+		
+		final EventDispatcher dispatcher = host.getEventDispatcher();
+		try {
+			for (final boolean localBus : new boolean[] { false, true, false,
+					true }) {
+				dispatcher.setLocalBus(localBus);
+				cells[0].resetReceived();
+				final long start = System.nanoTime();
+				for (int cycle = 0; cycle < CYCLES; cycle++) {
+					for (final TestEventAgent cell : cells) {
+						cell.getEventsFactory().trigger("cycleCalculated");
+					}
+				}
+				awaitReceived(cells[0], cells.length * 8 * CYCLES);
+				final long duration = System.nanoTime() - start;
+				LOG.info("Delivered " + (cells.length * 8 * CYCLES)
+						+ " events " + (localBus ? "on the local bus" : "as messages")
+						+ " in " + (duration / 1000000) + " ms, "
+						+ (duration / (cells.length * 8 * CYCLES))
+						+ " ns/event");
+			}
+			assertTrue(dispatcher.getLocalBus().getDelivered() >= cells.length
+					* 8 * CYCLES);
+		} finally {
+			dispatcher.setLocalBus(true);
+			for (int i = 0; i < cells.length; i++) {
+				host.deleteAgent("cell_" + i);
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.rpc.jsonrpc.DispatchTable;
+import com.almende.eve.rpc.jsonrpc.DispatchTable.MethodEntry;
+import com.almende.eve.rpc.jsonrpc.Invoker;
+import com.almende.eve.test.agents.TestAgent;
+
+/**
+ * Test of the JSON-RPC method invokers: plain reflection versus
+ * MethodHandle, on TestAgent methods. With -Deve.benchmark=true (mvn test -P
+ * benchmark) the invocations are timed as well. Only the invocation itself
+ * is measured, param binding and result serialization are left out.
+ */
+public class TestInvokers extends TestCase {
+	private static final Logger		LOG			= Logger.getLogger(TestInvokers.class
+													.getName());
+	private static final boolean	BENCHMARK	= Boolean.getBoolean("eve.benchmark");
+	private static final int		WARMUP		= 200000;
+	private static final int		CALLS		= 2000000;
+	
+	/**
+	 * Compare the invokers.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testInvokers() throws Exception {
+		final TestAgent agent = new TestAgent();
+		final DispatchTable table = DispatchTable.get(TestAgent.class);
+		final MethodEntry hello = table.getMethod("helloWorld");
+		final MethodEntry primitive = table.getMethod("testPrimitive");
+		final Object[] helloArgs = new Object[] { "hi there!" };
+		final Object[] primitiveArgs = new Object[] { 1, 2 };
+		
+		final Invoker original = DispatchTable.getInvoker();
+		try {
+			for (final Invoker invoker : Invoker.values()) {
+				DispatchTable.setInvoker(invoker);
+				assertEquals("Hello world, you said: hi there!",
+						hello.invoke(agent, helloArgs));
+				assertEquals(3, primitive.invoke(agent, primitiveArgs));
+				
+				if (BENCHMARK) {
+					run(invoker, "helloWorld", hello, agent, helloArgs);
+					run(invoker, "testPrimitive", primitive, agent,
+							primitiveArgs);
+				}
+			}
+		} finally {
+			DispatchTable.setInvoker(original);
+		}
+	}
+	
+	/**
+	 * Time a series of invocations.
+	 *
+	 * @param invoker
+	 *            the invoker
+	 * @param name
+	 *            the name
+	 * @param entry
+	 *            the entry
+	 * @param agent
+	 *            the agent
+	 * @param args
+	 *            the args
+	 * @throws Exception
+	 *             the exception
+	 */
+	private void run(final Invoker invoker, final String name,
+			final MethodEntry entry, final TestAgent agent, final Object[] args)
+			throws Exception {
+		for (int i = 0; i < WARMUP; i++) {
+			entry.invoke(agent, args);
+		}
+		final long start = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			entry.invoke(agent, args);
+		}
+		final long duration = System.nanoTime() - start;
+		LOG.info(invoker + " " + name + ": " + (duration / (double) CALLS)
+				+ " ns/call");
+	}
+}
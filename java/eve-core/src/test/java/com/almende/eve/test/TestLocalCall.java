@@ -0,0 +1,111 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.TestAgent;
+import com.almende.util.TypeUtil;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Test of the local (in-host) call path between two co-hosted agents. With
+ * -Deve.benchmark=true (mvn test -P benchmark) it is a benchmark, logging
+ * the latency and allocation rate of the calls.
+ */
+public class TestLocalCall extends TestCase {
+	private static final Logger		LOG			= Logger.getLogger(TestLocalCall.class
+													.getName());
+	private static final boolean	BENCHMARK	= Boolean.getBoolean("eve.benchmark");
+	private static final int		WARMUP		= BENCHMARK ? 10000 : 0;
+	private static final int		CALLS		= BENCHMARK ? 50000 : 100;
+	
+	/**
+	 * Test local call latency and allocation rate.
+	 *
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testLocalCall() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		
+		if (host.hasAgent("localCaller")) {
+			host.deleteAgent("localCaller");
+		}
+		if (host.hasAgent("localCallee")) {
+			host.deleteAgent("localCallee");
+		}
+		final TestAgent caller = host.createAgent(TestAgent.class,
+				"localCaller");
+		host.createAgent(TestAgent.class, "localCallee");
+		final URI callee = URI.create("local:localCallee");
+		
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("msg", "hi there!");
+		
+		for (int i = 0; i < WARMUP; i++) {
+			caller.send(callee, "helloWorld", params, String.class);
+		}
+		
+		final long startAlloc = getAllocatedBytes();
+		final long start = System.nanoTime();
+		for (int i = 0; i < CALLS; i++) {
+			assertEquals("Hello world, you said: hi there!",
+					caller.send(callee, "helloWorld", params, String.class));
+		}
+		final long duration = System.nanoTime() - start;
+		final long allocated = getAllocatedBytes() - startAlloc;
+		
+		// local results are passed by reference only to node types
+		assertSame(params, TypeUtil.inject(params, ObjectNode.class));
+		assertTrue(TypeUtil.inject(params, Object.class) instanceof Map);
+		
+		if (BENCHMARK) {
+			LOG.info("Local calls: " + CALLS + " in " + (duration / 1000000)
+					+ " ms, latency: " + (duration / CALLS / 1000.0)
+					+ " us/call, allocated: "
+					+ (allocated >= 0 ? (allocated / CALLS) + " bytes/call"
+							: "n/a"));
+		}
+		
+		host.deleteAgent("localCaller");
+		host.deleteAgent("localCallee");
+	}
+	
+	/**
+	 * Sum of the bytes allocated by all live threads, or -1 if the JVM doesn't
+	 * support thread allocation measurement.
+	 *
+	 * @return the allocated bytes
+	 */
+	private long getAllocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		long total = 0;
+		for (final long bytes : sunBean.getThreadAllocatedBytes(bean
+				.getAllThreadIds())) {
+			if (bytes > 0) {
+				total += bytes;
+			}
+		}
+		return total;
+	}
+}
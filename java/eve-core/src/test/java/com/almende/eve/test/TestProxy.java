@@ -8,6 +8,7 @@ import java.net.URI;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -15,10 +16,15 @@ import org.junit.Test;
 
 import com.almende.eve.agent.AgentHost;
 import com.almende.eve.agent.AsyncProxy;
+import com.almende.eve.agent.callback.AsyncCallback;
+import com.almende.eve.agent.callback.CallbackFuture;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.state.FileStateFactory;
 import com.almende.eve.test.agents.TestAgent;
+import com.almende.eve.test.agents.TestAsyncInterface;
 import com.almende.eve.test.agents.TestInterface;
 import com.almende.eve.test.agents.entity.Person;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * The Class TestProxy.
@@ -54,6 +60,59 @@ public class TestProxy extends TestCase {
 		final Map<String, List<Person>> result = proxy.complexResult();
 		assertEquals("Ludo", result.get("result").get(0).getName());
 		
+		// proxies created by an agent are cached per interface and url
+		final TestInterface cached = agent.createAgentProxy(
+				URI.create("local:TestAgent"), TestInterface.class);
+		assertSame(cached, agent.createAgentProxy(
+				URI.create("local:TestAgent"), TestInterface.class));
+		assertEquals(cached, cached);
+		assertEquals(15, cached.testPrimitive(5, 10));
+		
+		// the cache is bounded, the least recently used proxies are dropped
+		final TestInterface first = agent.createAgentProxy(
+				URI.create("local:other0"), TestInterface.class);
+		for (int i = 1; i < 1000; i++) {
+			agent.createAgentProxy(URI.create("local:other" + i),
+					TestInterface.class);
+			assertSame(cached, agent.createAgentProxy(
+					URI.create("local:TestAgent"), TestInterface.class));
+		}
+		assertNotSame(first, agent.createAgentProxy(
+				URI.create("local:other0"), TestInterface.class));
+		
+		// asynchronous proxy, methods return a future
+		final TestAsyncInterface async = agent.createAgentProxy(
+				URI.create("local:TestAgent"), TestAsyncInterface.class);
+		assertEquals("Hello world, you said: hi", async.helloWorld("hi").get());
+		assertNull(async.testVoid().get());
+		assertEquals("Ludo", async.complexResult().get().get("result").get(0)
+				.getName());
+		// only methods returning a Future are asynchronous
+		final Object hello = async.helloWorld2("hi", "ho");
+		assertFalse(hello instanceof Future);
+		assertTrue(hello.toString().contains("you said: hi and ho"));
+		
+		// chain two calls, without waiting in between
+		final CallbackFuture<Integer> sum = new CallbackFuture<Integer>();
+		async.testPrimitive(5, 10).addCallback(new AsyncCallback<Integer>() {
+			@Override
+			public void onSuccess(final Integer result) {
+				async.testPrimitive(result, 1).addCallback(sum);
+			}
+			
+			@Override
+			public void onFailure(final Exception exception) {
+				sum.onFailure(exception);
+			}
+		});
+		assertEquals(new Integer(16), sum.get(10, TimeUnit.SECONDS));
+		
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("msg", "call");
+		assertEquals("Hello world, you said: call",
+				agent.call(URI.create("local:TestAgent"), "helloWorld", params,
+						String.class).get());
+		
 		// Generate asyncproxy from TestInterface
 		final AsyncProxy<TestInterface> aProxy = host.createAsyncAgentProxy(
 				agent, URI.create("local:TestAgent"), TestInterface.class);
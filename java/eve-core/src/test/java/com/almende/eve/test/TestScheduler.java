@@ -4,6 +4,13 @@
  */
 package com.almende.eve.test;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import junit.framework.TestCase;
@@ -12,17 +19,28 @@ import org.joda.time.DateTime;
 import org.junit.Test;
 
 import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.system.HostManagerAgent;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.scheduler.ClockSchedulerFactory;
+import com.almende.eve.scheduler.MissedRunPolicy;
 import com.almende.eve.scheduler.RunnableSchedulerFactory;
 import com.almende.eve.scheduler.Scheduler;
+import com.almende.eve.scheduler.SchedulerMetrics;
+import com.almende.eve.scheduler.SchedulerMetricsSink;
 import com.almende.eve.state.FileStateFactory;
+import com.almende.eve.state.MemoryStateFactory;
 import com.almende.eve.test.agents.TestSchedulerAgent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
- * The Class TestScheduler.
+ * The Class TestScheduler. With -Deve.benchmark=true (mvn test -P benchmark)
+ * the many-tasks tests run with a hundred thousand tasks.
  */
 public class TestScheduler extends TestCase {
-	private static final Logger	LOG	= Logger.getLogger("testScheduler");
+	private static final Logger		LOG			= Logger.getLogger("testScheduler");
+	private static final boolean	BENCHMARK	= Boolean.getBoolean("eve.benchmark");
+	private static final int		TASKS		= BENCHMARK ? 100000 : 1000;
 	
 	/**
 	 * Test single shot.
@@ -57,6 +75,308 @@ public class TestScheduler extends TestCase {
 		host.deleteAgent("SingleShot");
 	}
 	
+	/**
+	 * Benchmark of the ClockScheduler with many scheduled tasks for a single
+	 * agent: the earliest task has to run on time, whatever the number of
+	 * tasks scheduled after it.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testManyTasks() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new ClockSchedulerFactory(host, ""));
+		if (host.hasAgent("ManyTasks")) {
+			host.deleteAgent("ManyTasks");
+		}
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "ManyTasks");
+		agent.resetCount();
+		final Scheduler scheduler = agent.getScheduler();
+		
+		final ObjectNode params = JOM.createObjectNode();
+		params.put("time", DateTime.now().toString());
+		params.put("expected", DateTime.now().plus(3600000).toString());
+		params.put("interval", false);
+		params.put("sequential", false);
+		params.put("someId", "many");
+		params.put("delay", 3600000);
+		final JSONRequest request = new JSONRequest("doTest", params);
+		
+		long start = System.nanoTime();
+		final List<String> ids = new ArrayList<String>(TASKS);
+		for (int i = 0; i < TASKS; i++) {
+			// spread over the next hour, in reverse order
+			ids.add(scheduler.createTask(request, 3600000 - i * 30));
+		}
+		long duration = System.nanoTime() - start;
+		assertEquals(TASKS, scheduler.getTasks().size());
+		LOG.info("Created " + TASKS + " tasks in " + (duration / 1000000)
+				+ " ms, " + (duration / TASKS) + " ns/task");
+		
+		// a task due before all others runs on time
+		agent.setTest("ManyTasks", 100, false, false);
+		Thread.sleep(1000);
+		assertEquals(1, agent.getCount());
+		assertEquals(TASKS, scheduler.getTasks().size());
+		
+		start = System.nanoTime();
+		for (final String id : ids) {
+			scheduler.cancelTask(id);
+		}
+		duration = System.nanoTime() - start;
+		assertEquals(0, scheduler.getTasks().size());
+		LOG.info("Cancelled " + TASKS + " tasks in " + (duration / 1000000)
+				+ " ms, " + (duration / TASKS) + " ns/task");
+		
+		host.deleteAgent("ManyTasks");
+	}
+	
+	/**
+	 * Test that the RunnableSchedulerFactory restores persisted tasks, and
+	 * benchmark scheduling many tasks with it.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testRunnableRestore() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host,
+				"_restoreScheduler"));
+		if (host.hasAgent("Restore")) {
+			host.deleteAgent("Restore");
+		}
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "Restore");
+		final Scheduler scheduler = agent.getScheduler();
+		final JSONRequest request = new JSONRequest("resetCount",
+				JOM.createObjectNode());
+		
+		final long start = System.nanoTime();
+		for (int i = 0; i < TASKS; i++) {
+			scheduler.createTask(request, 3600000);
+		}
+		final long duration = System.nanoTime() - start;
+		final Set<String> tasks = new HashSet<String>(scheduler.getTasks());
+		assertEquals(TASKS, tasks.size());
+		LOG.info("Created " + TASKS + " runnable tasks in "
+				+ (duration / 1000000) + " ms, " + (duration / TASKS)
+				+ " ns/task");
+		
+		// a new factory on the same state restores the tasks, with their ids
+		final RunnableSchedulerFactory restored = new RunnableSchedulerFactory(
+				host, "_restoreScheduler");
+		final Scheduler restoredScheduler = restored.getScheduler(agent);
+		assertEquals(tasks, restoredScheduler.getTasks());
+		final String id = restoredScheduler.createTask(request, 3600000);
+		assertFalse(tasks.contains(id));
+		
+		restoredScheduler.cancelAllTasks();
+		scheduler.cancelAllTasks();
+		host.deleteAgent("Restore");
+	}
+	
+	/**
+	 * Test that tasks due in the same tick run as a batch, coalescing
+	 * identical requests of an agent.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testBatchedTasks() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final Map<String, Object> params = new HashMap<String, Object>();
+		params.put("id", "_batchScheduler");
+		params.put("tick", 1000);
+		params.put("jitter", 10);
+		params.put("coalesce", true);
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host, params));
+		if (host.hasAgent("Batched")) {
+			host.deleteAgent("Batched");
+		}
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "Batched");
+		agent.resetCount();
+		final Scheduler scheduler = agent.getScheduler();
+		
+		final ObjectNode test = JOM.createObjectNode();
+		test.put("time", DateTime.now().toString());
+		test.put("expected", DateTime.now().toString());
+		test.put("interval", false);
+		test.put("sequential", false);
+		test.put("someId", "batched");
+		test.put("delay", 0);
+		final JSONRequest request = new JSONRequest("doTest", test);
+		for (int i = 0; i < 100; i++) {
+			scheduler.createTask(request, 0);
+		}
+		Thread.sleep(2500);
+		// at most two ticks, depending on the moment of creation
+		final int count = agent.getCount();
+		assertTrue(count >= 1 && count <= 2);
+		assertEquals(0, scheduler.getTasks().size());
+		
+		host.deleteAgent("Batched");
+	}
+	
+	/**
+	 * Test that runs of a slow sequential task don't overlap, and that the
+	 * runs which became due meanwhile are skipped.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSequentialTasks() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		for (final boolean clock : new boolean[] { false, true }) {
+			if (clock) {
+				host.setSchedulerFactory(new ClockSchedulerFactory(host, ""));
+			} else {
+				host.setSchedulerFactory(new RunnableSchedulerFactory(host,
+						"_sequentialScheduler"));
+			}
+			if (host.hasAgent("Sequential")) {
+				host.deleteAgent("Sequential");
+			}
+			final TestSchedulerAgent agent = host.createAgent(
+					TestSchedulerAgent.class, "Sequential");
+			agent.resetCount();
+			agent.getMaxRunning();
+			final Scheduler scheduler = agent.getScheduler();
+			
+			final ObjectNode params = JOM.createObjectNode();
+			params.put("duration", 350);
+			scheduler.createTask(new JSONRequest("slowTest", params), 100,
+					true, true);
+			Thread.sleep(2000);
+			scheduler.cancelAllTasks();
+			Thread.sleep(500);
+			
+			final int count = agent.getCount();
+			LOG.info("Sequential task ran " + count + " times, clock:" + clock);
+			// a run every 400 ms, instead of every 100 ms
+			assertTrue(count >= 3 && count <= 7);
+			assertEquals(1, agent.getMaxRunning());
+			host.deleteAgent("Sequential");
+		}
+	}
+	
+	/**
+	 * Test the due times and missed runs of the missed run policies.
+	 */
+	@Test
+	public void testMissedRunPolicy() {
+		// on time
+		assertEquals(100, MissedRunPolicy.SKIP.getNextDue(0, 100, 50));
+		assertEquals(0, MissedRunPolicy.SKIP.countMissed(0, 0, 100, 100));
+		// due now
+		assertEquals(100, MissedRunPolicy.SKIP.getNextDue(0, 100, 100));
+		// runs at 100 and 200 skipped
+		assertEquals(300, MissedRunPolicy.SKIP.getNextDue(0, 100, 250));
+		assertEquals(2, MissedRunPolicy.SKIP.countMissed(0, 0, 300, 100));
+		
+		// overdue runs still run
+		assertEquals(100, MissedRunPolicy.CATCH_UP.getNextDue(0, 100, 250));
+		assertEquals(0, MissedRunPolicy.CATCH_UP.countMissed(0, 50, 100, 100));
+		assertEquals(1, MissedRunPolicy.CATCH_UP.countMissed(0, 150, 100, 100));
+		
+		final Map<String, Object> params = new HashMap<String, Object>();
+		assertEquals(MissedRunPolicy.SKIP, MissedRunPolicy.fromParams(params));
+		params.put("missedRuns", "catchUp");
+		assertEquals(MissedRunPolicy.CATCH_UP,
+				MissedRunPolicy.fromParams(params));
+	}
+	
+	/**
+	 * Test the metrics of a scheduler factory, its sink, and the management
+	 * RPC.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testSchedulerMetrics() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final Map<String, Object> params = new HashMap<String, Object>();
+		params.put("id", "_metricsScheduler");
+		params.put("metricsSink", CountingSink.class.getName());
+		host.setSchedulerFactory(new RunnableSchedulerFactory(host, params));
+		for (final String agentId : new String[] { "Metrics",
+				AgentHost.MANAGEMENTAGENTID }) {
+			if (host.hasAgent(agentId)) {
+				host.deleteAgent(agentId);
+			}
+		}
+		final TestSchedulerAgent agent = host.createAgent(
+				TestSchedulerAgent.class, "Metrics");
+		final Scheduler scheduler = agent.getScheduler();
+		final SchedulerMetrics metrics = host.getSchedulerFactory()
+				.getMetrics();
+		CountingSink.RECORDS.set(0);
+		
+		final ObjectNode test = JOM.createObjectNode();
+		test.put("duration", 0);
+		for (int i = 0; i < 10; i++) {
+			scheduler.createTask(new JSONRequest("slowTest", test), 0);
+		}
+		scheduler.createTask(new JSONRequest("slowTest", test), 3600000);
+		// fails every run
+		final String failing = scheduler.createTask(new JSONRequest(
+				"noSuchMethod", test), 100, true, true);
+		Thread.sleep(500);
+		scheduler.cancelTask(failing);
+		Thread.sleep(200);
+		
+		assertEquals(1, metrics.getPending());
+		assertEquals(1, scheduler.getDetailedTasks().size());
+		assertTrue(metrics.getLag().getCount() >= 11);
+		assertEquals(metrics.getLag().getCount(), metrics.getExecution()
+				.getCount());
+		assertTrue(metrics.getFailures() >= 1);
+		assertTrue(CountingSink.RECORDS.get() > 0);
+		
+		final HostManagerAgent manager = host.createAgent(
+				HostManagerAgent.class, AgentHost.MANAGEMENTAGENTID);
+		final ObjectNode json = manager.getSchedulerMetrics();
+		LOG.info("Scheduler metrics:" + json);
+		assertEquals(1, json.get("pending").asInt());
+		assertEquals(metrics.getLag().getCount(), json.get("lag").get("count")
+				.asLong());
+		
+		host.deleteAgent("Metrics");
+		assertEquals(0, metrics.getPending());
+		host.deleteAgent(AgentHost.MANAGEMENTAGENTID);
+	}
+	
+	/**
+	 * Metrics sink counting the records.
+	 */
+	public static class CountingSink implements SchedulerMetricsSink {
+		private static final AtomicInteger	RECORDS	= new AtomicInteger();
+		
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see
+		 * com.almende.eve.scheduler.SchedulerMetricsSink#record(java.lang.String
+		 * , java.lang.String, long)
+		 */
+		@Override
+		public void record(final String scheduler, final String metric,
+				final long value) {
+			RECORDS.incrementAndGet();
+		}
+	}
+	
 	/**
 	 * Test scheduler.
 	 * 
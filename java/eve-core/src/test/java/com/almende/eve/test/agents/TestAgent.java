@@ -4,13 +4,21 @@
  */
 package com.almende.eve.test.agents;
 
+import java.io.IOException;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.almende.eve.agent.Agent;
 import com.almende.eve.rpc.annotation.Access;
 import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Cacheable;
+import com.almende.eve.rpc.annotation.Deadline;
+import com.almende.eve.rpc.annotation.Name;
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.test.agents.entity.Person;
 
 /**
@@ -18,6 +26,8 @@ import com.almende.eve.test.agents.entity.Person;
  */
 @Access(AccessType.PUBLIC)
 public class TestAgent extends Agent implements TestInterface {
+	/** Number of invocations of getCounter and slowEcho. */
+	public static final AtomicInteger	INVOCATIONS	= new AtomicInteger();
 	
 	/*
 	 * (non-Javadoc)
@@ -78,6 +88,76 @@ public class TestAgent extends Agent implements TestInterface {
 		return result;
 	}
 	
+	/**
+	 * Return the deadline of this request.
+	 * 
+	 * @param deadline
+	 *            the deadline
+	 * @return the deadline
+	 */
+	public Long getDeadline(@Deadline final Long deadline) {
+		return deadline;
+	}
+	
+	/**
+	 * Call getDeadline on another agent, this call inherits the deadline of
+	 * the current request.
+	 * 
+	 * @param url
+	 *            the url of the other agent
+	 * @return the deadline seen by the other agent
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 * @throws JSONRPCException
+	 *             the jSONRPC exception
+	 */
+	public Long getNestedDeadline(@Name("url") final String url)
+			throws IOException, JSONRPCException {
+		return send(URI.create(url), "getDeadline", JOM.createObjectNode(),
+				Long.class);
+	}
+	
+	/**
+	 * Increment a counter in the state of this agent.
+	 * 
+	 * @return the new value of the counter
+	 */
+	public int increment() {
+		final Integer count = getState().get("count", Integer.class);
+		final int result = count != null ? count + 1 : 1;
+		getState().put("count", result);
+		return result;
+	}
+	
+	/**
+	 * Cacheable method, returning the counter in the state of this agent.
+	 * 
+	 * @param msg
+	 *            the msg
+	 * @return the message and the value of the counter
+	 */
+	@Cacheable
+	public String getCounter(@Name("msg") final String msg) {
+		INVOCATIONS.incrementAndGet();
+		return msg + ": " + getState().get("count", Integer.class);
+	}
+	
+	/**
+	 * Slow method, returning the given message after a while.
+	 * 
+	 * @param msg
+	 *            the msg
+	 * @return the msg
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	public String slowEcho(@Name("msg") final String msg)
+			throws InterruptedException {
+		INVOCATIONS.incrementAndGet();
+		Thread.sleep(200);
+		return msg;
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -0,0 +1,63 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test.agents;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.agent.callback.CallbackFuture;
+import com.almende.eve.rpc.annotation.Name;
+import com.almende.eve.test.agents.entity.Person;
+
+/**
+ * The asynchronous variant of TestInterface.
+ */
+public interface TestAsyncInterface extends AgentInterface {
+	
+	/**
+	 * Hello world.
+	 *
+	 * @param msg the msg
+	 * @return the string
+	 */
+	public Future<String> helloWorld(@Name("msg") String msg);
+	
+	/**
+	 * Hello world2, declared with a supertype of the result: a synchronous
+	 * call.
+	 *
+	 * @param msg1 the msg1
+	 * @param msg2 the msg2
+	 * @return the string
+	 */
+	public Object helloWorld2(@Name("msg1") String msg1,
+			@Name("msg2") String msg2);
+	
+	/**
+	 * Test void.
+	 *
+	 * @return the future
+	 */
+	public Future<Void> testVoid();
+	
+	/**
+	 * Test primitive.
+	 *
+	 * @param num the num
+	 * @param num2 the num2
+	 * @return the int
+	 */
+	public CallbackFuture<Integer> testPrimitive(@Name("num") int num,
+			@Name("num2") Integer num2);
+	
+	/**
+	 * Complex result.
+	 *
+	 * @return the hash map
+	 */
+	public Future<HashMap<String, List<Person>>> complexResult();
+}
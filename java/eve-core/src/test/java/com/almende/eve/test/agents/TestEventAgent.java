@@ -0,0 +1,60 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test.agents;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.annotation.ThreadSafe;
+import com.almende.eve.rpc.annotation.Access;
+import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Name;
+import com.almende.eve.rpc.annotation.Optional;
+import com.almende.eve.rpc.annotation.Sender;
+
+/**
+ * The Class TestEventAgent, thread safe like the cells of the game of life
+ * demo.
+ */
+@ThreadSafe(true)
+@Access(AccessType.PUBLIC)
+public class TestEventAgent extends Agent {
+	private static final AtomicInteger	RECEIVED	= new AtomicInteger();
+	
+	/**
+	 * Event callback.
+	 * 
+	 * @param event
+	 *            the event
+	 * @param subscriptionId
+	 *            the subscription id
+	 * @param nr
+	 *            the number given when subscribing
+	 * @param sender
+	 *            the sender
+	 */
+	public void onEvent(@Name("event") final String event,
+			@Name("subscriptionId") final String subscriptionId,
+			@Optional @Name("nr") final Integer nr,
+			@Sender final String sender) {
+		RECEIVED.incrementAndGet();
+	}
+	
+	/**
+	 * Gets the number of received events, of all test event agents.
+	 * 
+	 * @return the received
+	 */
+	public int getReceived() {
+		return RECEIVED.get();
+	}
+	
+	/**
+	 * Reset the number of received events.
+	 */
+	public void resetReceived() {
+		RECEIVED.set(0);
+	}
+}
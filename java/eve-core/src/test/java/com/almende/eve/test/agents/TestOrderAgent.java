@@ -0,0 +1,79 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test.agents;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.rpc.annotation.Access;
+import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Name;
+import com.almende.eve.rpc.annotation.Optional;
+
+/**
+ * The Class TestOrderAgent, an event subscriber which isn't thread safe: each
+ * call is handled by a new instance. Records the order of the callbacks it
+ * receives.
+ */
+@Access(AccessType.PUBLIC)
+public class TestOrderAgent extends Agent {
+	private static final List<Integer>	RECEIVED	= new ArrayList<Integer>();
+	private static final AtomicInteger	RUNNING		= new AtomicInteger();
+	private static final AtomicInteger	MAXRUNNING	= new AtomicInteger();
+	
+	/**
+	 * Event callback.
+	 * 
+	 * @param nr
+	 *            the number of the callback
+	 */
+	public void onEvent(@Optional @Name("nr") final Integer nr) {
+		final int running = RUNNING.incrementAndGet();
+		int max = MAXRUNNING.get();
+		while (running > max && !MAXRUNNING.compareAndSet(max, running)) {
+			max = MAXRUNNING.get();
+		}
+		try {
+			Thread.yield();
+			synchronized (RECEIVED) {
+				RECEIVED.add(nr);
+			}
+		} finally {
+			RUNNING.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Gets the numbers of the received callbacks, in order of arrival.
+	 * 
+	 * @return the received
+	 */
+	public List<Integer> getReceived() {
+		synchronized (RECEIVED) {
+			return new ArrayList<Integer>(RECEIVED);
+		}
+	}
+	
+	/**
+	 * Gets the maximum number of callbacks handled at the same time.
+	 * 
+	 * @return the max running
+	 */
+	public int getMaxRunning() {
+		return MAXRUNNING.get();
+	}
+	
+	/**
+	 * Reset the received callbacks.
+	 */
+	public void reset() {
+		synchronized (RECEIVED) {
+			RECEIVED.clear();
+		}
+		MAXRUNNING.set(0);
+	}
+}
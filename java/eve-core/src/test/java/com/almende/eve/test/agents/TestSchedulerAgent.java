@@ -4,6 +4,7 @@
  */
 package com.almende.eve.test.agents;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
@@ -23,7 +24,9 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  */
 @Access(AccessType.PUBLIC)
 public class TestSchedulerAgent extends Agent {
-	private static final Logger	LOG	= Logger.getLogger("testScheduler");
+	private static final Logger			LOG			= Logger.getLogger("testScheduler");
+	private static final AtomicInteger	RUNNING		= new AtomicInteger();
+	private static final AtomicInteger	MAXRUNNING	= new AtomicInteger();
 	
 	/**
 	 * Sets the test.
@@ -99,6 +102,41 @@ public class TestSchedulerAgent extends Agent {
 		}
 	}
 	
+	/**
+	 * A slow task: counts as a run of doTest, and keeps track of the number
+	 * of slow tasks running at the same time.
+	 * 
+	 * @param duration
+	 *            the duration in milliseconds
+	 * @throws InterruptedException
+	 *             the interrupted exception
+	 */
+	public void slowTest(@Name("duration") final int duration)
+			throws InterruptedException {
+		final int running = RUNNING.incrementAndGet();
+		int max = MAXRUNNING.get();
+		while (running > max && !MAXRUNNING.compareAndSet(max, running)) {
+			max = MAXRUNNING.get();
+		}
+		try {
+			Thread.sleep(duration);
+			doTest(DateTime.now().toString(), DateTime.now().toString(), true,
+					true, "slow", duration);
+		} finally {
+			RUNNING.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Gets the maximum number of slow tasks that ran at the same time, and
+	 * resets it.
+	 * 
+	 * @return the max running
+	 */
+	public int getMaxRunning() {
+		return MAXRUNNING.getAndSet(0);
+	}
+	
 	/**
 	 * Gets the count.
 	 * 
@@ -18,6 +18,7 @@ import com.almende.eve.rpc.annotation.AccessType;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.scheduler.AbstractScheduler;
 import com.almende.eve.scheduler.SchedulerFactory;
+import com.almende.eve.scheduler.SchedulerMetrics;
 import com.almende.eve.transport.TransportService;
 import com.almende.util.TwigUtil;
 import com.google.appengine.api.datastore.Query.FilterOperator;
@@ -197,4 +198,10 @@ public class GaeSchedulerFactory implements SchedulerFactory {
 		// TODO 
 		//How?
 	}
+
+	@Override
+	public SchedulerMetrics getMetrics() {
+		// tasks are run by the task queue of App Engine
+		return null;
+	}
 }
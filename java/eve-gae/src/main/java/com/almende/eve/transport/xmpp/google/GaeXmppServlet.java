@@ -43,8 +43,9 @@ public class GaeXmppServlet extends HttpServlet {
 		JID to = (recipients.length > 0) ? recipients[0] : null;
 		
 		String body = message.getBody();
-		if (body != null && body.startsWith("{") || body.trim().startsWith("{")) {
-			// the body contains a JSON object
+		if (body != null
+				&& (body.trim().startsWith("{") || body.trim().startsWith("["))) {
+			// the body contains a JSON object, or a JSON-RPC batch
 			try {
 				String agentUrl = "xmpp:" + to.getId();
 				String agentId = xmppService != null ? xmppService
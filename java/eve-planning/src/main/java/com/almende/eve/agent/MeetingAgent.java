@@ -107,6 +107,7 @@ import com.almende.eve.entity.activity.Status;
 import com.almende.eve.entity.calendar.AgentData;
 import com.almende.eve.rpc.annotation.Access;
 import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Cacheable;
 import com.almende.eve.rpc.annotation.Name;
 import com.almende.eve.rpc.annotation.Optional;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
@@ -1344,6 +1345,7 @@ public class MeetingAgent extends Agent {
 	 * @return the intervals
 	 */
 	// TODO: remove this temporary method
+	@Cacheable(ttl = 60000)
 	public ObjectNode getIntervals() {
 		final ObjectNode intervals = JOM.createObjectNode();
 		
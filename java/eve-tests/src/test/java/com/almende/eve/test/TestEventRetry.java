@@ -0,0 +1,69 @@
+/*
+ * Copyright: Almende B.V. (2014), Rotterdam, The Netherlands
+ * License: The Apache Software License, Version 2.0
+ */
+package com.almende.eve.test;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.event.EventDispatcher;
+import com.almende.eve.state.MemoryStateFactory;
+import com.almende.eve.test.agents.Test2Agent;
+import com.almende.eve.transport.http.HttpService;
+
+/**
+ * Test the retries of event callbacks sent over HTTP.
+ */
+public class TestEventRetry extends TestCase {
+	
+	/**
+	 * Test the retries of callbacks to an http url which can't be reached.
+	 * 
+	 * @throws Exception
+	 *             the exception
+	 */
+	@Test
+	public void testUnreachableUrl() throws Exception {
+		final AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		if (host.getTransportService("http") == null) {
+			host.addTransportService(new HttpService(host,
+					"http://localhost:8080/agents/"));
+		}
+		if (host.hasAgent("retryPublisher")) {
+			host.deleteAgent("retryPublisher");
+		}
+		final Test2Agent publisher = host.createAgent(Test2Agent.class,
+				"retryPublisher");
+		// nothing listens on port 1
+		publisher.getEventsFactory().createSubscription("tick",
+				"http://127.0.0.1:1/agents/subscriber/", "onEvent", null);
+		
+		final EventDispatcher dispatcher = host.getEventDispatcher();
+		dispatcher.setRetryDelay(20);
+		dispatcher.setMaxRetries(2);
+		try {
+			final long retried = dispatcher.getRetried();
+			final long dropped = dispatcher.getDropped();
+			final long delivered = dispatcher.getDelivered();
+			publisher.getEventsFactory().trigger("tick");
+			
+			final long until = System.currentTimeMillis() + 10000;
+			while (dispatcher.getDropped() - dropped < 1
+					&& System.currentTimeMillis() < until) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, dispatcher.getDropped() - dropped);
+			assertEquals(2, dispatcher.getRetried() - retried);
+			assertEquals(delivered, dispatcher.getDelivered());
+			assertEquals(0, dispatcher.getPending());
+		} finally {
+			dispatcher.setRetryDelay(1000);
+			dispatcher.setMaxRetries(5);
+			host.deleteAgent("retryPublisher");
+		}
+	}
+}
@@ -25,6 +25,7 @@ import com.almende.eve.agent.AgentSignal;
 import com.almende.eve.agent.callback.AsyncCallbackQueue;
 import com.almende.eve.agent.callback.SyncCallback;
 import com.almende.eve.config.Config;
+import com.almende.eve.rpc.jsonrpc.JSONDescription;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.util.StreamingUtil;
 import com.almende.util.StringUtil;
@@ -317,6 +318,8 @@ public class AgentServlet extends HttpServlet {
 		
 		if (resource.equals("events")) {
 			//TODO: fix this again.
+		} else if (resource.equals("methods")) {
+			handleMethods(agentId, req, resp);
 		} else {
 			// load the resource
 			final String mimetype = StreamingUtil.getMimeType(extension);
@@ -332,6 +335,55 @@ public class AgentServlet extends HttpServlet {
 		}
 	}
 	
+	/**
+	 * Send the description of the methods of an agent, or a 304 Not Modified
+	 * when the client already has the current description (If-None-Match).
+	 * 
+	 * @param agentId
+	 *            the agent id
+	 * @param req
+	 *            the req
+	 * @param resp
+	 *            the resp
+	 * @throws ServletException
+	 *             the servlet exception
+	 * @throws IOException
+	 *             Signals that an I/O exception has occurred.
+	 */
+	private void handleMethods(final String agentId,
+			final HttpServletRequest req, final HttpServletResponse resp)
+			throws ServletException, IOException {
+		final JSONDescription description;
+		try {
+			description = host.getAgent(agentId).getMethodsDescription();
+		} catch (final Exception e) {
+			throw new ServletException(e);
+		}
+		if (description == null) {
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+					"Failed to describe agent '" + agentId + "'.");
+			return;
+		}
+		final String etag = description.getETag();
+		resp.setHeader("ETag", etag);
+		resp.setHeader("Cache-Control", "no-cache");
+		final String ifNoneMatch = req.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (final String tag : ifNoneMatch.split(",")) {
+				final String trimmed = tag.trim();
+				if (trimmed.equals("*") || trimmed.equals(etag)
+						|| trimmed.equals("W/" + etag)) {
+					resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return;
+				}
+			}
+		}
+		final byte[] bytes = description.getBytes();
+		resp.setContentType("application/json");
+		resp.setContentLength(bytes.length);
+		resp.getOutputStream().write(bytes);
+	}
+	
 	/**
 	 * Send a JSON-RPC message to an agent Usage: POST /servlet/{agentId} With a
 	 * JSON-RPC request as body. Response will be a JSON-RPC response.
@@ -393,6 +445,12 @@ public class AgentServlet extends HttpServlet {
 		
 		try {
 			final Object message = callback.get();
+			if ("".equals(message)) {
+				// notification, no response
+				resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				resp.flushBuffer();
+				return;
+			}
 			// return response
 			resp.addHeader("Content-Type", "application/json");
 			resp.getWriter().println(message.toString());
@@ -537,6 +595,15 @@ public class AgentServlet extends HttpServlet {
 				+ "\n"
 				+
 				
+				"GET "
+				+ servletUrl
+				+ "{agentId}/methods\n"
+				+ "\n"
+				+ "    Returns the description of the methods of an agent, with an\n"
+				+ "    ETag. A 304 is returned when the description is unchanged.\n"
+				+ "\n"
+				+
+				
 				"POST "
 				+ servletUrl
 				+ "{agentId}\n"
@@ -18,6 +18,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpPost;
@@ -27,14 +28,14 @@ import org.apache.http.util.EntityUtils;
 import com.almende.eve.agent.AgentHost;
 import com.almende.eve.agent.callback.AsyncCallback;
 import com.almende.eve.agent.callback.AsyncCallbackQueue;
-import com.almende.eve.transport.TransportService;
+import com.almende.eve.transport.SynchronousTransportService;
 import com.almende.util.ClassUtil;
 import com.almende.util.tokens.TokenStore;
 
 /**
  * The Class HttpService.
  */
-public class HttpService implements TransportService {
+public class HttpService implements SynchronousTransportService {
 	private static final Logger	LOG			= Logger.getLogger(HttpService.class
 													.getCanonicalName());
 	private String				servletUrl	= null;
@@ -186,7 +187,6 @@ public class HttpService implements TransportService {
 			
 			@Override
 			public void run() {
-				HttpPost httpPost = null;
 				try {
 					
 					if (tag != null) {
@@ -211,37 +211,63 @@ public class HttpService implements TransportService {
 						// Chicken out
 						return;
 					}
-					httpPost = new HttpPost(receiverUrl);
-					// invoke via Apache HttpClient request:
-					httpPost.setEntity(new StringEntity(message));
-					
-					// Add token for HTTP handshake
-					httpPost.addHeader("X-Eve-Token", TokenStore.create()
-							.toString());
-					httpPost.addHeader("X-Eve-SenderUrl", senderUrl.toString());
-					final HttpResponse webResp = ApacheHttpClient.get()
-							.execute(httpPost);
-					final String result = EntityUtils.toString(webResp
-							.getEntity());
-					if (webResp.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-						LOG.warning("Received HTTP Error Status:"+webResp.getStatusLine().getStatusCode()+":"+webResp.getStatusLine().getReasonPhrase());
-						LOG.warning(result);
-					} else {
-						host.receive(getAgentId(senderUrl), result,
-								receiverUrl, null);
-					}
+					send(senderUrl, receiverUrl, message);
 				} catch (final Exception e) {
 					LOG.log(Level.WARNING,
 							"HTTP roundtrip resulted in exception!", e);
-				} finally {
-					if (httpPost != null) {
-						httpPost.reset();
-					}
 				}
 			}
 		});
 	}
 	
+	/**
+	 * Send a JSON-RPC message to an agent via HTTP, on the calling thread.
+	 * The response, if any, is handed to the sender.
+	 * 
+	 * @param senderUrl
+	 *            the sender url
+	 * @param receiverUrl
+	 *            the receiver url
+	 * @param message
+	 *            the message
+	 * @throws IOException
+	 *             Signals that the message could not be delivered, or was
+	 *             answered with an HTTP error status.
+	 */
+	@Override
+	public void send(final URI senderUrl, final URI receiverUrl,
+			final String message) throws IOException {
+		final HttpPost httpPost = new HttpPost(receiverUrl);
+		try {
+			// invoke via Apache HttpClient request:
+			httpPost.setEntity(new StringEntity(message));
+			
+			// Add token for HTTP handshake
+			httpPost.addHeader("X-Eve-Token", TokenStore.create().toString());
+			httpPost.addHeader("X-Eve-SenderUrl", senderUrl.toString());
+			final HttpResponse webResp = ApacheHttpClient.get().execute(
+					httpPost);
+			final int status = webResp.getStatusLine().getStatusCode();
+			final HttpEntity entity = webResp.getEntity();
+			String result = "";
+			if (entity != null && status != HttpStatus.SC_NO_CONTENT) {
+				result = EntityUtils.toString(entity);
+			}
+			EntityUtils.consume(entity);
+			if (status / 100 != 2) {
+				throw new IOException("Received HTTP Error Status:" + status
+						+ ":" + webResp.getStatusLine().getReasonPhrase() + " "
+						+ result);
+			}
+			if (!result.isEmpty()) {
+				// empty for notifications (any 2xx status)
+				host.receive(getAgentId(senderUrl), result, receiverUrl, null);
+			}
+		} finally {
+			httpPost.reset();
+		}
+	}
+	
 	/**
 	 * Get the url of an agent from its id.
 	 * 